@@ -0,0 +1,164 @@
+package com.kdab.charm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * The delimiter based LineDecoder and FrameParser against the fixed offset
+ * parsing CharmClientThread used to do, on a RECENT reply and on pushes.
+ * Ids have four digits, the only width the offset parser understands.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameParserBenchmark {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Param({ "10", "100", "1000" })
+    public int rows;
+
+    private final PendingRequests mPending = new PendingRequests();
+    private final CountingHandler mHandler = new CountingHandler();
+    private final FrameParser mParser = new FrameParser(mHandler, mPending);
+    private final LineDecoder mDecoder = new LineDecoder();
+    private byte[] mRecent;
+    private byte[] mPushes;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        StringBuilder recent = new StringBuilder();
+        StringBuilder pushes = new StringBuilder();
+
+        for (int i = 0; i < rows; ++i) {
+            String row = String.format("%04d Customer Projects / Task %d", 1000 + i, i);
+            recent.append(row).append('\n');
+            pushes.append(i % 2 == 0 ? "TASK ACTIVATED " : "TASK DEACTIVATED ").append(row).append('\n');
+        }
+
+        mRecent = recent.toString().getBytes(UTF8);
+        mPushes = pushes.toString().getBytes(UTF8);
+    }
+
+    @Benchmark
+    public int recentDelimited() {
+        mPending.add(PendingRequests.COMMAND_RECENT, 0, 0, rows);
+        mDecoder.feed(mRecent, 0, mRecent.length, mParser);
+        return mHandler.consume();
+    }
+
+    @Benchmark
+    public int recentOffset() {
+        int seen = 0;
+
+        for (String task : new String(mRecent, 0, mRecent.length).split("\n")) {
+            int id;
+            try {
+                id = Integer.parseInt(task.substring(0, 4));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+
+            seen += id + task.substring(5).length();
+        }
+
+        return seen;
+    }
+
+    @Benchmark
+    public int pushesDelimited() {
+        mDecoder.feed(mPushes, 0, mPushes.length, mParser);
+        return mHandler.consume();
+    }
+
+    @Benchmark
+    public int pushesOffset() {
+        int seen = 0;
+
+        for (String line : new String(mPushes, 0, mPushes.length).split("\n")) {
+            int id;
+            String name;
+
+            try {
+                if (line.startsWith("TASK ACTIVATED")) {
+                    id = Integer.parseInt(line.substring(15, 19));
+                    name = line.substring(20);
+                } else if (line.startsWith("TASK DEACTIVATED")) {
+                    id = Integer.parseInt(line.substring(17, 21));
+                    name = line.substring(22);
+                } else
+                    continue;
+            } catch (NumberFormatException e) {
+                continue;
+            }
+
+            seen += id + name.length();
+        }
+
+        return seen;
+    }
+
+    private static class CountingHandler implements FrameParser.FrameHandler {
+        private int mSeen;
+
+        int consume() {
+            int seen = mSeen;
+            mSeen = 0;
+            return seen;
+        }
+
+        @Override
+        public void onHello() {
+        }
+
+        @Override
+        public void onAck(int options) {
+        }
+
+        @Override
+        public void onNak(PendingRequests.Request request) {
+        }
+
+        @Override
+        public void onReplyComplete(PendingRequests.Request request) {
+        }
+
+        @Override
+        public void onTaskActivated(long id, String name) {
+            mSeen += id + name.length();
+        }
+
+        @Override
+        public void onTaskDeactivated(long id, String name) {
+            mSeen += id + name.length();
+        }
+
+        @Override
+        public void onRecentTask(long id, String name, int index) {
+            mSeen += id + name.length();
+        }
+
+        @Override
+        public void onTaskStatus(long id, int seconds) {
+        }
+
+        @Override
+        public void onUnknownFrame(byte[] buffer, int start, int end) {
+        }
+    }
+}
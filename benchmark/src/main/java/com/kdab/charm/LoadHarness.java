@@ -0,0 +1,391 @@
+package com.kdab.charm;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/*
+ * Drives the client's connection layer, the transport, parser and command
+ * batching CharmConnection runs on, with several connections on one selector
+ * against a StandInServer, and reports throughput and round trip
+ * percentiles. Each connection sends `rate` requests per second, cycling
+ * through STATUS, RECENT, START and STOP, whether or not the previous ones
+ * were answered, so a slow link shows up as a growing tail.
+ *
+ * Without host= a local stand-in is started, and settings such as latency,
+ * bandwidth, fragment or pushes, or a script=, are applied to it.
+ *
+ * ./gradlew :benchmark:load -Pload='clients=8 seconds=30 rate=50 fragment=7 pushes=200'
+ */
+public class LoadHarness {
+    /* As CharmConnection.REPLY_GAP, in nanoseconds */
+    private static final long REPLY_GAP = 250000000L;
+
+    private static final String[] SERVER_SETTINGS = {
+            "latency", "bandwidth", "fragment", "pushes", "running", "mute", "beacon",
+    };
+
+    private final LatencyHistogram mRoundTrip = new LatencyHistogram();
+    private final Random mRandom = new Random(42);
+    private final List<Client> mClients = new ArrayList<>();
+    private Selector mSelector;
+    private InetSocketAddress mAddress;
+    private int mOptions;
+    private int mRate;
+    private int mWindow;
+    private int mTasks;
+
+    private long mReplies;
+    private long mNaks;
+    private long mRows;
+    private long mPushes;
+    private long mBytesIn;
+    private long mReconnects;
+    private long mUnknown;
+    private int mMaxPending;
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            options.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+
+        LoadHarness harness = new LoadHarness();
+        harness.mRate = option(options, "rate", 20);
+        harness.mWindow = option(options, "window", 50);
+        harness.mTasks = option(options, "tasks", 10000);
+        harness.mOptions = (option(options, "binary", 1) != 0 ? FrameParser.OPTION_BINARY : 0)
+                | (option(options, "deflate", 0) != 0 ? FrameParser.OPTION_DEFLATE : 0);
+
+        StandInServer server = null;
+        if (options.containsKey("host")) {
+            harness.mAddress = new InetSocketAddress(options.get("host"), option(options, "port", 5323));
+        } else {
+            server = new StandInServer(0, harness.mTasks, option(options, "running", 10));
+            for (String setting : SERVER_SETTINGS) {
+                if (options.containsKey(setting))
+                    server.set(setting, option(options, setting, 0));
+            }
+
+            Thread thread = new Thread(server, "StandInServer");
+            thread.setDaemon(true);
+            thread.start();
+
+            harness.mAddress = new InetSocketAddress("127.0.0.1", server.getPort());
+        }
+
+        if (server != null && options.containsKey("script")) {
+            final StandInServer scripted = server;
+            final String script = options.get("script");
+
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        scripted.runScript(new FileReader(script));
+                    } catch (IOException e) {
+                        System.out.println("Script failed: " + e.getMessage());
+                    }
+                }
+            }, "StandInServer script");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        harness.run(option(options, "clients", 8), option(options, "seconds", 10));
+
+        if (server != null) {
+            System.out.println("Server wrote " + server.getBytesWritten() + " bytes, "
+                    + server.getPushesWritten() + " pushes");
+            server.close();
+        }
+    }
+
+    private static int option(Map<String, String> options, String name, int fallback) {
+        String value = options.get(name);
+        return value == null ? fallback : Integer.parseInt(value);
+    }
+
+    private void run(int clients, int seconds) throws IOException {
+        mSelector = Selector.open();
+
+        long start = System.nanoTime();
+        long end = start + seconds * 1000000000L;
+        long nextReport = start + 1000000000L;
+        long reportedReplies = 0;
+
+        for (int i = 0; i < clients; ++i) {
+            Client client = new Client(i, clients);
+            client.connect(start);
+            mClients.add(client);
+        }
+
+        while (true) {
+            long now = System.nanoTime();
+            if (now >= end)
+                break;
+
+            long deadline = Math.min(end, nextReport);
+            for (int i = 0; i < mClients.size(); ++i) {
+                Client client = mClients.get(i);
+                client.tick(now);
+                deadline = Math.min(deadline, client.getDeadline());
+            }
+
+            long timeout = (deadline - System.nanoTime()) / 1000000;
+            mSelector.selectedKeys().clear();
+            if (timeout > 0)
+                mSelector.select(timeout);
+            else
+                mSelector.selectNow();
+
+            for (int i = 0; i < mClients.size(); ++i)
+                mClients.get(i).onSelected();
+
+            if (System.nanoTime() >= nextReport) {
+                System.out.println(String.format("%3d s: %6d replies/s, p99 %7d us, %d pending, %d unknown frames",
+                        (nextReport - start) / 1000000000L, mReplies - reportedReplies,
+                        mRoundTrip.getPercentile(99), pending(), mUnknown));
+                reportedReplies = mReplies;
+                nextReport += 1000000000L;
+            }
+        }
+
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        for (int i = 0; i < mClients.size(); ++i)
+            mClients.get(i).close();
+        mSelector.close();
+
+        System.out.println(String.format("%d clients, %.1f s, %s %s", clients, elapsed,
+                (mOptions & FrameParser.OPTION_BINARY) != 0 ? "binary" : "text",
+                (mOptions & FrameParser.OPTION_DEFLATE) != 0 ? "deflated" : "plain"));
+        System.out.println(String.format("Replies: %d (%.0f/s), %d refused", mReplies, mReplies / elapsed, mNaks));
+        System.out.println(String.format("Rows: %d (%.0f/s)", mRows, mRows / elapsed));
+        System.out.println(String.format("Pushes, START/STOP confirmations included: %d (%.0f/s)", mPushes, mPushes / elapsed));
+        System.out.println(String.format("Bytes in: %d (%.0f KB/s)", mBytesIn, mBytesIn / elapsed / 1024));
+        System.out.println(String.format("Round trip: mean %d us, p50 %d us, p90 %d us, p99 %d us, p99.9 %d us, max %d us",
+                mRoundTrip.getMean(), mRoundTrip.getPercentile(50), mRoundTrip.getPercentile(90),
+                mRoundTrip.getPercentile(99), mRoundTrip.getPercentile(99.9), mRoundTrip.getMax()));
+        System.out.println("Max requests in flight per client: " + mMaxPending);
+        System.out.println("Reconnects: " + mReconnects);
+        System.out.println("Unknown frames, rows of lost replies included: " + mUnknown);
+    }
+
+    private int pending() {
+        int pending = 0;
+        for (int i = 0; i < mClients.size(); ++i)
+            pending += mClients.get(i).mPending.size();
+        return pending;
+    }
+
+    /* One connection, set up and fed the way CharmConnection does it */
+    private class Client implements FrameParser.FrameHandler {
+        private final PendingRequests mPending = new PendingRequests();
+        private final FrameParser mParser = new FrameParser(this, mPending);
+        private final LineDecoder mDecoder = new LineDecoder();
+        private final BinaryCodec mCodec = new BinaryCodec(mParser);
+        private final CommandBatch mBatch = new CommandBatch();
+        private final long mInterval;
+        private final long mOffset;
+        private CharmTransport mTransport;
+        private boolean mReady;
+        private long mNextRequest;
+        private long mRetryAt = -1;
+        private long mReplyEndAt = -1;
+        private int mCommand;
+
+        Client(int index, int clients) {
+            mInterval = 1000000000L / Math.max(1, mRate);
+
+            /* Spread the clients over one interval instead of sending in lockstep */
+            mOffset = mInterval * index / clients;
+        }
+
+        void connect(long now) {
+            mDecoder.reset();
+            mPending.clear();
+            mBatch.clear();
+            mBatch.setBinary(false);
+            mReady = false;
+            mRetryAt = -1;
+            mReplyEndAt = -1;
+            mNextRequest = now + mOffset;
+
+            try {
+                mTransport = CharmTransport.open(mSelector, mAddress, ConnectionProfile.DEFAULT);
+            } catch (IOException e) {
+                lost(now);
+            }
+        }
+
+        long getDeadline() {
+            if (mRetryAt != -1)
+                return mRetryAt;
+            if (mReplyEndAt != -1)
+                return mReady ? Math.min(mNextRequest, mReplyEndAt) : mReplyEndAt;
+            return mReady ? mNextRequest : Long.MAX_VALUE;
+        }
+
+        void tick(long now) {
+            if (mRetryAt != -1 && now >= mRetryAt) {
+                ++mReconnects;
+                connect(now);
+                return;
+            }
+
+            if (mReplyEndAt != -1 && now >= mReplyEndAt) {
+                mReplyEndAt = -1;
+                mParser.onBurstEnd();
+            }
+
+            if (!mReady || now < mNextRequest)
+                return;
+
+            while (mNextRequest <= now) {
+                switch (mCommand++ & 3) {
+                    case 0:
+                        mBatch.add(PendingRequests.COMMAND_STATUS, 0, 0, 0);
+                        break;
+                    case 1:
+                        mBatch.add(PendingRequests.COMMAND_RECENT, 0, mRandom.nextInt(mTasks), mWindow);
+                        break;
+                    case 2:
+                        mBatch.add(PendingRequests.COMMAND_START, mRandom.nextInt(mTasks), 0, 0);
+                        break;
+                    default:
+                        mBatch.add(PendingRequests.COMMAND_STOP, mRandom.nextInt(mTasks), 0, 0);
+                        break;
+                }
+                mNextRequest += mInterval;
+            }
+
+            mBatch.encode(mTransport.getWriteBuffer(), mPending);
+            mMaxPending = Math.max(mMaxPending, mPending.size());
+
+            try {
+                mTransport.flush();
+            } catch (IOException e) {
+                lost(now);
+            }
+        }
+
+        void onSelected() {
+            if (mTransport == null)
+                return;
+
+            try {
+                if (!mTransport.isConnected()) {
+                    if (mTransport.isConnectable(mSelector))
+                        mTransport.finishConnect();
+                    return;
+                }
+
+                if (mTransport.isReadable(mSelector)) {
+                    mBytesIn += mTransport.read(mDecoder, mParser);
+
+                    mReplyEndAt = -1;
+                    if (mTransport != null && !mTransport.isBinary() && !mDecoder.hasPartialLine()
+                            && mParser.hasOpenReply())
+                        mReplyEndAt = System.nanoTime() + REPLY_GAP;
+                }
+
+                if (mTransport != null && mTransport.isWritable(mSelector))
+                    mTransport.flush();
+            } catch (IOException e) {
+                lost(System.nanoTime());
+            }
+        }
+
+        void close() {
+            if (mTransport != null)
+                mTransport.close();
+            mTransport = null;
+        }
+
+        private void lost(long now) {
+            close();
+            mReady = false;
+            mRetryAt = now + 100000000L;
+        }
+
+        private void onAnswered(PendingRequests.Request request) {
+            mRoundTrip.record((System.nanoTime() - request.sentAt) / 1000);
+            ++mReplies;
+        }
+
+        @Override
+        public void onHello() {
+            try {
+                mTransport.write("READY"
+                        + ((mOptions & FrameParser.OPTION_BINARY) != 0 ? " BINARY" : "")
+                        + ((mOptions & FrameParser.OPTION_DEFLATE) != 0 ? " DEFLATE" : "") + "\n");
+            } catch (IOException e) {
+                lost(System.nanoTime());
+            }
+        }
+
+        @Override
+        public void onAck(int options) {
+            if (options != 0)
+                mDecoder.suspend();
+
+            if ((options & FrameParser.OPTION_DEFLATE) != 0)
+                mTransport.startInflating();
+
+            if ((options & FrameParser.OPTION_BINARY) != 0) {
+                mTransport.setCodec(mCodec);
+                mBatch.setBinary(true);
+            }
+
+            mReady = true;
+            mNextRequest = Math.max(mNextRequest, System.nanoTime());
+        }
+
+        @Override
+        public void onNak(PendingRequests.Request request) {
+            if (request == null)
+                return;
+
+            onAnswered(request);
+            ++mNaks;
+        }
+
+        @Override
+        public void onReplyComplete(PendingRequests.Request request) {
+            onAnswered(request);
+        }
+
+        @Override
+        public void onTaskActivated(long id, String name) {
+            ++mPushes;
+        }
+
+        @Override
+        public void onTaskDeactivated(long id, String name) {
+            ++mPushes;
+        }
+
+        @Override
+        public void onRecentTask(long id, String name, int index) {
+            ++mRows;
+        }
+
+        @Override
+        public void onTaskStatus(long id, int seconds) {
+            ++mRows;
+        }
+
+        @Override
+        public void onUnknownFrame(byte[] buffer, int start, int end) {
+            ++mUnknown;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.kdab.charm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Lines per second through the client's parsing path, a RECENT and a STATUS
+ * reply with LINES rows between them, collected into TaskRows the way
+ * CharmConnection does. With -prof gc, gc.alloc.rate.norm is per line.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseThroughputBenchmark {
+    private static final int LINES = 1000;
+
+    @Param({ "text", "binary" })
+    public String encoding;
+
+    private final PendingRequests mPending = new PendingRequests();
+    private final CollectingHandler mHandler = new CollectingHandler();
+    private final FrameParser mParser = new FrameParser(mHandler, mPending);
+    private final LineDecoder mDecoder = new LineDecoder();
+    private final BinaryCodec mCodec = new BinaryCodec(mParser);
+    private ByteBuffer mReplies;
+    private boolean mBinary;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mBinary = encoding.equals("binary");
+
+        mReplies = ByteBuffer.allocate(LINES * 128);
+        StandInServer.putRecent(mReplies, mBinary, 0, LINES / 2, LINES / 2);
+        StandInServer.putStatus(mReplies, mBinary, LINES / 2);
+        mReplies.flip();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public int parse() throws ProtocolException {
+        mPending.add(PendingRequests.COMMAND_RECENT, 0, 0, LINES / 2);
+        mPending.add(PendingRequests.COMMAND_STATUS, 0, 0, 0);
+        mReplies.rewind();
+
+        if (mBinary) {
+            mCodec.decode(mReplies);
+        } else {
+            mDecoder.feed(mReplies.array(), mReplies.arrayOffset(), mReplies.limit(), mParser);
+            mParser.onBurstEnd();
+        }
+
+        return mHandler.consume();
+    }
+
+    private static class CollectingHandler implements FrameParser.FrameHandler {
+        private final TaskRows mRows = new TaskRows();
+
+        int consume() {
+            int count = mRows.count;
+            mRows.clear();
+            return count;
+        }
+
+        @Override
+        public void onHello() {
+        }
+
+        @Override
+        public void onAck(int options) {
+        }
+
+        @Override
+        public void onNak(PendingRequests.Request request) {
+        }
+
+        @Override
+        public void onReplyComplete(PendingRequests.Request request) {
+        }
+
+        @Override
+        public void onTaskActivated(long id, String name) {
+            mRows.add(id, 0, name);
+        }
+
+        @Override
+        public void onTaskDeactivated(long id, String name) {
+            mRows.add(id, TaskRows.NOT_RUNNING, name);
+        }
+
+        @Override
+        public void onRecentTask(long id, String name, int index) {
+            mRows.add(id, index, name);
+        }
+
+        @Override
+        public void onTaskStatus(long id, int seconds) {
+            mRows.add(id, seconds, null);
+        }
+
+        @Override
+        public void onUnknownFrame(byte[] buffer, int start, int end) {
+        }
+    }
+}
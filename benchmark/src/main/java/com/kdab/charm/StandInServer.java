@@ -0,0 +1,650 @@
+package com.kdab.charm;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+/*
+ * A Charm stand-in for measurements and soak tests. Every client gets a
+ * session thread that speaks the text protocol or the binary framing and
+ * deflates replies depending on the handshake, and the server counts the
+ * bytes it writes. Task names repeat their project path like a team
+ * timesheet does, and the first `running` tasks are reported as running.
+ *
+ * The link can be made worse while clients are connected, from code, from
+ * name=value arguments or from a script of timed steps (see runScript()):
+ *
+ *   latency    milliseconds every reply and push burst is delayed by
+ *   bandwidth  bytes per second, 0 for unlimited
+ *   fragment   largest write in bytes, each one arriving as its own read
+ *   pushes     unsolicited TASK ACTIVATED/DEACTIVATED per second and client
+ *   running    tasks reported by STATUS
+ *   mute       1 to read requests without ever answering them
+ *   drop       closes every connection once
+ *   beacon     milliseconds between UDP discovery beacons, 0 for none
+ */
+class StandInServer implements Runnable {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String[] PROJECTS = {
+            "Administration / Meetings",
+            "Customer Projects / Automotive / Development",
+            "Customer Projects / Automotive / Support",
+            "Customer Projects / Medical / Development",
+            "Internal / Training / Preparation",
+            "Internal / Tooling",
+    };
+
+    /* Pushes are generated in bursts of this period */
+    private static final int PUSH_PERIOD = 10;
+
+    private final ServerSocketChannel mServer;
+    private final int mTasks;
+    private final AtomicLong mBytesWritten = new AtomicLong();
+    private final AtomicLong mPushesWritten = new AtomicLong();
+    private final List<Session> mSessions = new CopyOnWriteArrayList<>();
+
+    private volatile int mRunning;
+    private volatile int mLatency = 0;
+    private volatile int mBandwidth = 0;
+    private volatile int mFragment = 0;
+    private volatile int mPushRate = 0;
+    private volatile boolean mMute = false;
+    private volatile int mBeaconInterval = 0;
+    private volatile String mBeaconAddress = "255.255.255.255";
+    private Thread mBeacon;
+
+    public StandInServer(int port, int tasks, int running) throws IOException {
+        mServer = ServerSocketChannel.open();
+        mServer.socket().setReuseAddress(true);
+        mServer.socket().bind(new InetSocketAddress(port));
+        mTasks = tasks;
+        mRunning = running;
+    }
+
+    public int getPort() {
+        return mServer.socket().getLocalPort();
+    }
+
+    public long getBytesWritten() {
+        return mBytesWritten.get();
+    }
+
+    public void resetBytesWritten() {
+        mBytesWritten.set(0);
+    }
+
+    public long getPushesWritten() {
+        return mPushesWritten.get();
+    }
+
+    public int getSessions() {
+        return mSessions.size();
+    }
+
+    /* Applies one of the settings listed above, throws for unknown names */
+    public void set(String name, int value) {
+        if (name.equals("latency"))
+            mLatency = value;
+        else if (name.equals("bandwidth"))
+            mBandwidth = value;
+        else if (name.equals("fragment"))
+            mFragment = value;
+        else if (name.equals("pushes"))
+            mPushRate = value;
+        else if (name.equals("running"))
+            mRunning = value;
+        else if (name.equals("mute"))
+            mMute = value != 0;
+        else if (name.equals("drop"))
+            dropSessions();
+        else if (name.equals("beacon"))
+            setBeacon(value);
+        else
+            throw new IllegalArgumentException("Unknown setting " + name);
+    }
+
+    /* Where beacons go, the broadcast address unless a test listens on one host */
+    public void setBeaconAddress(String address) {
+        mBeaconAddress = address;
+    }
+
+    public void close() throws IOException {
+        mServer.close();
+        dropSessions();
+        setBeacon(0);
+    }
+
+    @Override
+    public void run() {
+        while (mServer.isOpen()) {
+            SocketChannel client;
+
+            try {
+                client = mServer.accept();
+            } catch (IOException e) {
+                return;
+            }
+
+            Session session = new Session(client);
+            mSessions.add(session);
+
+            Thread thread = new Thread(session, "StandInServer session");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /*
+     * Plays a script of "<seconds> <setting> <value>" lines, each at its time
+     * after the start, on the calling thread. # starts a comment:
+     *
+     *   0  latency 20
+     *   10 pushes  500   # a storm
+     *   20 pushes  0
+     *   30 drop    1
+     */
+    public void runScript(Reader script) throws IOException {
+        BufferedReader reader = new BufferedReader(script);
+        long start = System.currentTimeMillis();
+        String line;
+
+        while ((line = reader.readLine()) != null) {
+            int comment = line.indexOf('#');
+            if (comment != -1)
+                line = line.substring(0, comment);
+
+            String[] words = line.trim().split("\\s+");
+            if (words.length < 3)
+                continue;
+
+            long at = start + (long) (Double.parseDouble(words[0]) * 1000);
+            sleep(at - System.currentTimeMillis());
+
+            System.out.println("At " + words[0] + " s: " + words[1] + " " + words[2]);
+            set(words[1], Integer.parseInt(words[2]));
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 5323;
+        int tasks = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int running = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+
+        StandInServer server = new StandInServer(port, tasks, running);
+        String script = null;
+
+        /* Anything after the positional arguments is name=value */
+        for (int i = 3; i < args.length; ++i) {
+            String name = args[i].substring(0, args[i].indexOf('='));
+            String value = args[i].substring(name.length() + 1);
+
+            if (name.equals("script"))
+                script = value;
+            else if (name.equals("beaconAddress"))
+                server.setBeaconAddress(value);
+            else
+                server.set(name, Integer.parseInt(value));
+        }
+
+        System.out.println("Serving " + tasks + " tasks on port " + port);
+
+        if (script == null) {
+            server.run();
+            return;
+        }
+
+        Thread thread = new Thread(server, "StandInServer");
+        thread.setDaemon(true);
+        thread.start();
+
+        server.runScript(new FileReader(script));
+        System.out.println("Script finished");
+    }
+
+    /* The reply to "RECENT index count", also used to build benchmark input */
+    static void putRecent(ByteBuffer out, boolean binary, int index, int count, int tasks) {
+        int end = Math.min(tasks, index + count);
+
+        /* Text has no empty reply, past the end of the history is refused */
+        if (!binary && index >= end) {
+            out.put(text("NAK\n"));
+            return;
+        }
+
+        for (int id = index; id < end; ++id) {
+            if (binary) {
+                BinaryCodec.putTask(out, BinaryCodec.FRAME_RECENT_ROW, id, name(id));
+            } else {
+                out.put(text(id + " "));
+                out.put(name(id));
+                out.put((byte) '\n');
+            }
+        }
+
+        if (binary)
+            BinaryCodec.putEmpty(out, BinaryCodec.FRAME_END);
+    }
+
+    static void putStatus(ByteBuffer out, boolean binary, int running) {
+        if (running == 0) {
+            if (binary)
+                BinaryCodec.putEmpty(out, BinaryCodec.FRAME_NAK);
+            else
+                out.put(text("NAK\n"));
+            return;
+        }
+
+        for (int id = 0; id < running; ++id) {
+            int seconds = 60 * id + 5;
+
+            if (binary)
+                BinaryCodec.putStatusRow(out, id, seconds);
+            else
+                out.put(text(id + " " + seconds + "\n"));
+        }
+
+        if (binary)
+            BinaryCodec.putEmpty(out, BinaryCodec.FRAME_END);
+    }
+
+    static void putPush(ByteBuffer out, boolean binary, boolean activated, long id) {
+        if (binary) {
+            BinaryCodec.putTask(out, activated ? BinaryCodec.FRAME_TASK_ACTIVATED
+                    : BinaryCodec.FRAME_TASK_DEACTIVATED, id, name(id));
+        } else {
+            out.put(text(activated ? "TASK ACTIVATED " : "TASK DEACTIVATED "));
+            out.put(text(id + " "));
+            out.put(name(id));
+            out.put((byte) '\n');
+        }
+    }
+
+    private static byte[] name(long id) {
+        return (PROJECTS[(int) (id % PROJECTS.length)] + " / Task " + id).getBytes(UTF8);
+    }
+
+    private static byte[] text(String text) {
+        return text.getBytes(UTF8);
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0)
+            return;
+
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void dropSessions() {
+        for (Session session : mSessions)
+            session.close();
+    }
+
+    private synchronized void setBeacon(int interval) {
+        mBeaconInterval = interval;
+
+        if (interval > 0 && mBeacon == null) {
+            mBeacon = new Thread(new Beacon(), "StandInServer beacon");
+            mBeacon.setDaemon(true);
+            mBeacon.start();
+        } else if (interval <= 0 && mBeacon != null) {
+            mBeacon.interrupt();
+            mBeacon = null;
+        }
+    }
+
+    /* Charm's discovery beacon, the client only looks at where it came from */
+    private class Beacon implements Runnable {
+        @Override
+        public void run() {
+            DatagramSocket socket = null;
+            byte[] beacon = text("CHARM\n");
+
+            try {
+                socket = new DatagramSocket();
+                socket.setBroadcast(true);
+
+                while (!Thread.currentThread().isInterrupted() && mBeaconInterval > 0) {
+                    socket.send(new DatagramPacket(beacon, beacon.length,
+                            InetAddress.getByName(mBeaconAddress), getPort()));
+                    sleep(mBeaconInterval);
+                }
+            } catch (IOException e) {
+                System.out.println("Stopped sending beacons: " + e.getMessage());
+            } finally {
+                if (socket != null)
+                    socket.close();
+            }
+        }
+    }
+
+    /* Bytes on their way to the client, written once they are due */
+    private static class Delayed {
+        final long due;
+        final ByteBuffer data;
+
+        Delayed(long due, ByteBuffer data) {
+            this.due = due;
+            this.data = data;
+        }
+    }
+
+    /*
+     * One client: a reader answering requests, a pusher, and a writer that
+     * plays the link, so replies in flight are delayed together instead of
+     * one after another.
+     */
+    private class Session implements Runnable {
+        private final SocketChannel mClient;
+        private final BlockingQueue<Delayed> mLink = new LinkedBlockingQueue<>();
+        private final ByteBuffer mIn = ByteBuffer.allocate(4096);
+        private final ByteBuffer mOut = ByteBuffer.allocate(1 << 20);
+        private final ByteBuffer mPushes = ByteBuffer.allocate(1 << 16);
+        private final ByteBuffer mDeflated = ByteBuffer.allocate((1 << 20) + (1 << 16));
+        private final Random mRandom = new Random();
+        private Deflater mDeflater;
+        private volatile boolean mBinary;
+
+        Session(SocketChannel client) {
+            mClient = client;
+        }
+
+        @Override
+        public void run() {
+            Thread pusher = null;
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    transmit();
+                }
+            }, "StandInServer writer");
+            writer.setDaemon(true);
+
+            try {
+                /* Replies go out one write each, Nagle would hold the next one for an ACK */
+                mClient.socket().setTcpNoDelay(true);
+
+                writer.start();
+                handshake();
+
+                pusher = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        push();
+                    }
+                }, "StandInServer pusher");
+                pusher.setDaemon(true);
+                pusher.start();
+
+                serve();
+            } catch (IOException e) {
+                /* Client went away or was dropped */
+            } finally {
+                if (pusher != null)
+                    pusher.interrupt();
+                writer.interrupt();
+                close();
+                mSessions.remove(this);
+
+                synchronized (this) {
+                    if (mDeflater != null)
+                        mDeflater.end();
+                    mDeflater = null;
+                }
+            }
+        }
+
+        void close() {
+            try {
+                mClient.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void handshake() throws IOException {
+            mOut.clear();
+            mOut.put(text("HELLO\n"));
+            send(mOut);
+
+            /* Every option the client offers is accepted */
+            String ready = readLine();
+            boolean deflate = ready.contains(" DEFLATE");
+            boolean ping = ready.contains(" PING");
+
+            mOut.clear();
+            mOut.put(text("ACK" + (ready.contains(" BINARY") ? " BINARY" : "") + (deflate ? " DEFLATE" : "")
+                    + (ping ? " PING" : "") + "\n"));
+            send(mOut);
+
+            /* Pushes may follow right away, so both only apply from here on */
+            synchronized (this) {
+                mBinary = ready.contains(" BINARY");
+                if (deflate)
+                    mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            }
+        }
+
+        private void serve() throws IOException {
+            while (true) {
+                mOut.clear();
+
+                if (mBinary) {
+                    if (!handleBinary())
+                        return;
+                } else {
+                    if (!handleText(readLine()))
+                        return;
+                }
+
+                if (!mMute)
+                    send(mOut);
+            }
+        }
+
+        /* Bursts every PUSH_PERIOD, carrying over what a low rate owes between them */
+        private void push() {
+            long owed = 0;
+            boolean activated = true;
+
+            while (!Thread.currentThread().isInterrupted() && mClient.isOpen()) {
+                sleep(PUSH_PERIOD);
+                owed += mPushRate * PUSH_PERIOD;
+
+                int pushes = (int) (owed / 1000);
+                owed %= 1000;
+                if (pushes == 0 || mMute)
+                    continue;
+
+                try {
+                    synchronized (this) {
+                        mPushes.clear();
+                        for (int i = 0; i < pushes && mPushes.remaining() > 256; ++i) {
+                            putPush(mPushes, mBinary, activated, mRandom.nextInt(mTasks));
+                            activated = !activated;
+                            mPushesWritten.incrementAndGet();
+                        }
+                        send(mPushes);
+                    }
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        /* One sync flush per reply, so the client can inflate it without waiting for more */
+        private synchronized void send(ByteBuffer out) throws IOException {
+            out.flip();
+            ByteBuffer data = out;
+
+            if (mDeflater != null) {
+                mDeflater.setInput(out.array(), out.arrayOffset() + out.position(), out.remaining());
+                mDeflated.clear();
+
+                int deflated = mDeflater.deflate(mDeflated.array(), 0, mDeflated.capacity(), Deflater.SYNC_FLUSH);
+                if (deflated == mDeflated.capacity())
+                    throw new IOException("Reply does not fit the deflate buffer");
+
+                mDeflated.limit(deflated);
+                data = mDeflated;
+            }
+
+            ByteBuffer copy = ByteBuffer.wrap(Arrays.copyOfRange(data.array(),
+                    data.arrayOffset() + data.position(), data.arrayOffset() + data.limit()));
+            mLink.add(new Delayed(System.currentTimeMillis() + mLatency, copy));
+        }
+
+        private void transmit() {
+            try {
+                while (true) {
+                    Delayed delayed = mLink.take();
+                    sleep(delayed.due - System.currentTimeMillis());
+                    write(delayed.data);
+                }
+            } catch (InterruptedException e) {
+                /* Session ended */
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        /* Cuts data into fragments and paces them to the bandwidth, in slices of 10 ms at most */
+        private void write(ByteBuffer data) throws IOException {
+            while (data.hasRemaining()) {
+                int fragment = mFragment;
+                int bandwidth = mBandwidth;
+
+                int chunk = data.remaining();
+                if (fragment > 0)
+                    chunk = Math.min(chunk, fragment);
+                if (bandwidth > 0)
+                    chunk = Math.min(chunk, Math.max(1, bandwidth / 100));
+
+                int limit = data.limit();
+                data.limit(data.position() + chunk);
+                while (data.hasRemaining())
+                    mBytesWritten.addAndGet(mClient.write(data));
+                data.limit(limit);
+
+                if (bandwidth > 0)
+                    sleep(chunk * 1000L / bandwidth);
+                else if (fragment > 0 && data.hasRemaining())
+                    sleep(1);
+            }
+        }
+
+        private boolean handleText(String line) {
+            String[] words = line.split(" ");
+
+            if (words[0].equals("BYE"))
+                return false;
+            else if (words[0].equals("START") || words[0].equals("STOP"))
+                putPush(mOut, false, words[0].equals("START"), Long.parseLong(words[1]));
+            else if (words[0].equals("RECENT"))
+                putRecent(mOut, false, Integer.parseInt(words[1]), Integer.parseInt(words[2]), mTasks);
+            else if (words[0].equals("STATUS"))
+                putStatus(mOut, false, mRunning);
+            else if (words[0].equals("PING"))
+                mOut.put(text("PONG\n"));
+            else
+                mOut.put(text("NAK\n"));
+
+            return true;
+        }
+
+        private boolean handleBinary() throws IOException {
+            int length = (int) readVarint();
+            byte type = readByte();
+
+            switch (type) {
+                case BinaryCodec.FRAME_BYE:
+                    return false;
+
+                case BinaryCodec.FRAME_START:
+                case BinaryCodec.FRAME_STOP:
+                    putPush(mOut, true, type == BinaryCodec.FRAME_START, readVarint());
+                    break;
+
+                case BinaryCodec.FRAME_RECENT:
+                    int index = (int) readVarint();
+                    putRecent(mOut, true, index, (int) readVarint(), mTasks);
+                    break;
+
+                case BinaryCodec.FRAME_STATUS:
+                    putStatus(mOut, true, mRunning);
+                    break;
+
+                case BinaryCodec.FRAME_PING:
+                    BinaryCodec.putEmpty(mOut, BinaryCodec.FRAME_PONG);
+                    break;
+
+                default:
+                    for (int i = 1; i < length; ++i)
+                        readByte();
+                    BinaryCodec.putEmpty(mOut, BinaryCodec.FRAME_NAK);
+                    break;
+            }
+
+            return true;
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+
+            byte b;
+            while ((b = readByte()) != '\n') {
+                if (b != '\r')
+                    line.append((char) b);
+            }
+
+            return line.toString();
+        }
+
+        private long readVarint() throws IOException {
+            long value = 0;
+
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = readByte();
+                value |= (long) (b & 0x7f) << shift;
+                if (b >= 0)
+                    return value;
+            }
+
+            throw new IOException("Varint too long");
+        }
+
+        private byte readByte() throws IOException {
+            if (mIn.position() == 0 || !mIn.flip().hasRemaining()) {
+                mIn.clear();
+                if (mClient.read(mIn) == -1)
+                    throw new EOFException();
+                mIn.flip();
+            }
+
+            byte b = mIn.get();
+            mIn.compact();
+            return b;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.kdab.charm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Events per second through TaskList, the model TaskAdapter renders:
+ * activations moving a task to the top, and STATUS replies applied a frame
+ * at a time. Events go through the CharmEvent pool like on the device, so
+ * with -prof gc gc.alloc.rate.norm is per activation or per status row.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TaskListBenchmark {
+    private static final String SOURCE = "desktop:5323";
+    private static final int STATUS_ROWS = 100;
+    private static final String[] NAMES = {
+            "Administration / Meetings",
+            "Customer Projects / Automotive / Development",
+            "Internal / Tooling",
+    };
+
+    @Param({ "100", "10000", "1000000" })
+    public int tasks;
+
+    private final TaskList.RecentListener mListener = new TaskList.RecentListener() {
+        @Override
+        public void onRecentTask(Task task, int index) {
+        }
+    };
+    private TaskList mList;
+    private TaskList.Source mSource;
+    private long[] mIds;
+    private int mNext;
+    private long mNow;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mList = new TaskList(mListener, tasks);
+        mList.setServers(Arrays.asList(SOURCE));
+        mSource = mList.findSource(SOURCE);
+
+        TaskRows rows = new TaskRows();
+        for (int i = 0; i < tasks; ++i)
+            rows.add(i, 0, NAMES[i % NAMES.length], SOURCE);
+        mList.addCached(rows);
+
+        Random random = new Random(42);
+        mIds = new long[4096];
+        for (int i = 0; i < mIds.length; ++i)
+            mIds[i] = random.nextInt(tasks);
+    }
+
+    private long nextId() {
+        return mIds[mNext++ & (mIds.length - 1)];
+    }
+
+    @Benchmark
+    public int activate() {
+        CharmEvent event = CharmEvent.obtain(CharmEvent.TASK_ACTIVATED);
+        event.taskId = nextId();
+
+        int position = mList.activate(mSource, event.taskId, event.name, ++mNow);
+        event.recycle();
+        return position;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(STATUS_ROWS)
+    public int status() {
+        CharmEvent event = CharmEvent.obtain(CharmEvent.TASK_STATUS);
+        for (int i = 0; i < STATUS_ROWS; ++i)
+            event.rows.add(nextId(), (i & 1) == 0 ? i : TaskRows.NOT_RUNNING, null);
+
+        mList.addStatus(mSource, event.rows);
+        event.recycle();
+        return mList.apply(++mNow);
+    }
+}
@@ -0,0 +1,114 @@
+package com.kdab.charm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/* TaskStore against the ArrayList + HashMap<Long, Task> pair TaskAdapter used to keep */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TaskStoreBenchmark {
+    @Param({ "100", "10000", "100000" })
+    public int tasks;
+
+    private TaskStore mStore;
+    private List<Task> mList;
+    private Map<Long, Task> mById;
+    private long[] mIds;
+    private int mNext;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        mStore = new TaskStore();
+        mList = new ArrayList<>();
+        mById = new HashMap<>();
+        mIds = new long[4096];
+
+        for (int i = 0; i < tasks; ++i) {
+            Task task = new Task(10000 + i, "Task " + i);
+            mStore.addLast(task);
+            mList.add(task);
+            mById.put(task.id, task);
+        }
+
+        Random random = new Random(42);
+        for (int i = 0; i < mIds.length; ++i)
+            mIds[i] = 10000 + random.nextInt(tasks);
+    }
+
+    private long nextId() {
+        return mIds[mNext++ & (mIds.length - 1)];
+    }
+
+    @Benchmark
+    public Task lookupStore() {
+        return mStore.get(nextId());
+    }
+
+    @Benchmark
+    public Task lookupLegacy() {
+        long id = nextId();
+        if (mById.containsKey(id))
+            return mById.get(id);
+        return null;
+    }
+
+    @Benchmark
+    public Task activateStore() {
+        Task task = mStore.get(nextId());
+        mStore.addFirst(task);
+        task.active = true;
+        return task;
+    }
+
+    @Benchmark
+    public Task activateLegacy() {
+        Task task = mById.get(nextId());
+        mList.remove(task);
+        task.active = true;
+        mList.add(0, task);
+        return task;
+    }
+
+    @Benchmark
+    public Task recentAppendStore() {
+        Task task = mStore.get(nextId());
+        mStore.addLast(task);
+        return task;
+    }
+
+    @Benchmark
+    public Task recentAppendLegacy() {
+        Task task = mById.get(nextId());
+        mList.remove(task);
+        mList.add(task);
+        return task;
+    }
+
+    /* What a list bind costs right after an activation reordered the store */
+    @Benchmark
+    public Task activateAndBindStore() {
+        mStore.addFirst(mStore.get(nextId()));
+        return mStore.getAt(tasks / 2);
+    }
+}
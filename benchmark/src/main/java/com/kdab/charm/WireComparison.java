@@ -0,0 +1,168 @@
+package com.kdab.charm;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.Selector;
+
+/*
+ * Runs the client's transport and parser against a local StandInServer with
+ * every combination of handshake options and reports bytes on the wire and
+ * round trip time for a RECENT plus a STATUS request.
+ *
+ * ./gradlew :benchmark:wire -Pwire='1000 200'  (rows, rounds)
+ */
+public class WireComparison implements FrameParser.FrameHandler {
+    private final PendingRequests mPending = new PendingRequests();
+    private final FrameParser mParser = new FrameParser(this, mPending);
+    private final LineDecoder mDecoder = new LineDecoder();
+    private final BinaryCodec mCodec = new BinaryCodec(mParser);
+    private final CommandBatch mBatch = new CommandBatch();
+    private CharmTransport mTransport;
+    private boolean mHello = false;
+    private boolean mAck = false;
+    private int mCompleted = 0;
+
+    public static void main(String[] args) throws IOException {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        StandInServer server = new StandInServer(0, rows, 2);
+        Thread thread = new Thread(server, "StandInServer");
+        thread.setDaemon(true);
+        thread.start();
+
+        String[] names = { "text", "binary", "text + deflate", "binary + deflate" };
+
+        /* The first pass warms up every path */
+        for (int pass = 0; pass < 2; ++pass) {
+            for (int options = 0; options < names.length; ++options) {
+                server.resetBytesWritten();
+                long elapsed = new WireComparison().run(server.getPort(), options, rows, rounds);
+
+                if (pass == 1) {
+                    System.out.println(String.format("%-16s: %7d bytes per round, %5d us per round",
+                            names[options], server.getBytesWritten() / rounds, elapsed / rounds / 1000));
+                }
+            }
+        }
+
+        server.close();
+    }
+
+    private long run(int port, int options, int rows, int rounds) throws IOException {
+        Selector selector = Selector.open();
+        mTransport = CharmTransport.open(selector, new InetSocketAddress("127.0.0.1", port), ConnectionProfile.DEFAULT);
+
+        try {
+            while (!mTransport.isConnected()) {
+                selector.select();
+                if (mTransport.isConnectable(selector))
+                    mTransport.finishConnect();
+                selector.selectedKeys().clear();
+            }
+
+            while (!mHello)
+                poll(selector);
+            mTransport.write("READY"
+                    + ((options & FrameParser.OPTION_BINARY) != 0 ? " BINARY" : "")
+                    + ((options & FrameParser.OPTION_DEFLATE) != 0 ? " DEFLATE" : "") + "\n");
+
+            while (!mAck)
+                poll(selector);
+
+            long start = System.nanoTime();
+
+            for (int i = 0; i < rounds; ++i) {
+                mBatch.add(PendingRequests.COMMAND_RECENT, 0, 0, rows);
+                mBatch.add(PendingRequests.COMMAND_STATUS, 0, 0, 0);
+
+                /* In text the STATUS only goes out once the RECENT reply is complete */
+                mCompleted = 0;
+                while (mCompleted < 2) {
+                    if (!mBatch.isEmpty()) {
+                        mBatch.encode(mTransport.getWriteBuffer(), mPending);
+                        mTransport.flush();
+                    }
+                    poll(selector);
+                }
+            }
+
+            long elapsed = System.nanoTime() - start;
+
+            if (mTransport.isBinary())
+                BinaryCodec.putBye(mTransport.getWriteBuffer());
+            else
+                mTransport.getWriteBuffer().put((byte) 'B').put((byte) 'Y').put((byte) 'E').put((byte) '\n');
+            mTransport.flush();
+
+            return elapsed;
+        } finally {
+            mTransport.close();
+            selector.close();
+        }
+    }
+
+    private void poll(Selector selector) throws IOException {
+        selector.select();
+
+        if (mTransport.isReadable(selector)) {
+            mTransport.read(mDecoder, mParser);
+
+            /* RECENT completes on its row count, only the STATUS reply needs the heuristic */
+            if (!mTransport.isBinary() && mCompleted == 1)
+                mParser.onBurstEnd();
+        }
+
+        selector.selectedKeys().clear();
+    }
+
+    @Override
+    public void onHello() {
+        mHello = true;
+    }
+
+    @Override
+    public void onAck(int options) {
+        if (options != 0)
+            mDecoder.suspend();
+
+        if ((options & FrameParser.OPTION_DEFLATE) != 0)
+            mTransport.startInflating();
+
+        if ((options & FrameParser.OPTION_BINARY) != 0) {
+            mTransport.setCodec(mCodec);
+            mBatch.setBinary(true);
+        }
+        mAck = true;
+    }
+
+    @Override
+    public void onNak(PendingRequests.Request request) {
+        ++mCompleted;
+    }
+
+    @Override
+    public void onReplyComplete(PendingRequests.Request request) {
+        ++mCompleted;
+    }
+
+    @Override
+    public void onTaskActivated(long id, String name) {
+    }
+
+    @Override
+    public void onTaskDeactivated(long id, String name) {
+    }
+
+    @Override
+    public void onRecentTask(long id, String name, int index) {
+    }
+
+    @Override
+    public void onTaskStatus(long id, int seconds) {
+    }
+
+    @Override
+    public void onUnknownFrame(byte[] buffer, int start, int end) {
+    }
+}
@@ -0,0 +1,160 @@
+package com.kdab.charm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+ * Client side cost of a RECENT plus a STATUS reply as StandInServer writes
+ * them. Deflated replies are the first of their stream, the dearest case.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WireProtocolBenchmark {
+    @Param({ "text", "binary" })
+    public String encoding;
+
+    @Param({ "none", "deflate" })
+    public String compression;
+
+    @Param({ "10", "100", "1000" })
+    public int rows;
+
+    private final PendingRequests mPending = new PendingRequests();
+    private final CountingHandler mHandler = new CountingHandler();
+    private final FrameParser mParser = new FrameParser(mHandler, mPending);
+    private final LineDecoder mDecoder = new LineDecoder();
+    private final BinaryCodec mCodec = new BinaryCodec(mParser);
+    private final Inflater mInflater = new Inflater(true);
+    private ByteBuffer mReply;
+    private ByteBuffer mInflated;
+    private boolean mBinary;
+    private boolean mDeflate;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mBinary = encoding.equals("binary");
+        mDeflate = compression.equals("deflate");
+
+        ByteBuffer out = ByteBuffer.allocate(rows * 128 + 256);
+        StandInServer.putRecent(out, mBinary, 0, rows, rows);
+        StandInServer.putStatus(out, mBinary, 2);
+        out.flip();
+
+        mInflated = ByteBuffer.allocate(out.capacity());
+        mReply = out;
+
+        if (mDeflate) {
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            byte[] deflated = new byte[out.capacity()];
+
+            deflater.setInput(out.array(), 0, out.limit());
+            mReply = ByteBuffer.wrap(deflated, 0, deflater.deflate(deflated, 0, deflated.length, Deflater.SYNC_FLUSH));
+            deflater.end();
+        }
+
+        System.out.println(encoding + ", " + compression + ": " + mReply.remaining() + " bytes for " + rows + " rows");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mInflater.end();
+    }
+
+    @Benchmark
+    public int parse() throws DataFormatException, ProtocolException {
+        mPending.add(PendingRequests.COMMAND_RECENT, 0, 0, rows);
+        mPending.add(PendingRequests.COMMAND_STATUS, 0, 0, 0);
+
+        ByteBuffer reply = mReply;
+        reply.rewind();
+
+        if (mDeflate) {
+            mInflater.reset();
+            mInflater.setInput(reply.array(), 0, reply.limit());
+
+            mInflated.clear();
+            mInflated.limit(mInflater.inflate(mInflated.array()));
+            reply = mInflated;
+        }
+
+        if (mBinary) {
+            mCodec.decode(reply);
+        } else {
+            mDecoder.feed(reply.array(), reply.arrayOffset(), reply.limit(), mParser);
+            mParser.onBurstEnd();
+        }
+
+        return mHandler.consume();
+    }
+
+    private static class CountingHandler implements FrameParser.FrameHandler {
+        private int mSeen;
+
+        int consume() {
+            int seen = mSeen;
+            mSeen = 0;
+            return seen;
+        }
+
+        @Override
+        public void onHello() {
+        }
+
+        @Override
+        public void onAck(int options) {
+        }
+
+        @Override
+        public void onNak(PendingRequests.Request request) {
+        }
+
+        @Override
+        public void onReplyComplete(PendingRequests.Request request) {
+            ++mSeen;
+        }
+
+        @Override
+        public void onTaskActivated(long id, String name) {
+        }
+
+        @Override
+        public void onTaskDeactivated(long id, String name) {
+        }
+
+        @Override
+        public void onRecentTask(long id, String name, int index) {
+            mSeen += name.length();
+        }
+
+        @Override
+        public void onTaskStatus(long id, int seconds) {
+            mSeen += seconds;
+        }
+
+        @Override
+        public void onUnknownFrame(byte[] buffer, int start, int end) {
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package com.kdab.charm;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/*
+ * Length-prefixed binary framing, used once "READY BINARY" has been answered
+ * with "ACK BINARY". A frame is a varint length, a type byte and the payload.
+ * Ids, indexes and durations are unsigned LEB128 varints, names are the UTF-8
+ * rest of the frame. Unlike the text protocol every reply ends with END.
+ */
+class BinaryCodec {
+    public static final int MAX_FRAME = 1024;
+
+    /* Server to client */
+    public static final byte FRAME_NAK              = 0x01;
+    public static final byte FRAME_END              = 0x02;
+    public static final byte FRAME_PONG             = 0x03;
+    public static final byte FRAME_TASK_ACTIVATED   = 0x10;
+    public static final byte FRAME_TASK_DEACTIVATED = 0x11;
+    public static final byte FRAME_RECENT_ROW       = 0x12;
+    public static final byte FRAME_STATUS_ROW       = 0x13;
+
+    /* Client to server */
+    public static final byte FRAME_START  = 0x20;
+    public static final byte FRAME_STOP   = 0x21;
+    public static final byte FRAME_RECENT = 0x22;
+    public static final byte FRAME_STATUS = 0x23;
+    public static final byte FRAME_BYE    = 0x24;
+    public static final byte FRAME_PING   = 0x25;
+
+    private final FrameParser mParser;
+    private final TaskNameDictionary mNames;
+    private byte[] mScratch = new byte[64];
+    private long mNumber;
+
+    public BinaryCodec(FrameParser parser) {
+        mParser = parser;
+        mNames = parser.getNames();
+    }
+
+    /* Decodes every complete frame, a partial one is left at the buffer's position */
+    public void decode(ByteBuffer in) throws ProtocolException {
+        while (in.hasRemaining()) {
+            int frameStart = in.position();
+
+            if (!readVarint(in)) {
+                in.position(frameStart);
+                return;
+            }
+
+            if (mNumber == 0 || mNumber > MAX_FRAME)
+                throw new ProtocolException("Bad frame length " + mNumber);
+
+            int length = (int) mNumber;
+            if (in.remaining() < length) {
+                in.position(frameStart);
+                return;
+            }
+
+            int end = in.position() + length;
+            decodeFrame(in, end);
+            in.position(end);
+        }
+    }
+
+    private void decodeFrame(ByteBuffer in, int end) throws ProtocolException {
+        int start = in.position();
+        byte type = in.get();
+        boolean routed = true;
+
+        switch (type) {
+            case FRAME_NAK:
+                mParser.onNak();
+                break;
+
+            case FRAME_END:
+                mParser.onReplyEnd();
+                break;
+
+            case FRAME_PONG:
+                mParser.onPong();
+                break;
+
+            case FRAME_TASK_ACTIVATED:
+            case FRAME_TASK_DEACTIVATED:
+                long id = number(in, end);
+                mParser.onPush(type == FRAME_TASK_ACTIVATED, id, name(id, in, end));
+                break;
+
+            case FRAME_RECENT_ROW:
+                long row = number(in, end);
+                routed = mParser.onRecentRow(row, name(row, in, end));
+                break;
+
+            case FRAME_STATUS_ROW:
+                long task = number(in, end);
+                long seconds = number(in, end);
+                routed = seconds <= Integer.MAX_VALUE && mParser.onStatusRow(task, (int) seconds);
+                break;
+
+            default:
+                routed = false;
+                break;
+        }
+
+        if (!routed)
+            mParser.onUnknownFrame(bytes(in, start, end), 0, end - start);
+    }
+
+    private long number(ByteBuffer in, int end) throws ProtocolException {
+        if (!readVarint(in) || in.position() > end)
+            throw new ProtocolException("Truncated varint");
+        return mNumber;
+    }
+
+    private String name(long id, ByteBuffer in, int end) {
+        int length = end - in.position();
+
+        if (in.hasArray()) {
+            int start = in.arrayOffset() + in.position();
+            return mNames.get(id, in.array(), start, start + length);
+        }
+        return mNames.get(id, bytes(in, in.position(), end), 0, length);
+    }
+
+    private byte[] bytes(ByteBuffer in, int start, int end) {
+        if (mScratch.length < end - start)
+            mScratch = new byte[Math.max(mScratch.length * 2, end - start)];
+
+        int position = in.position();
+        in.position(start);
+        in.get(mScratch, 0, end - start);
+        in.position(position);
+
+        return mScratch;
+    }
+
+    /* Reads a varint into mNumber, false when the buffer ends before it does */
+    private boolean readVarint(ByteBuffer in) throws ProtocolException {
+        long value = 0;
+
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (!in.hasRemaining())
+                return false;
+
+            byte b = in.get();
+            value |= (long) (b & 0x7f) << shift;
+
+            if (b >= 0) {
+                mNumber = value;
+                return true;
+            }
+        }
+
+        throw new ProtocolException("Varint too long");
+    }
+
+    /* Commands take at most 2 + 2 * 10 bytes, see CommandBatch */
+    public static void putCommand(ByteBuffer out, int command, long task, int index, int count) {
+        switch (command) {
+            case PendingRequests.COMMAND_START:
+                putVarint(out, 1 + varintSize(task));
+                out.put(FRAME_START);
+                putVarint(out, task);
+                break;
+
+            case PendingRequests.COMMAND_STOP:
+                putVarint(out, 1 + varintSize(task));
+                out.put(FRAME_STOP);
+                putVarint(out, task);
+                break;
+
+            case PendingRequests.COMMAND_RECENT:
+                putVarint(out, 1 + varintSize(index) + varintSize(count));
+                out.put(FRAME_RECENT);
+                putVarint(out, index);
+                putVarint(out, count);
+                break;
+
+            case PendingRequests.COMMAND_STATUS:
+                putVarint(out, 1);
+                out.put(FRAME_STATUS);
+                break;
+
+            case PendingRequests.COMMAND_PING:
+                putVarint(out, 1);
+                out.put(FRAME_PING);
+                break;
+        }
+    }
+
+    public static void putBye(ByteBuffer out) {
+        putVarint(out, 1);
+        out.put(FRAME_BYE);
+    }
+
+    /* Server side frames, for stand-in servers and tests */
+    public static void putTask(ByteBuffer out, byte type, long id, byte[] name) {
+        putVarint(out, 1 + varintSize(id) + name.length);
+        out.put(type);
+        putVarint(out, id);
+        out.put(name);
+    }
+
+    public static void putStatusRow(ByteBuffer out, long id, int seconds) {
+        putVarint(out, 1 + varintSize(id) + varintSize(seconds));
+        out.put(FRAME_STATUS_ROW);
+        putVarint(out, id);
+        putVarint(out, seconds);
+    }
+
+    public static void putEmpty(ByteBuffer out, byte type) {
+        putVarint(out, 1);
+        out.put(type);
+    }
+
+    public static void putVarint(ByteBuffer out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    public static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7fL) != 0) {
+            value >>>= 7;
+            ++size;
+        }
+        return size;
+    }
+}
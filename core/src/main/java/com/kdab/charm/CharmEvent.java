@@ -0,0 +1,82 @@
+package com.kdab.charm;
+
+class CharmEvent {
+    public static final int TASK_ACTIVATED         = 1;
+    public static final int TASK_DEACTIVATED       = 2;
+    public static final int TASK_RECENT            = 3;
+    public static final int TASK_STATUS            = 4;
+    public static final int CONNECTION_ESTABLISHED = 5;
+    public static final int CONNECTION_CLOSED      = 6;
+    public static final int CONNECTION_LOST        = 7;
+    public static final int CONNECTION_DISCOVERY   = 8;
+    public static final int CONNECTION_DISCOVERED  = 9;
+    public static final int COMMAND_REFUSED        = 10;
+    public static final int COMMAND_WITHDRAWN      = 11;
+
+    private static final int MAX_POOL_SIZE = 64;
+    private static final Object sPoolLock = new Object();
+    private static CharmEvent sPool;
+    private static int sPoolSize = 0;
+
+    public int type;
+    public long taskId;
+    public String name;
+    public String hostname;
+
+    /* The host:port key of the server the event came from */
+    public String source;
+
+    /* TASK_RECENT and TASK_STATUS carry a whole reply at once */
+    public final TaskRows rows = new TaskRows();
+
+    /* The RECENT window a TASK_RECENT reply answers, rows may hold fewer */
+    public int index;
+    public int count;
+
+    /* The PendingRequests command a COMMAND_REFUSED answers, START or STOP of taskId */
+    public int command;
+
+    private CharmEvent mNext;
+
+    private CharmEvent() {
+    }
+
+    public static CharmEvent obtain(int type) {
+        CharmEvent event = null;
+
+        synchronized (sPoolLock) {
+            if (sPool != null) {
+                event = sPool;
+                sPool = event.mNext;
+                event.mNext = null;
+                --sPoolSize;
+            }
+        }
+
+        if (event == null)
+            event = new CharmEvent();
+
+        event.type = type;
+        return event;
+    }
+
+    public void recycle() {
+        type = 0;
+        taskId = 0;
+        name = null;
+        hostname = null;
+        source = null;
+        rows.clear();
+        index = 0;
+        count = 0;
+        command = 0;
+
+        synchronized (sPoolLock) {
+            if (sPoolSize < MAX_POOL_SIZE) {
+                mNext = sPool;
+                sPool = this;
+                ++sPoolSize;
+            }
+        }
+    }
+}
@@ -0,0 +1,5 @@
+package com.kdab.charm;
+
+interface CharmEventListener {
+    public void onCharmEvent(CharmEvent event);
+}
@@ -0,0 +1,151 @@
+package com.kdab.charm;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Process-wide counters and latency histograms for the client thread, the
+ * service and the task list. Everything is recorded lock-free and without
+ * allocation, so the hot paths record unconditionally; dump() is the only
+ * part that builds strings, for the service dump and DiagnosticsActivity.
+ */
+class CharmMetrics {
+    private static CharmMetrics sInstance;
+
+    /* Request to reply, microseconds */
+    private final LatencyHistogram mRoundTrip = new LatencyHistogram();
+
+    /* From post() to the client thread picking the command up, milliseconds */
+    private final LatencyHistogram mQueueWait = new LatencyHistogram();
+
+    /* One full onBindViewHolder(), microseconds */
+    private final LatencyHistogram mBindTime = new LatencyHistogram();
+
+    /* From a tap on a row to the row showing its new state, microseconds */
+    private final LatencyHistogram mTapToRow = new LatencyHistogram();
+
+    /* From a tap to the server's push confirming it, milliseconds */
+    private final LatencyHistogram mTapToConfirm = new LatencyHistogram();
+
+    private final AtomicLong mBytesIn = new AtomicLong();
+    private final AtomicLong mBytesOut = new AtomicLong();
+    private final AtomicLong mParseErrors = new AtomicLong();
+    private final AtomicLong mReconnects = new AtomicLong();
+    private final AtomicLong mTimeouts = new AtomicLong();
+    private final AtomicLong mRollbacks = new AtomicLong();
+
+    public static synchronized CharmMetrics getInstance() {
+        if (sInstance == null)
+            sInstance = new CharmMetrics();
+        return sInstance;
+    }
+
+    public LatencyHistogram getRoundTrip() {
+        return mRoundTrip;
+    }
+
+    public LatencyHistogram getQueueWait() {
+        return mQueueWait;
+    }
+
+    public LatencyHistogram getBindTime() {
+        return mBindTime;
+    }
+
+    public LatencyHistogram getTapToRow() {
+        return mTapToRow;
+    }
+
+    public LatencyHistogram getTapToConfirm() {
+        return mTapToConfirm;
+    }
+
+    public void onBytesIn(int bytes) {
+        mBytesIn.addAndGet(bytes);
+    }
+
+    public void onBytesOut(int bytes) {
+        mBytesOut.addAndGet(bytes);
+    }
+
+    public void onParseError() {
+        mParseErrors.incrementAndGet();
+    }
+
+    public void onReconnect() {
+        mReconnects.incrementAndGet();
+    }
+
+    public void onTimeout() {
+        mTimeouts.incrementAndGet();
+    }
+
+    /* A tap the server refused or never confirmed, taken back on screen */
+    public void onRollback() {
+        mRollbacks.incrementAndGet();
+    }
+
+    public long getBytesIn() {
+        return mBytesIn.get();
+    }
+
+    public long getBytesOut() {
+        return mBytesOut.get();
+    }
+
+    public long getParseErrors() {
+        return mParseErrors.get();
+    }
+
+    public long getReconnects() {
+        return mReconnects.get();
+    }
+
+    public long getTimeouts() {
+        return mTimeouts.get();
+    }
+
+    public long getRollbacks() {
+        return mRollbacks.get();
+    }
+
+    public void reset() {
+        mRoundTrip.reset();
+        mQueueWait.reset();
+        mBindTime.reset();
+        mTapToRow.reset();
+        mTapToConfirm.reset();
+        mBytesIn.set(0);
+        mBytesOut.set(0);
+        mParseErrors.set(0);
+        mReconnects.set(0);
+        mTimeouts.set(0);
+        mRollbacks.set(0);
+    }
+
+    public void dump(PrintWriter writer) {
+        dump(writer, "Round trip", mRoundTrip, "us");
+        dump(writer, "Queue wait", mQueueWait, "ms");
+        dump(writer, "Bind time", mBindTime, "us");
+        dump(writer, "Tap to row", mTapToRow, "us");
+        dump(writer, "Tap to confirmation", mTapToConfirm, "ms");
+        writer.println("Bytes in: " + getBytesIn());
+        writer.println("Bytes out: " + getBytesOut());
+        writer.println("Parse errors: " + getParseErrors());
+        writer.println("Reconnects: " + getReconnects());
+        writer.println("Timeouts: " + getTimeouts());
+        writer.println("Rolled back taps: " + getRollbacks());
+    }
+
+    private static void dump(PrintWriter writer, String name, LatencyHistogram histogram, String unit) {
+        writer.println(name + ": " + histogram.getCount() + " samples");
+        if (histogram.getCount() == 0)
+            return;
+
+        writer.println("  mean " + histogram.getMean() + " " + unit
+                + ", p50 " + histogram.getPercentile(50) + " " + unit
+                + ", p90 " + histogram.getPercentile(90) + " " + unit
+                + ", p99 " + histogram.getPercentile(99) + " " + unit
+                + ", max " + histogram.getMax() + " " + unit);
+    }
+}
@@ -0,0 +1,204 @@
+package com.kdab.charm;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+class CharmTransport {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final SocketChannel mChannel;
+    private final SelectionKey mKey;
+    private final ByteBuffer mReadBuffer = ByteBuffer.allocate(2048);
+    private final ByteBuffer mWriteBuffer = ByteBuffer.allocateDirect(4096);
+    private BinaryCodec mCodec;
+    private boolean mConnected;
+    private Inflater mInflater;
+    private ByteBuffer mPlainBuffer;
+
+    private CharmTransport(SocketChannel channel, SelectionKey key) {
+        mChannel = channel;
+        mKey = key;
+    }
+
+    /*
+     * Starts a non-blocking connect, finishConnect() completes it once the
+     * selector reports it. The address is resolved already, see HostLookup.
+     */
+    public static CharmTransport open(Selector selector, InetSocketAddress address, ConnectionProfile profile)
+            throws IOException {
+        if (address.isUnresolved())
+            throw new IOException("Unable to resolve " + address.getHostString());
+
+        SocketChannel channel = SocketChannel.open();
+
+        try {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(profile.tcpNoDelay);
+            boolean connected = channel.connect(address);
+
+            CharmTransport transport = new CharmTransport(channel,
+                    channel.register(selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT));
+            transport.mConnected = connected;
+            return transport;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public boolean isConnected() {
+        return mConnected;
+    }
+
+    public boolean isConnectable(Selector selector) {
+        return selector.selectedKeys().contains(mKey) && mKey.isValid() && mKey.isConnectable();
+    }
+
+    /* Throws when the connect failed, returns false while it is still in progress */
+    public boolean finishConnect() throws IOException {
+        if (!mChannel.finishConnect())
+            return false;
+
+        mConnected = true;
+        mKey.interestOps(SelectionKey.OP_READ);
+        return true;
+    }
+
+    public boolean isReadable(Selector selector) {
+        return selector.selectedKeys().contains(mKey) && mKey.isValid() && mKey.isReadable();
+    }
+
+    public boolean isWritable(Selector selector) {
+        return selector.selectedKeys().contains(mKey) && mKey.isValid() && mKey.isWritable();
+    }
+
+    /* Switches reading to binary frames, text lines left in the current read are still delivered */
+    public void setCodec(BinaryCodec codec) {
+        mCodec = codec;
+    }
+
+    public boolean isBinary() {
+        return mCodec != null;
+    }
+
+    /* Everything the server sends after the current line is a raw deflate stream */
+    public void startInflating() {
+        mInflater = new Inflater(true);
+        mPlainBuffer = ByteBuffer.allocate(8192);
+    }
+
+    public boolean isInflating() {
+        return mInflater != null;
+    }
+
+    /* Feeds everything the socket has buffered to the decoder without blocking, returns the bytes read */
+    public int read(LineDecoder decoder, LineDecoder.LineListener listener) throws IOException {
+        int read;
+        int total = 0;
+
+        while ((read = mChannel.read(mReadBuffer)) > 0) {
+            total += read;
+            mReadBuffer.flip();
+
+            /* The handshake line may have been followed by compressed data in the same read */
+            if (mInflater == null)
+                deliver(mReadBuffer, decoder, listener);
+            if (mInflater != null)
+                inflate(decoder, listener);
+
+            mReadBuffer.compact();
+        }
+
+        if (read == -1)
+            throw new EOFException();
+        return total;
+    }
+
+    private void inflate(LineDecoder decoder, LineDecoder.LineListener listener) throws IOException {
+        if (mReadBuffer.hasRemaining()) {
+            mInflater.setInput(mReadBuffer.array(), mReadBuffer.arrayOffset() + mReadBuffer.position(), mReadBuffer.remaining());
+            mReadBuffer.position(mReadBuffer.limit());
+        }
+
+        /* Each reply ends in a sync flush, so everything received so far inflates right away */
+        while (true) {
+            int inflated;
+
+            try {
+                inflated = mInflater.inflate(mPlainBuffer.array(), mPlainBuffer.position(), mPlainBuffer.remaining());
+            } catch (DataFormatException e) {
+                throw new ProtocolException(e.getMessage());
+            }
+
+            if (inflated == 0)
+                break;
+
+            mPlainBuffer.position(mPlainBuffer.position() + inflated);
+            mPlainBuffer.flip();
+            deliver(mPlainBuffer, decoder, listener);
+            mPlainBuffer.compact();
+        }
+    }
+
+    private void deliver(ByteBuffer in, LineDecoder decoder, LineDecoder.LineListener listener) throws IOException {
+        if (mCodec == null) {
+            int consumed = decoder.feed(in.array(), in.arrayOffset() + in.position(), in.remaining(), listener);
+            in.position(in.position() + consumed);
+        }
+
+        /* The handshake line may have been followed by binary frames in the same read */
+        if (mCodec != null)
+            mCodec.decode(in);
+    }
+
+    /* Commands are encoded straight into this buffer, followed by a single flush() */
+    public ByteBuffer getWriteBuffer() {
+        return mWriteBuffer;
+    }
+
+    public int write(String command) throws IOException {
+        byte[] data = command.getBytes(ASCII);
+
+        if (mWriteBuffer.remaining() < data.length)
+            throw new IOException("Write buffer is full");
+
+        mWriteBuffer.put(data);
+        return flush();
+    }
+
+    /* Writes as much as the socket accepts and waits for OP_WRITE for the rest, returns the bytes written */
+    public int flush() throws IOException {
+        mWriteBuffer.flip();
+        int written = mChannel.write(mWriteBuffer);
+        mWriteBuffer.compact();
+
+        if (mWriteBuffer.position() > 0)
+            mKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        else
+            mKey.interestOps(SelectionKey.OP_READ);
+        return written;
+    }
+
+    public void close() {
+        mKey.cancel();
+
+        /* The inflater's native stream is not left to the finalizer */
+        if (mInflater != null)
+            mInflater.end();
+
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package com.kdab.charm;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+class CommandBatch {
+    /* "RECENT <index> <count>\n" with both numbers at their widest, binary frames are shorter */
+    private static final int MAX_COMMAND_LENGTH = 48;
+
+    private static final byte[] START  = { 'S', 'T', 'A', 'R', 'T', ' ' };
+    private static final byte[] STOP   = { 'S', 'T', 'O', 'P', ' ' };
+    private static final byte[] RECENT = { 'R', 'E', 'C', 'E', 'N', 'T', ' ' };
+    private static final byte[] STATUS = { 'S', 'T', 'A', 'T', 'U', 'S' };
+    private static final byte[] PING   = { 'P', 'I', 'N', 'G' };
+
+    private int[] mCommands = new int[16];
+    private long[] mTasks = new long[16];
+    private int[] mIndexes = new int[16];
+    private int[] mCounts = new int[16];
+    private int mSize = 0;
+    private boolean mBinary = false;
+    private final byte[] mDigits = new byte[20];
+
+    /* Returns false when a STOP withdrew the START queued for its task instead, neither is answered then */
+    public boolean add(int command, long task, int index, int count) {
+        /* A START that has not left the device yet is simply withdrawn by its STOP */
+        if (command == PendingRequests.COMMAND_STOP) {
+            for (int i = mSize - 1; i >= 0; --i) {
+                if (mCommands[i] == PendingRequests.COMMAND_START && mTasks[i] == task) {
+                    remove(i);
+                    return false;
+                }
+            }
+        }
+
+        /* Back-to-back STATUS polls and repeated taps collapse into one command */
+        for (int i = 0; i < mSize; ++i) {
+            if (mCommands[i] == command && mTasks[i] == task
+                    && mIndexes[i] == index && mCounts[i] == count)
+                return true;
+        }
+
+        /* The history starts over from its head, windows queued before that are stale */
+        if (command == PendingRequests.COMMAND_RECENT && index == 0) {
+            for (int i = mSize - 1; i >= 0; --i) {
+                if (mCommands[i] == PendingRequests.COMMAND_RECENT)
+                    remove(i);
+            }
+        }
+
+        if (mSize == mCommands.length) {
+            int capacity = mSize * 2;
+            mCommands = Arrays.copyOf(mCommands, capacity);
+            mTasks = Arrays.copyOf(mTasks, capacity);
+            mIndexes = Arrays.copyOf(mIndexes, capacity);
+            mCounts = Arrays.copyOf(mCounts, capacity);
+        }
+
+        /* Kept in lane order, so a tap never waits for the replies of queued polls */
+        int at = mSize;
+        while (at > 0 && priority(mCommands[at - 1]) > priority(command))
+            --at;
+
+        int tail = mSize - at;
+        System.arraycopy(mCommands, at, mCommands, at + 1, tail);
+        System.arraycopy(mTasks, at, mTasks, at + 1, tail);
+        System.arraycopy(mIndexes, at, mIndexes, at + 1, tail);
+        System.arraycopy(mCounts, at, mCounts, at + 1, tail);
+
+        mCommands[at] = command;
+        mTasks[at] = task;
+        mIndexes[at] = index;
+        mCounts[at] = count;
+        ++mSize;
+        return true;
+    }
+
+    /* Drops the START and STOP of the task that have not been encoded yet, returns how many */
+    public int withdraw(long task) {
+        int removed = 0;
+
+        for (int i = mSize - 1; i >= 0; --i) {
+            if ((mCommands[i] == PendingRequests.COMMAND_START || mCommands[i] == PendingRequests.COMMAND_STOP)
+                    && mTasks[i] == task) {
+                remove(i);
+                ++removed;
+            }
+        }
+
+        return removed;
+    }
+
+    /* The lanes of CommandScheduler: START, STOP and PING, then RECENT, then STATUS */
+    private static int priority(int command) {
+        switch (command) {
+            case PendingRequests.COMMAND_RECENT:
+                return 1;
+            case PendingRequests.COMMAND_STATUS:
+                return 2;
+            default:
+                return 0;
+        }
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public void clear() {
+        mSize = 0;
+    }
+
+    /* Commands are encoded as BinaryCodec frames once the handshake agreed on them */
+    public void setBinary(boolean binary) {
+        mBinary = binary;
+    }
+
+    /*
+     * Encodes as many commands as fit into out and registers each one as
+     * pending. Text rows do not say which reply they belong to, so there a
+     * RECENT or STATUS waits in the batch until the reply with rows ahead
+     * of it is complete.
+     */
+    public int encode(ByteBuffer out, PendingRequests pending) {
+        int encoded = 0;
+
+        while (encoded < mSize && out.remaining() >= MAX_COMMAND_LENGTH) {
+            int command = mCommands[encoded];
+
+            /* Only polls follow in lane order, they all wait */
+            if (!mBinary && priority(command) > 0 && pending.expectsRows())
+                break;
+
+            if (mBinary) {
+                BinaryCodec.putCommand(out, command, mTasks[encoded], mIndexes[encoded], mCounts[encoded]);
+                pending.add(command, mTasks[encoded], mIndexes[encoded], mCounts[encoded]);
+                ++encoded;
+                continue;
+            }
+
+            switch (command) {
+                case PendingRequests.COMMAND_START:
+                    out.put(START);
+                    putNumber(out, mTasks[encoded]);
+                    break;
+
+                case PendingRequests.COMMAND_STOP:
+                    out.put(STOP);
+                    putNumber(out, mTasks[encoded]);
+                    break;
+
+                case PendingRequests.COMMAND_RECENT:
+                    out.put(RECENT);
+                    putNumber(out, mIndexes[encoded]);
+                    out.put((byte) ' ');
+                    putNumber(out, mCounts[encoded]);
+                    break;
+
+                case PendingRequests.COMMAND_STATUS:
+                    out.put(STATUS);
+                    break;
+
+                case PendingRequests.COMMAND_PING:
+                    out.put(PING);
+                    break;
+            }
+            out.put((byte) '\n');
+
+            pending.add(command, mTasks[encoded], mIndexes[encoded], mCounts[encoded]);
+            ++encoded;
+        }
+
+        removeFirst(encoded);
+        return encoded;
+    }
+
+    private void putNumber(ByteBuffer out, long value) {
+        int length = 0;
+
+        do {
+            mDigits[length++] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value > 0);
+
+        while (length > 0)
+            out.put(mDigits[--length]);
+    }
+
+    private void remove(int index) {
+        int tail = mSize - index - 1;
+
+        System.arraycopy(mCommands, index + 1, mCommands, index, tail);
+        System.arraycopy(mTasks, index + 1, mTasks, index, tail);
+        System.arraycopy(mIndexes, index + 1, mIndexes, index, tail);
+        System.arraycopy(mCounts, index + 1, mCounts, index, tail);
+        --mSize;
+    }
+
+    private void removeFirst(int count) {
+        if (count == 0)
+            return;
+
+        int tail = mSize - count;
+
+        System.arraycopy(mCommands, count, mCommands, 0, tail);
+        System.arraycopy(mTasks, count, mTasks, 0, tail);
+        System.arraycopy(mIndexes, count, mIndexes, 0, tail);
+        System.arraycopy(mCounts, count, mCounts, 0, tail);
+        mSize = tail;
+    }
+}
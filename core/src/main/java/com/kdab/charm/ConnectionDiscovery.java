@@ -0,0 +1,178 @@
+package com.kdab.charm;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+
+/*
+ * Listens for Charm's UDP beacon on the client thread's selector while any
+ * server is configured, and remembers every sender for HOST_TTL. Hosts are
+ * kept as address literals, so no reverse lookup is ever made, and ranked by
+ * failed attempts, then by how long their last TCP connect took.
+ */
+class ConnectionDiscovery {
+    private static final long HOST_TTL = 60000;
+
+    static class Host {
+        final String address;
+        long lastSeen;
+        long rtt = -1;
+        int failures = 0;
+
+        Host(String address) {
+            this.address = address;
+        }
+    }
+
+    private final ArrayList<Host> mHosts = new ArrayList<>();
+    private final ByteBuffer mBuffer = ByteBuffer.allocate(64);
+    private DatagramChannel mChannel;
+    private SelectionKey mKey;
+    private int mPort = -1;
+
+    /* Moves over from the port listened on so far, if any; known hosts stay */
+    public void open(Selector selector, int port) throws IOException {
+        if (mChannel != null && mPort == port)
+            return;
+
+        close();
+        DatagramChannel channel = DatagramChannel.open();
+
+        try {
+            channel.socket().setReuseAddress(true);
+            channel.socket().bind(new InetSocketAddress(port));
+            channel.configureBlocking(false);
+            mKey = channel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        mChannel = channel;
+        mPort = port;
+    }
+
+    /* The port listened on, -1 when closed */
+    public int getPort() {
+        return mPort;
+    }
+
+    public boolean isReadable(Selector selector) {
+        return mKey != null && selector.selectedKeys().contains(mKey);
+    }
+
+    /* Drains every pending beacon, returns true when one came from a host not known yet */
+    public boolean read(long now) throws IOException {
+        boolean discovered = false;
+
+        while (true) {
+            mBuffer.clear();
+            SocketAddress sender = mChannel.receive(mBuffer);
+            if (sender == null)
+                break;
+
+            if (sender instanceof InetSocketAddress)
+                discovered |= onBeacon(((InetSocketAddress) sender).getAddress().getHostAddress(), now);
+        }
+
+        return discovered;
+    }
+
+    public void close() {
+        if (mChannel == null)
+            return;
+
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        mChannel = null;
+        mKey = null;
+        mPort = -1;
+    }
+
+    boolean onBeacon(String address, long now) {
+        Host host = find(address);
+        boolean discovered = host == null;
+
+        if (discovered) {
+            host = new Host(address);
+            mHosts.add(host);
+        }
+
+        host.lastSeen = now;
+        return discovered;
+    }
+
+    public void onConnected(String address, long rtt) {
+        Host host = find(address);
+        if (host == null)
+            return;
+
+        host.rtt = rtt;
+        host.failures = 0;
+    }
+
+    public void onFailed(String address) {
+        Host host = find(address);
+        if (host != null)
+            ++host.failures;
+    }
+
+    /* The best host seen within HOST_TTL other than exclude, or null */
+    public String pickHost(String exclude, long now) {
+        Host best = null;
+
+        for (int i = mHosts.size() - 1; i >= 0; --i) {
+            Host host = mHosts.get(i);
+
+            if (now - host.lastSeen > HOST_TTL) {
+                mHosts.remove(i);
+                continue;
+            }
+
+            if (host.address.equals(exclude))
+                continue;
+
+            if (best == null || isBetter(host, best))
+                best = host;
+        }
+
+        return best == null ? null : best.address;
+    }
+
+    public int size() {
+        return mHosts.size();
+    }
+
+    private static boolean isBetter(Host host, Host other) {
+        if (host.failures != other.failures)
+            return host.failures < other.failures;
+
+        /* A measured connect beats an unknown one */
+        if (host.rtt != other.rtt) {
+            if (other.rtt == -1)
+                return true;
+            if (host.rtt == -1)
+                return false;
+            return host.rtt < other.rtt;
+        }
+
+        return host.lastSeen > other.lastSeen;
+    }
+
+    private Host find(String address) {
+        for (int i = 0; i < mHosts.size(); ++i) {
+            if (mHosts.get(i).address.equals(address))
+                return mHosts.get(i);
+        }
+        return null;
+    }
+}
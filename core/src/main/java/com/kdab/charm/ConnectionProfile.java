@@ -0,0 +1,29 @@
+package com.kdab.charm;
+
+/*
+ * How a connection treats the socket and a silent peer. A connect that has
+ * not completed within connectTimeout is abandoned, and after heartbeatInterval
+ * without hearing from the server a probe goes out that must be answered
+ * within readTimeout. A half-open connection is therefore noticed at the
+ * latest heartbeatInterval + readTimeout after the server last spoke.
+ */
+class ConnectionProfile {
+    public static final ConnectionProfile DEFAULT = new ConnectionProfile(10000, 10000, 30000, true);
+
+    public final long connectTimeout;
+    public final long readTimeout;
+    public final long heartbeatInterval;
+    public final boolean tcpNoDelay;
+
+    public ConnectionProfile(long connectTimeout, long readTimeout, long heartbeatInterval, boolean tcpNoDelay) {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.heartbeatInterval = heartbeatInterval;
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    /* The latest time after the last byte from the server that a dead peer is noticed */
+    public long getDetectionBound() {
+        return heartbeatInterval + readTimeout;
+    }
+}
@@ -0,0 +1,309 @@
+package com.kdab.charm;
+
+import java.nio.charset.Charset;
+
+class FrameParser implements LineDecoder.LineListener {
+    private static final byte[] HELLO            = ascii("HELLO");
+    private static final byte[] ACK              = ascii("ACK");
+    private static final byte[] NAK              = ascii("NAK");
+    private static final byte[] PONG             = ascii("PONG");
+    private static final byte[] TASK_ACTIVATED   = ascii("TASK ACTIVATED ");
+    private static final byte[] TASK_DEACTIVATED = ascii("TASK DEACTIVATED ");
+    private static final byte[] BINARY           = ascii("BINARY");
+    private static final byte[] DEFLATE          = ascii("DEFLATE");
+    private static final byte[] PING             = ascii("PING");
+
+    /* Options offered with READY and accepted with ACK */
+    public static final int OPTION_BINARY  = 1;
+    public static final int OPTION_DEFLATE = 2;
+    public static final int OPTION_PING    = 4;
+
+    private final FrameHandler mHandler;
+    private final PendingRequests mPending;
+    private final TaskNameDictionary mNames = new TaskNameDictionary();
+    private long mNumber;
+
+    public FrameParser(FrameHandler handler, PendingRequests pending) {
+        mHandler = handler;
+        mPending = pending;
+    }
+
+    /* Shared with BinaryCodec, names are looked up the same way in both framings */
+    public TaskNameDictionary getNames() {
+        return mNames;
+    }
+
+    /*
+     * Text replies carry no terminator. RECENT ends after its count of rows,
+     * either ends at the next line that is not one of its rows, and the
+     * caller ends the last one with this once the server has been quiet for
+     * a while after a line; a read that stops on a line end proves nothing.
+     */
+    public void onBurstEnd() {
+        if (hasOpenReply())
+            complete(mPending.peek());
+    }
+
+    /* Whether the head request has rows and may be waiting for more, see onBurstEnd() */
+    public boolean hasOpenReply() {
+        PendingRequests.Request head = mPending.peek();
+        return head != null && head.expectsRows() && head.received > 0;
+    }
+
+    @Override
+    public void onLine(byte[] buffer, int start, int end) {
+        if (start == end)
+            return;
+
+        /* Anything but a row ends the reply in progress */
+        if (buffer[start] < '0' || buffer[start] > '9')
+            onBurstEnd();
+
+        /* Task Activated */
+        if (startsWith(buffer, start, end, TASK_ACTIVATED)) {
+            int pos = parseNumber(buffer, start + TASK_ACTIVATED.length, end);
+            if (pos == -1 || pos == end || buffer[pos] != ' ') {
+                mHandler.onUnknownFrame(buffer, start, end);
+                return;
+            }
+
+            onPush(true, mNumber, mNames.get(mNumber, buffer, pos + 1, end));
+        }
+
+        /* Task Deactivated */
+        else if (startsWith(buffer, start, end, TASK_DEACTIVATED)) {
+            int pos = parseNumber(buffer, start + TASK_DEACTIVATED.length, end);
+            if (pos == -1 || pos == end || buffer[pos] != ' ') {
+                mHandler.onUnknownFrame(buffer, start, end);
+                return;
+            }
+
+            onPush(false, mNumber, mNames.get(mNumber, buffer, pos + 1, end));
+        }
+
+        else if (startsWith(buffer, start, end, NAK))
+            onNak();
+
+        else if (startsWith(buffer, start, end, PONG))
+            onPong();
+
+        else if (startsWith(buffer, start, end, HELLO))
+            mHandler.onHello();
+
+        else if (startsWith(buffer, start, end, ACK))
+            mHandler.onAck(parseOptions(buffer, start + ACK.length, end));
+
+        /* Reply rows, "<id> <name>" for RECENT and "<id> <seconds>" for STATUS */
+        else {
+            int pos = parseNumber(buffer, start, end);
+            if (pos == -1 || pos == end || buffer[pos] != ' ') {
+                mHandler.onUnknownFrame(buffer, start, end);
+                return;
+            }
+
+            routeRow(mNumber, buffer, start, pos + 1, end);
+        }
+    }
+
+    /* Rows belong to the oldest outstanding request, pushes never do */
+    private void routeRow(long id, byte[] buffer, int start, int rest, int end) {
+        PendingRequests.Request head;
+
+        while ((head = mPending.peek()) != null) {
+            switch (head.command) {
+                case PendingRequests.COMMAND_RECENT:
+                    mHandler.onRecentTask(id, mNames.get(id, buffer, rest, end), head.index + head.received);
+                    if (++head.received >= head.count)
+                        complete(head);
+                    return;
+
+                case PendingRequests.COMMAND_STATUS:
+                    if (parseNumber(buffer, rest, end) == end && mNumber <= Integer.MAX_VALUE) {
+                        ++head.received;
+                        mHandler.onTaskStatus(id, (int) mNumber);
+                        return;
+                    }
+
+                    /* Not a status row, so the STATUS reply ended before it */
+                    complete(head);
+                    break;
+
+                default:
+                    /* START and STOP are only answered on failure */
+                    complete(head);
+                    break;
+            }
+        }
+
+        mHandler.onUnknownFrame(buffer, start, end);
+    }
+
+    /*
+     * Entry points for framings that mark the end of every reply themselves,
+     * see BinaryCodec. Rows always belong to the head request, and requests
+     * ahead of it were either silently accepted or abandoned by the server.
+     */
+    void onNak() {
+        /* A reply that already has rows is over, the NAK answers the request after it */
+        onBurstEnd();
+
+        PendingRequests.Request head = mPending.peek();
+        mHandler.onNak(head);
+        mPending.complete();
+    }
+
+    void onPush(boolean activated, long id, String name) {
+        if (activated) {
+            confirm(PendingRequests.COMMAND_START, id);
+            mHandler.onTaskActivated(id, name);
+        } else {
+            confirm(PendingRequests.COMMAND_STOP, id);
+            mHandler.onTaskDeactivated(id, name);
+        }
+    }
+
+    boolean onRecentRow(long id, String name) {
+        PendingRequests.Request head = headFor(PendingRequests.COMMAND_RECENT);
+        if (head == null)
+            return false;
+
+        mHandler.onRecentTask(id, name, head.index + head.received++);
+        return true;
+    }
+
+    boolean onStatusRow(long id, int seconds) {
+        PendingRequests.Request head = headFor(PendingRequests.COMMAND_STATUS);
+        if (head == null)
+            return false;
+
+        ++head.received;
+        mHandler.onTaskStatus(id, seconds);
+        return true;
+    }
+
+    /* Everything sent before the PING has been dealt with by the time its PONG arrives */
+    void onPong() {
+        PendingRequests.Request head;
+
+        while ((head = mPending.peek()) != null && head.command != PendingRequests.COMMAND_PING)
+            complete(head);
+
+        if (head != null)
+            complete(head);
+    }
+
+    void onReplyEnd() {
+        PendingRequests.Request head;
+
+        while ((head = mPending.peek()) != null && !head.expectsRows())
+            complete(head);
+
+        if (head != null)
+            complete(head);
+    }
+
+    void onUnknownFrame(byte[] buffer, int start, int end) {
+        mHandler.onUnknownFrame(buffer, start, end);
+    }
+
+    private PendingRequests.Request headFor(int command) {
+        PendingRequests.Request head;
+
+        while ((head = mPending.peek()) != null && head.command != command)
+            complete(head);
+
+        return head;
+    }
+
+    private void confirm(int command, long task) {
+        PendingRequests.Request head = mPending.peek();
+        if (head != null && head.command == command && head.task == task)
+            complete(head);
+    }
+
+    private void complete(PendingRequests.Request request) {
+        mHandler.onReplyComplete(request);
+        mPending.complete();
+    }
+
+    /* Parses the decimal digits at pos into mNumber, returns the position after them or -1 */
+    private int parseNumber(byte[] buffer, int pos, int end) {
+        long value = 0;
+        int first = pos;
+
+        while (pos < end) {
+            int digit = buffer[pos] - '0';
+            if (digit < 0 || digit > 9)
+                break;
+
+            if (value > (Long.MAX_VALUE - digit) / 10)
+                return -1;
+
+            value = value * 10 + digit;
+            ++pos;
+        }
+
+        if (pos == first)
+            return -1;
+
+        mNumber = value;
+        return pos;
+    }
+
+    /* The words after "ACK", ones this client does not know are ignored */
+    private static int parseOptions(byte[] buffer, int start, int end) {
+        int options = 0;
+
+        while (start < end) {
+            int wordEnd = start;
+            while (wordEnd < end && buffer[wordEnd] != ' ')
+                ++wordEnd;
+
+            if (wordEnd - start == BINARY.length && startsWith(buffer, start, wordEnd, BINARY))
+                options |= OPTION_BINARY;
+            else if (wordEnd - start == DEFLATE.length && startsWith(buffer, start, wordEnd, DEFLATE))
+                options |= OPTION_DEFLATE;
+            else if (wordEnd - start == PING.length && startsWith(buffer, start, wordEnd, PING))
+                options |= OPTION_PING;
+
+            start = wordEnd + 1;
+        }
+
+        return options;
+    }
+
+    private static boolean startsWith(byte[] buffer, int start, int end, byte[] prefix) {
+        if (end - start < prefix.length)
+            return false;
+
+        for (int i = 0; i < prefix.length; ++i) {
+            if (buffer[start + i] != prefix[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(Charset.forName("US-ASCII"));
+    }
+
+    public interface FrameHandler {
+        public void onHello();
+
+        public void onAck(int options);
+
+        public void onNak(PendingRequests.Request request);
+
+        public void onReplyComplete(PendingRequests.Request request);
+
+        public void onTaskActivated(long id, String name);
+
+        public void onTaskDeactivated(long id, String name);
+
+        public void onRecentTask(long id, String name, int index);
+
+        public void onTaskStatus(long id, int seconds);
+
+        public void onUnknownFrame(byte[] buffer, int start, int end);
+    }
+}
@@ -0,0 +1,56 @@
+package com.kdab.charm;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.Selector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/*
+ * Resolves a host name away from the selector thread, where one slow or
+ * unreachable resolver would hold up every connection. The selector is woken
+ * once the answer is in, and the next tick picks it up. A lookup nobody
+ * waits for any more simply finishes unnoticed.
+ */
+class HostLookup implements Runnable {
+    private static final ExecutorService sResolver = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "HostLookup");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Selector mSelector;
+    private final String mHostname;
+    private final int mPort;
+    private volatile InetSocketAddress mAddress;
+
+    private HostLookup(Selector selector, String hostname, int port) {
+        mSelector = selector;
+        mHostname = hostname;
+        mPort = port;
+    }
+
+    public static HostLookup start(Selector selector, String hostname, int port) {
+        HostLookup lookup = new HostLookup(selector, hostname, port);
+        sResolver.execute(lookup);
+        return lookup;
+    }
+
+    @Override
+    public void run() {
+        mAddress = new InetSocketAddress(mHostname, mPort);
+        mSelector.wakeup();
+    }
+
+    public boolean isDone() {
+        return mAddress != null;
+    }
+
+    /* Null until isDone(), unresolved when the name is unknown */
+    public InetSocketAddress getAddress() {
+        return mAddress;
+    }
+}
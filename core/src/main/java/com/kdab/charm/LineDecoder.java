@@ -0,0 +1,104 @@
+package com.kdab.charm;
+
+import java.util.Arrays;
+
+class LineDecoder {
+    private byte[] mPending;
+    private int mPendingLength = 0;
+    private boolean mSuspended = false;
+
+    public LineDecoder() {
+        this(512);
+    }
+
+    public LineDecoder(int capacity) {
+        mPending = new byte[capacity];
+    }
+
+    /* Returns how many bytes were consumed, fewer than length only after suspend() */
+    public int feed(byte[] data, int offset, int length, LineListener listener) {
+        int end = offset + length;
+        int start = offset;
+
+        /* Complete the line left over from the previous read first */
+        if (mPendingLength > 0) {
+            int newline = indexOf(data, start, end);
+            if (newline == -1) {
+                append(data, start, end);
+                return length;
+            }
+
+            append(data, start, newline);
+            start = newline + 1;
+
+            int lineLength = mPendingLength;
+            mPendingLength = 0;
+            emit(mPending, 0, lineLength, listener);
+
+            if (mSuspended) {
+                mSuspended = false;
+                return start - offset;
+            }
+        }
+
+        /* Whole lines are handed out straight from the caller's buffer */
+        int newline;
+        while ((newline = indexOf(data, start, end)) != -1) {
+            emit(data, start, newline, listener);
+            start = newline + 1;
+
+            if (mSuspended) {
+                mSuspended = false;
+                return start - offset;
+            }
+        }
+
+        append(data, start, end);
+        return length;
+    }
+
+    /* Called from a listener, makes feed() stop right after the current line */
+    public void suspend() {
+        mSuspended = true;
+    }
+
+    public boolean hasPartialLine() {
+        return mPendingLength > 0;
+    }
+
+    public void reset() {
+        mPendingLength = 0;
+        mSuspended = false;
+    }
+
+    private void emit(byte[] data, int start, int end, LineListener listener) {
+        if (end > start && data[end - 1] == '\r')
+            --end;
+
+        listener.onLine(data, start, end);
+    }
+
+    private void append(byte[] data, int start, int end) {
+        int length = end - start;
+        if (length == 0)
+            return;
+
+        if (mPendingLength + length > mPending.length)
+            mPending = Arrays.copyOf(mPending, Math.max(mPending.length * 2, mPendingLength + length));
+
+        System.arraycopy(data, start, mPending, mPendingLength, length);
+        mPendingLength += length;
+    }
+
+    private static int indexOf(byte[] data, int start, int end) {
+        for (int i = start; i < end; ++i) {
+            if (data[i] == '\n')
+                return i;
+        }
+        return -1;
+    }
+
+    public interface LineListener {
+        public void onLine(byte[] buffer, int start, int end);
+    }
+}
@@ -0,0 +1,132 @@
+package com.kdab.charm;
+
+import java.util.Arrays;
+
+/* Open-addressing long to int map with linear probing and backward-shift removal */
+class LongIntMap {
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private long[] mKeys;
+    private int[] mValues;
+    private boolean[] mUsed;
+    private int mShift;
+    private int mSize = 0;
+    private int mThreshold;
+
+    public LongIntMap() {
+        this(16);
+    }
+
+    public LongIntMap(int expected) {
+        int capacity = 4;
+        while (capacity * LOAD_FACTOR < expected)
+            capacity <<= 1;
+
+        allocate(capacity);
+    }
+
+    public int get(long key, int missing) {
+        int mask = mKeys.length - 1;
+
+        for (int slot = hash(key); mUsed[slot]; slot = (slot + 1) & mask) {
+            if (mKeys[slot] == key)
+                return mValues[slot];
+        }
+
+        return missing;
+    }
+
+    public void put(long key, int value) {
+        int mask = mKeys.length - 1;
+        int slot = hash(key);
+
+        while (mUsed[slot]) {
+            if (mKeys[slot] == key) {
+                mValues[slot] = value;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        mUsed[slot] = true;
+        mKeys[slot] = key;
+        mValues[slot] = value;
+
+        if (++mSize > mThreshold)
+            rehash(mKeys.length << 1);
+    }
+
+    public boolean remove(long key) {
+        int mask = mKeys.length - 1;
+        int slot = hash(key);
+
+        while (mUsed[slot]) {
+            if (mKeys[slot] == key) {
+                shiftBack(slot);
+                --mSize;
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        return false;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public void clear() {
+        Arrays.fill(mUsed, false);
+        mSize = 0;
+    }
+
+    /* Pulls later entries of the probe run into the hole so lookups never need tombstones */
+    private void shiftBack(int hole) {
+        int mask = mKeys.length - 1;
+        int slot = hole;
+
+        while (true) {
+            slot = (slot + 1) & mask;
+            if (!mUsed[slot])
+                break;
+
+            int home = hash(mKeys[slot]);
+            boolean movable = hole <= slot ? (home <= hole || home > slot) : (home <= hole && home > slot);
+            if (!movable)
+                continue;
+
+            mKeys[hole] = mKeys[slot];
+            mValues[hole] = mValues[slot];
+            hole = slot;
+        }
+
+        mUsed[hole] = false;
+    }
+
+    private int hash(long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> mShift);
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new long[capacity];
+        mValues = new int[capacity];
+        mUsed = new boolean[capacity];
+        mShift = 64 - Integer.numberOfTrailingZeros(capacity);
+        mThreshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private void rehash(int capacity) {
+        long[] keys = mKeys;
+        int[] values = mValues;
+        boolean[] used = mUsed;
+
+        allocate(capacity);
+        mSize = 0;
+
+        for (int i = 0; i < keys.length; ++i) {
+            if (used[i])
+                put(keys[i], values[i]);
+        }
+    }
+}
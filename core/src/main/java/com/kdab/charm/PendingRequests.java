@@ -0,0 +1,95 @@
+package com.kdab.charm;
+
+import java.util.ArrayDeque;
+
+class PendingRequests {
+    public static final int COMMAND_START  = 1;
+    public static final int COMMAND_STOP   = 2;
+    public static final int COMMAND_RECENT = 3;
+    public static final int COMMAND_STATUS = 4;
+    public static final int COMMAND_PING   = 5;
+
+    private final ArrayDeque<Request> mQueue = new ArrayDeque<>();
+    private final ArrayDeque<Request> mPool = new ArrayDeque<>();
+
+    /* Requests in mQueue answered with rows */
+    private int mRows = 0;
+    private long mNextSequence = 1;
+
+    public Request add(int command, long task, int index, int count) {
+        Request request = mPool.poll();
+        if (request == null)
+            request = new Request();
+
+        request.command = command;
+        request.task = task;
+        request.index = index;
+        request.count = count;
+        request.received = 0;
+        request.sentAt = System.nanoTime();
+        request.sequence = mNextSequence++;
+
+        mQueue.add(request);
+        if (request.expectsRows())
+            ++mRows;
+        return request;
+    }
+
+    public Request peek() {
+        return mQueue.peek();
+    }
+
+    /* Removes the head; the request must not be used after the handler has seen it */
+    public void complete() {
+        Request request = mQueue.poll();
+        if (request == null)
+            return;
+
+        if (request.expectsRows())
+            --mRows;
+        mPool.add(request);
+    }
+
+    public boolean isEmpty() {
+        return mQueue.isEmpty();
+    }
+
+    /* The sequence number the next request added gets, they only ever grow */
+    public long nextSequence() {
+        return mNextSequence;
+    }
+
+    /* Whether rows arriving now may belong to a RECENT or STATUS request */
+    public boolean expectsRows() {
+        return mRows > 0;
+    }
+
+    public int size() {
+        return mQueue.size();
+    }
+
+    public void clear() {
+        Request request;
+        while ((request = mQueue.poll()) != null)
+            mPool.add(request);
+        mRows = 0;
+    }
+
+    public static class Request {
+        public int command;
+        public long task;
+        public int index;
+        public int count;
+        public int received;
+
+        /* System.nanoTime() when it was encoded, for round trip times */
+        public long sentAt;
+
+        /* Tells apart requests that share a pooled Request, see nextSequence() */
+        public long sequence;
+
+        public boolean expectsRows() {
+            return command == COMMAND_RECENT || command == COMMAND_STATUS;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.kdab.charm;
+
+/*
+ * Walks the RECENT history in windows of one page. The next window is asked
+ * for while the last visible row is still a page away from the end of what
+ * has been fetched, and only one window is in flight at a time.
+ */
+class RecentPager {
+    private int mPageSize;
+    private int mLoaded = 0;
+    private int mRequested = 0;
+    private boolean mExhausted = false;
+
+    public RecentPager(int pageSize) {
+        mPageSize = pageSize;
+    }
+
+    public int getPageSize() {
+        return mPageSize;
+    }
+
+    /* Starts over from the head, returns the index of the first window to ask for */
+    public int reset(int pageSize) {
+        mPageSize = pageSize;
+        mLoaded = 0;
+        mExhausted = false;
+        mRequested = mPageSize;
+        return 0;
+    }
+
+    /* Returns the index of the window to ask for next, or -1 when none is due */
+    public int next(int lastVisible) {
+        if (mExhausted || mRequested > mLoaded)
+            return -1;
+
+        if (lastVisible + mPageSize < mLoaded)
+            return -1;
+
+        mRequested = mLoaded + mPageSize;
+        return mLoaded;
+    }
+
+    /* A RECENT row arrived, rows of one window can come in several parts */
+    public void onRow(int index) {
+        if (index == mLoaded)
+            ++mLoaded;
+    }
+
+    /*
+     * The reply for a window is complete. Only an empty one means the history
+     * ends there, a short one may have been cut off and the rest is asked for
+     * again; a window starting past mLoaded predates a rewind and proves nothing.
+     */
+    public void onWindow(int index, int count) {
+        if (index == mLoaded)
+            mExhausted = true;
+        mRequested = mLoaded;
+    }
+
+    /* Rows from index on were dropped and have to be fetched again */
+    public void rewind(int index) {
+        if (index >= mLoaded)
+            return;
+
+        mLoaded = index;
+        mRequested = Math.min(mRequested, index);
+        mExhausted = false;
+    }
+
+    public int getLoaded() {
+        return mLoaded;
+    }
+}
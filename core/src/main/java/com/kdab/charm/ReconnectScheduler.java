@@ -0,0 +1,89 @@
+package com.kdab.charm;
+
+import java.util.Random;
+
+/*
+ * Capped exponential backoff with full jitter: the n-th retry waits a random
+ * time below min(MAX_DELAY, BASE_DELAY * 2^n), so clients that lost the same
+ * server do not come back in lockstep. Also keeps how long outages lasted.
+ */
+class ReconnectScheduler {
+    private static final long BASE_DELAY = 250;
+    private static final long MAX_DELAY  = 30000;
+
+    private final Random mRandom;
+    private int mAttempt = 0;
+
+    /* Written by the client thread only, read from anywhere */
+    private long mLostAt = -1;
+    private volatile int mReconnects = 0;
+    private volatile long mLastReconnectTime = 0;
+    private volatile long mMaxReconnectTime = 0;
+    private volatile long mTotalReconnectTime = 0;
+
+    public ReconnectScheduler() {
+        this(new Random());
+    }
+
+    public ReconnectScheduler(Random random) {
+        mRandom = random;
+    }
+
+    /* The delay before the next attempt, each call doubles the window up to the cap */
+    public long nextDelay() {
+        long window = MAX_DELAY;
+        if (mAttempt < 30)
+            window = Math.min(MAX_DELAY, BASE_DELAY << mAttempt);
+
+        ++mAttempt;
+        return (long) (mRandom.nextDouble() * window);
+    }
+
+    /* Something changed that makes an immediate retry worthwhile, e.g. the network came back */
+    public void reset() {
+        mAttempt = 0;
+    }
+
+    public int getAttempts() {
+        return mAttempt;
+    }
+
+    public void onConnectionLost(long now) {
+        if (mLostAt == -1)
+            mLostAt = now;
+    }
+
+    /* Returns how long the connection was gone, or -1 when it had not been lost */
+    public long onConnectionEstablished(long now) {
+        mAttempt = 0;
+
+        if (mLostAt == -1)
+            return -1;
+
+        long elapsed = now - mLostAt;
+        mLostAt = -1;
+
+        ++mReconnects;
+        mLastReconnectTime = elapsed;
+        mMaxReconnectTime = Math.max(mMaxReconnectTime, elapsed);
+        mTotalReconnectTime += elapsed;
+
+        return elapsed;
+    }
+
+    public int getReconnects() {
+        return mReconnects;
+    }
+
+    public long getLastReconnectTime() {
+        return mLastReconnectTime;
+    }
+
+    public long getMaxReconnectTime() {
+        return mMaxReconnectTime;
+    }
+
+    public long getMeanReconnectTime() {
+        return mReconnects == 0 ? 0 : mTotalReconnectTime / mReconnects;
+    }
+}
@@ -0,0 +1,75 @@
+package com.kdab.charm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * The hostname preference holds one or more servers separated by commas,
+ * each with an optional port of its own: "desktop, laptop:5324". Once parsed
+ * a server is known by its "host:port" key, which is also what events and
+ * tasks use to name the server they came from.
+ */
+class ServerList {
+    public static ArrayList<String> parse(String servers, int defaultPort) {
+        ArrayList<String> keys = new ArrayList<>();
+
+        for (String entry : servers.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty())
+                continue;
+
+            String key = hasPort(entry) ? entry : key(entry, defaultPort);
+            if (!keys.contains(key))
+                keys.add(key);
+        }
+
+        return keys;
+    }
+
+    /* The preference value again, with the host of one server replaced */
+    public static String replaceHost(String servers, int defaultPort, String key, String host) {
+        List<String> keys = parse(servers, defaultPort);
+        StringBuilder value = new StringBuilder();
+
+        for (int i = 0; i < keys.size(); ++i) {
+            String server = keys.get(i);
+            if (server.equals(key))
+                server = key(host, getPort(key));
+
+            if (value.length() > 0)
+                value.append(", ");
+
+            if (getPort(server) == defaultPort)
+                value.append(getHost(server));
+            else
+                value.append(server);
+        }
+
+        return value.toString();
+    }
+
+    public static String key(String host, int port) {
+        return host + ":" + port;
+    }
+
+    public static String getHost(String key) {
+        return key.substring(0, key.lastIndexOf(':'));
+    }
+
+    public static int getPort(String key) {
+        return Integer.parseInt(key.substring(key.lastIndexOf(':') + 1));
+    }
+
+    /* A bare IPv6 address has colons of its own and never a port */
+    private static boolean hasPort(String entry) {
+        int colon = entry.lastIndexOf(':');
+        if (colon <= 0 || colon == entry.length() - 1 || entry.indexOf(':') != colon)
+            return false;
+
+        for (int i = colon + 1; i < entry.length(); ++i) {
+            if (!Character.isDigit(entry.charAt(i)))
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,108 @@
+package com.kdab.charm;
+
+import java.util.Arrays;
+
+/* Only a handful of tasks run at once, so the active set is scanned linearly */
+class StatusTracker {
+    /* Server durations are whole seconds, anything closer than this is rounding */
+    private static final long DRIFT_TOLERANCE = 2000;
+
+    private long[] mIds = new long[8];
+    private long[] mAnchors = new long[8];
+    private boolean[] mSeen = new boolean[8];
+    private int mSize = 0;
+
+    private long[] mRemoved = new long[8];
+    private int mRemovedCount = 0;
+
+    public void activate(long id, long now) {
+        set(id, now);
+    }
+
+    public void deactivate(long id) {
+        int index = indexOf(id);
+        if (index != -1)
+            remove(index);
+    }
+
+    /* Returns true when the sample is news to someone extrapolating from the last one */
+    public boolean update(long id, int seconds, long now) {
+        long anchor = now - seconds * 1000L;
+        int index = indexOf(id);
+
+        if (index == -1) {
+            set(id, anchor);
+            mSeen[mSize - 1] = true;
+            return true;
+        }
+
+        mSeen[index] = true;
+
+        if (Math.abs(mAnchors[index] - anchor) < DRIFT_TOLERANCE)
+            return false;
+
+        mAnchors[index] = anchor;
+        return true;
+    }
+
+    /* Drops every task the last STATUS reply did not mention, see getRemoved() */
+    public int sweep() {
+        mRemovedCount = 0;
+
+        for (int i = mSize - 1; i >= 0; --i) {
+            if (mSeen[i]) {
+                mSeen[i] = false;
+                continue;
+            }
+
+            if (mRemovedCount == mRemoved.length)
+                mRemoved = Arrays.copyOf(mRemoved, mRemovedCount * 2);
+            mRemoved[mRemovedCount++] = mIds[i];
+            remove(i);
+        }
+
+        return mRemovedCount;
+    }
+
+    public long getRemoved(int index) {
+        return mRemoved[index];
+    }
+
+    public void clear() {
+        mSize = 0;
+        mRemovedCount = 0;
+    }
+
+    private void set(long id, long anchor) {
+        int index = indexOf(id);
+
+        if (index == -1) {
+            if (mSize == mIds.length) {
+                mIds = Arrays.copyOf(mIds, mSize * 2);
+                mAnchors = Arrays.copyOf(mAnchors, mSize * 2);
+                mSeen = Arrays.copyOf(mSeen, mSize * 2);
+            }
+
+            index = mSize++;
+            mIds[index] = id;
+            mSeen[index] = false;
+        }
+
+        mAnchors[index] = anchor;
+    }
+
+    private void remove(int index) {
+        --mSize;
+        mIds[index] = mIds[mSize];
+        mAnchors[index] = mAnchors[mSize];
+        mSeen[index] = mSeen[mSize];
+    }
+
+    private int indexOf(long id) {
+        for (int i = 0; i < mSize; ++i) {
+            if (mIds[i] == id)
+                return i;
+        }
+        return -1;
+    }
+}
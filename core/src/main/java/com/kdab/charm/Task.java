@@ -0,0 +1,46 @@
+package com.kdab.charm;
+
+class Task {
+    /* Ids are only unique per server, the key tells tasks of different servers apart */
+    public final long key;
+    public final long id;
+    public final String name;
+    public String source;
+    public long startedAt;
+    public boolean active;
+
+    public Task(long id, String name) {
+        this(id, null, id, name);
+    }
+
+    public Task(long key, String source, long id, String name) {
+        this.key = key;
+        this.source = source;
+        this.id = id;
+        this.name = name;
+        this.active = false;
+        this.startedAt = 0;
+    }
+
+    /* startedAt and now share the monotonic elapsedRealtime() time base */
+    public void setElapsedSeconds(int seconds, long now) {
+        startedAt = now - seconds * 1000L;
+    }
+
+    public int elapsedSeconds(long now) {
+        return (int) ((now - startedAt) / 1000);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        Task other = o instanceof Task ? ((Task) o) : null;
+        return (other != null) && (other.key == this.key);
+    }
+
+    @Override
+    public String toString() {
+        if (active)
+            return String.format("%04d %s [active]", id, name);
+        return String.format("%04d %s", id, name);
+    }
+}
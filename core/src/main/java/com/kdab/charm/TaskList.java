@@ -0,0 +1,583 @@
+package com.kdab.charm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * The task list behind TaskAdapter, without the view: every server's tasks
+ * in display order, their RECENT paging, and the replies buffered until the
+ * next frame applies them. Times are passed in and positions handed back,
+ * so TaskAdapter only translates results into RecyclerView notifications.
+ *
+ * A tap shows its START or STOP right away as a Change, which the server's
+ * TASK push settles. A refused or unanswered one is rolled back to what the
+ * server last said, together with any taps made on top of it.
+ */
+class TaskList {
+    /* What apply() changed */
+    public static final int APPLIED_NOTHING = 0;
+    public static final int APPLIED_RANGE   = 1;
+    public static final int APPLIED_ALL     = 2;
+
+    /* Rows this many pages past the last visible one get dropped, down to KEEP_PAGES */
+    private static final int EVICT_PAGES = 4;
+    private static final int KEEP_PAGES  = 2;
+
+    private final TaskStore mTasks;
+    private final List<Source> mSources = new ArrayList<>();
+    private final RecentListener mRecentListener;
+    private final List<Change> mChanges = new ArrayList<>();
+
+    /* The running tasks, in no particular order, kept in step with task.active */
+    private final List<Task> mRunning = new ArrayList<>();
+    private long mNextKey = 1;
+    private int mNextChange = 1;
+    private int mFirstChanged;
+    private int mLastChanged;
+
+    interface RecentListener {
+        /* A task placed from a RECENT reply, index is its place in the server's history */
+        void onRecentTask(Task task, int index);
+    }
+
+    /* One configured server: its tasks by id, its RECENT history and replies not applied yet */
+    static class Source {
+        String key;
+        final LongIntMap keys = new LongIntMap();
+        final RecentPager pager = new RecentPager(10);
+        final TaskRows pendingRecent = new TaskRows();
+        final TaskRows pendingStatus = new TaskRows();
+        boolean connected = false;
+        int count = 0;
+
+        /* Last row of the RECENT run that starts at index 0, the next window goes behind it */
+        long recentTail;
+        int recentTailIndex = -1;
+
+        Source(String key) {
+            this.key = key;
+        }
+    }
+
+    /* A START or STOP on screen before the server confirmed it, and the state it replaced */
+    static class Change {
+        final int id;
+        final Source source;
+        final long taskId;
+        final boolean start;
+        final long tappedAt;
+        final boolean wasActive;
+        final long wasStartedAt;
+
+        /* Key of the task it followed before a START moved it to the top, 0 when it did not move */
+        final long after;
+
+        Change(int id, Source source, Task task, boolean start, long tappedAt, long after) {
+            this.id = id;
+            this.source = source;
+            this.taskId = task.id;
+            this.start = start;
+            this.tappedAt = tappedAt;
+            this.wasActive = task.active;
+            this.wasStartedAt = task.startedAt;
+            this.after = after;
+        }
+    }
+
+    public TaskList(RecentListener listener) {
+        this(listener, 16);
+    }
+
+    public TaskList(RecentListener listener, int capacity) {
+        mRecentListener = listener;
+        mTasks = new TaskStore(capacity);
+    }
+
+    public int size() {
+        return mTasks.size();
+    }
+
+    public Task getAt(int position) {
+        return mTasks.getAt(position);
+    }
+
+    public List<Task> getRunning() {
+        return mRunning;
+    }
+
+    public List<Source> getSources() {
+        return mSources;
+    }
+
+    public Source findSource(String key) {
+        for (int i = 0; i < mSources.size(); ++i) {
+            if (mSources.get(i).key.equals(key))
+                return mSources.get(i);
+        }
+        return null;
+    }
+
+    public Task findTask(Source source, long id) {
+        int key = source.keys.get(id, -1);
+        return key == -1 ? null : mTasks.get(key);
+    }
+
+    public int indexOf(Task task) {
+        return mTasks.indexOf(task.key);
+    }
+
+    /* Tasks of servers no longer listed leave the list, returns whether any did */
+    public boolean setServers(List<String> servers) {
+        boolean removed = false;
+
+        for (int i = mSources.size() - 1; i >= 0; --i) {
+            Source source = mSources.get(i);
+            if (servers.contains(source.key))
+                continue;
+
+            for (int j = mTasks.size() - 1; j >= 0; --j) {
+                Task task = mTasks.getAt(j);
+                if (task.source.equals(source.key))
+                    removeTask(task);
+            }
+
+            dropChanges(source);
+            mSources.remove(i);
+            removed = true;
+        }
+
+        for (int i = 0; i < servers.size(); ++i) {
+            if (findSource(servers.get(i)) == null)
+                mSources.add(new Source(servers.get(i)));
+        }
+
+        return removed;
+    }
+
+    /* A server found through discovery keeps its tasks under the new key */
+    public boolean renameSource(String key, String newKey) {
+        Source source = findSource(key);
+        if (source == null || findSource(newKey) != null)
+            return false;
+
+        source.key = newKey;
+        for (int i = 0; i < mTasks.size(); ++i) {
+            Task task = mTasks.getAt(i);
+            if (task.source.equals(key))
+                task.source = newKey;
+        }
+
+        return true;
+    }
+
+    /* Cached tasks go below anything the server already sent */
+    public void addCached(TaskRows rows) {
+        for (int i = 0; i < rows.count; ++i) {
+            Source source = findSource(rows.sources[i]);
+            if (source != null && findTask(source, rows.ids[i]) == null)
+                mTasks.addLast(newTask(source, rows.ids[i], rows.names[i]));
+        }
+    }
+
+    /* Moves the task to the top as running, returns its previous position or -1 when it is new */
+    public int activate(Source source, long id, String name, long now) {
+        Task task = findTask(source, id);
+        int position = task == null ? -1 : mTasks.indexOf(task.key);
+        if (task == null)
+            task = newTask(source, id, name);
+
+        mTasks.addFirst(task);
+        setActive(task, true);
+        task.setElapsedSeconds(0, now);
+        return position;
+    }
+
+    /* Returns the position of the task, or -1 when it is not in the list */
+    public int deactivate(Source source, long id) {
+        Task task = findTask(source, id);
+        if (task == null)
+            return -1;
+
+        setActive(task, false);
+        return mTasks.indexOf(task.key);
+    }
+
+    /* Shows a tap on the task as if the server had confirmed it, a START moves it to the top */
+    public Change toggle(Source source, Task task, long now) {
+        boolean start = !task.active;
+        int position = mTasks.indexOf(task.key);
+        long after = start && position > 0 ? mTasks.getAt(position - 1).key : 0;
+
+        Change change = new Change(mNextChange++, source, task, start, now, after);
+        mChanges.add(change);
+
+        if (start) {
+            mTasks.addFirst(task);
+            task.setElapsedSeconds(0, now);
+        }
+        setActive(task, start);
+        return change;
+    }
+
+    /*
+     * Takes the oldest change of the task off the list when its push arrives.
+     * A push the other way means the server decided otherwise, later taps on
+     * the task go with it.
+     */
+    public Change settle(Source source, long id, boolean activated) {
+        Change change = findChange(source, id);
+        if (change == null)
+            return null;
+
+        mChanges.remove(change);
+        if (change.start != activated)
+            dropChanges(source, id);
+        return change;
+    }
+
+    /*
+     * A STOP withdrew the START queued before it, so neither is answered.
+     * Both leave the list as they are on screen, the newest START and the
+     * STOP after it.
+     */
+    public void withdraw(Source source, long id) {
+        Change start = null;
+        Change stop = null;
+
+        for (int i = 0; i < mChanges.size(); ++i) {
+            Change change = mChanges.get(i);
+            if (change.source != source || change.taskId != id)
+                continue;
+
+            if (change.start) {
+                start = change;
+                stop = null;
+            } else if (start != null && stop == null) {
+                stop = change;
+            }
+        }
+
+        if (start != null && stop != null) {
+            mChanges.remove(start);
+            mChanges.remove(stop);
+        }
+    }
+
+    /* Whether a tap on the task still waits for its push, which then shows what the tap did */
+    public boolean isChanging(Source source, long id) {
+        return findChange(source, id) != null;
+    }
+
+    public Change findChange(int id) {
+        for (int i = 0; i < mChanges.size(); ++i) {
+            if (mChanges.get(i).id == id)
+                return mChanges.get(i);
+        }
+        return null;
+    }
+
+    /* The oldest change still open on the task */
+    public Change findChange(Source source, long id) {
+        for (int i = 0; i < mChanges.size(); ++i) {
+            Change change = mChanges.get(i);
+            if (change.source == source && change.taskId == id)
+                return change;
+        }
+        return null;
+    }
+
+    /* The oldest one in one direction, the one a NAK answers */
+    public Change findChange(Source source, long id, boolean start) {
+        for (int i = 0; i < mChanges.size(); ++i) {
+            Change change = mChanges.get(i);
+            if (change.source == source && change.taskId == id && change.start == start)
+                return change;
+        }
+        return null;
+    }
+
+    /*
+     * Puts the task back the way the server last showed it, before the oldest
+     * change still open on it, and forgets them all. Returns the position the
+     * task had before, or -1 when it left the list meanwhile.
+     */
+    public int rollback(Change change) {
+        Change first = findChange(change.source, change.taskId);
+        dropChanges(change.source, change.taskId);
+
+        Task task = findTask(first.source, first.taskId);
+        if (task == null)
+            return -1;
+
+        int position = mTasks.indexOf(task.key);
+        setActive(task, first.wasActive);
+        task.startedAt = first.wasStartedAt;
+        if (first.after != 0 && mTasks.contains(first.after))
+            mTasks.addAfter(first.after, task);
+        return position;
+    }
+
+    public void addRecent(Source source, TaskRows rows, int index, int count) {
+        for (int i = 0; i < rows.count; ++i)
+            source.pager.onRow(rows.values[i]);
+        if (count > 0)
+            source.pager.onWindow(index, count);
+
+        source.pendingRecent.addAll(rows);
+    }
+
+    public void addStatus(Source source, TaskRows rows) {
+        source.pendingStatus.addAll(rows);
+    }
+
+    /* Returns the index of the first RECENT window to ask for */
+    public int connect(Source source, int recentCount) {
+        source.connected = true;
+        source.recentTailIndex = -1;
+        return source.pager.reset(recentCount);
+    }
+
+    /* STATUS rows still buffered are stale, RECENT ones are still worth applying, taps are lost */
+    public void disconnect(Source source) {
+        source.connected = false;
+        source.pendingStatus.clear();
+        dropChanges(source);
+    }
+
+    /* Running state is unknown until the server is back, the rows stay */
+    public void clearRunning(Source source) {
+        for (int i = mRunning.size() - 1; i >= 0; --i) {
+            Task task = mRunning.get(i);
+            if (task.source.equals(source.key))
+                setActive(task, false);
+        }
+    }
+
+    /*
+     * Applies every buffered row in one pass. APPLIED_RANGE means only the
+     * running state of rows getFirstChanged() to getLastChanged() changed,
+     * APPLIED_ALL that rows moved or were added.
+     */
+    public int apply(long now) {
+        boolean structural = false;
+        boolean changed = false;
+        for (int i = 0; i < mSources.size(); ++i) {
+            Source source = mSources.get(i);
+            structural |= !source.pendingRecent.isEmpty();
+            changed |= !source.pendingRecent.isEmpty() || !source.pendingStatus.isEmpty();
+        }
+
+        if (!changed)
+            return APPLIED_NOTHING;
+
+        int first = Integer.MAX_VALUE;
+        int last = -1;
+
+        for (int s = 0; s < mSources.size(); ++s) {
+            Source source = mSources.get(s);
+            TaskRows recent = source.pendingRecent;
+
+            for (int i = 0; i < recent.count; ) {
+                int end = i + 1;
+                while (end < recent.count && recent.values[end] == recent.values[end - 1] + 1)
+                    ++end;
+
+                int start = recent.values[i];
+
+                if (start == 0) {
+                    /* A reply from index 0 is the server's head of the list, cached leftovers sink below it */
+                    for (int j = end - 1; j >= i; --j) {
+                        Task task = recentTask(source, j);
+                        mTasks.addFirst(task);
+                        mRecentListener.onRecentTask(task, recent.values[j]);
+                    }
+                } else {
+                    /* Later windows go behind the rows before them, already known tasks just move */
+                    boolean follows = start == source.recentTailIndex + 1 && mTasks.contains(source.recentTail);
+                    long anchor = source.recentTail;
+
+                    for (int j = i; j < end; ++j) {
+                        Task task = recentTask(source, j);
+                        if (follows)
+                            mTasks.addAfter(anchor, task);
+                        else
+                            mTasks.addLast(task);
+                        mRecentListener.onRecentTask(task, recent.values[j]);
+                        anchor = task.key;
+                    }
+                }
+
+                if (start == 0 || start == source.recentTailIndex + 1) {
+                    source.recentTail = findTask(source, recent.ids[end - 1]).key;
+                    source.recentTailIndex = recent.values[end - 1];
+                }
+
+                i = end;
+            }
+
+            TaskRows status = source.pendingStatus;
+            for (int i = 0; i < status.count; ++i) {
+                /* A reply sent before the tap reached the server would undo it */
+                Task task = findTask(source, status.ids[i]);
+                if (task == null || (!mChanges.isEmpty() && isChanging(source, task.id)))
+                    continue;
+
+                int seconds = status.values[i];
+                setActive(task, seconds != TaskRows.NOT_RUNNING);
+                if (task.active)
+                    task.setElapsedSeconds(seconds, now);
+
+                if (!structural) {
+                    int position = mTasks.indexOf(task.key);
+                    first = Math.min(first, position);
+                    last = Math.max(last, position);
+                }
+            }
+
+            recent.clear();
+            status.clear();
+        }
+
+        if (structural)
+            return APPLIED_ALL;
+        if (last == -1)
+            return APPLIED_NOTHING;
+
+        mFirstChanged = first;
+        mLastChanged = last;
+        return APPLIED_RANGE;
+    }
+
+    public int getFirstChanged() {
+        return mFirstChanged;
+    }
+
+    public int getLastChanged() {
+        return mLastChanged;
+    }
+
+    /* The index of the next RECENT window a server should be asked for, -1 for none */
+    public int nextWindow(Source source, int lastVisible) {
+        if (!source.connected)
+            return -1;
+        return source.pager.next(lastVisible(source, lastVisible));
+    }
+
+    public boolean needsEviction(int lastVisible) {
+        return mTasks.size() > lastVisible + 1 + EVICT_PAGES * pageSize();
+    }
+
+    /* Keeps memory bounded by dropping rows far below lastVisible, returns how many went from the end */
+    public int evictFarPages(int lastVisible) {
+        if (!needsEviction(lastVisible))
+            return 0;
+
+        int keep = lastVisible + 1 + KEEP_PAGES * pageSize();
+        int removed = 0;
+
+        while (mTasks.size() > keep) {
+            Task task = mTasks.getLast();
+            if (task.active)
+                break;
+
+            removeTask(task);
+            ++removed;
+        }
+
+        if (removed == 0)
+            return 0;
+
+        /* Each server pages on its own, its rows left are what it has loaded */
+        for (int i = 0; i < mSources.size(); ++i) {
+            Source source = mSources.get(i);
+            source.pager.rewind(source.count);
+
+            if (source.recentTailIndex != -1 && !mTasks.contains(source.recentTail)) {
+                source.recentTail = lastTask(source);
+                source.recentTailIndex = source.pager.getLoaded() - 1;
+            }
+        }
+
+        return removed;
+    }
+
+    /* The last visible row counted among the rows of one server only */
+    private int lastVisible(Source source, int lastVisible) {
+        if (mSources.size() == 1)
+            return lastVisible;
+
+        int visible = 0;
+        for (int i = 0; i <= lastVisible && i < mTasks.size(); ++i) {
+            if (mTasks.getAt(i).source.equals(source.key))
+                ++visible;
+        }
+        return Math.max(0, visible - 1);
+    }
+
+    private int pageSize() {
+        int pageSize = 1;
+        for (int i = 0; i < mSources.size(); ++i)
+            pageSize = Math.max(pageSize, mSources.get(i).pager.getPageSize());
+        return pageSize;
+    }
+
+    /* The caller adds the task to mTasks right away */
+    private Task newTask(Source source, long id, String name) {
+        long key = mNextKey++;
+
+        source.keys.put(id, (int) key);
+        ++source.count;
+        return new Task(key, source.key, id, name);
+    }
+
+    private void dropChanges(Source source) {
+        for (int i = mChanges.size() - 1; i >= 0; --i) {
+            if (mChanges.get(i).source == source)
+                mChanges.remove(i);
+        }
+    }
+
+    private void dropChanges(Source source, long id) {
+        for (int i = mChanges.size() - 1; i >= 0; --i) {
+            Change change = mChanges.get(i);
+            if (change.source == source && change.taskId == id)
+                mChanges.remove(i);
+        }
+    }
+
+    private void setActive(Task task, boolean active) {
+        if (task.active == active)
+            return;
+
+        task.active = active;
+        if (active)
+            mRunning.add(task);
+        else
+            mRunning.remove(task);
+    }
+
+    private void removeTask(Task task) {
+        mTasks.remove(task.key);
+        if (task.active)
+            mRunning.remove(task);
+
+        Source source = findSource(task.source);
+        source.keys.remove(task.id);
+        --source.count;
+    }
+
+    private long lastTask(Source source) {
+        for (int i = mTasks.size() - 1; i >= 0; --i) {
+            Task task = mTasks.getAt(i);
+            if (task.source.equals(source.key))
+                return task.key;
+        }
+        return 0;
+    }
+
+    private Task recentTask(Source source, int row) {
+        TaskRows recent = source.pendingRecent;
+        Task task = findTask(source, recent.ids[row]);
+        return task != null ? task : newTask(source, recent.ids[row], recent.names[row]);
+    }
+}
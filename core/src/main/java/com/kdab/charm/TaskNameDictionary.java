@@ -0,0 +1,75 @@
+package com.kdab.charm;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/*
+ * One String per task id for the names coming off the wire. The encoded
+ * name is compared byte for byte with what the id had last time and only
+ * decoded again when the server renamed the task, so rows, pushes and the
+ * events built from them keep sharing the same few hundred strings.
+ */
+class TaskNameDictionary {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /* Far more tasks than a timesheet has, the dictionary starts over beyond it */
+    private static final int MAX_NAMES = 4096;
+
+    private final LongIntMap mSlots = new LongIntMap(64);
+    private byte[][] mBytes = new byte[64][];
+    private String[] mNames = new String[64];
+    private int mSize = 0;
+    private int mDecoded = 0;
+
+    public String get(long id, byte[] buffer, int start, int end) {
+        int slot = mSlots.get(id, -1);
+
+        if (slot != -1) {
+            if (equals(mBytes[slot], buffer, start, end))
+                return mNames[slot];
+        } else {
+            if (mSize == MAX_NAMES)
+                clear();
+
+            if (mSize == mNames.length) {
+                mBytes = Arrays.copyOf(mBytes, mSize * 2);
+                mNames = Arrays.copyOf(mNames, mSize * 2);
+            }
+
+            slot = mSize++;
+            mSlots.put(id, slot);
+        }
+
+        ++mDecoded;
+        mBytes[slot] = Arrays.copyOfRange(buffer, start, end);
+        mNames[slot] = new String(buffer, start, end - start, UTF8);
+        return mNames[slot];
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /* How many names had to be decoded, lookups that were not are the savings */
+    public int getDecoded() {
+        return mDecoded;
+    }
+
+    public void clear() {
+        mSlots.clear();
+        Arrays.fill(mBytes, 0, mSize, null);
+        Arrays.fill(mNames, 0, mSize, null);
+        mSize = 0;
+    }
+
+    private static boolean equals(byte[] known, byte[] buffer, int start, int end) {
+        if (known.length != end - start)
+            return false;
+
+        for (int i = 0; i < known.length; ++i) {
+            if (known[i] != buffer[start + i])
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,54 @@
+package com.kdab.charm;
+
+import java.util.Arrays;
+
+/*
+ * Task rows kept in parallel arrays that survive clear(), so a pooled owner
+ * stops allocating once it has seen its largest batch. For replies the value
+ * is the RECENT index or the STATUS running time in seconds.
+ */
+class TaskRows {
+    /* STATUS value for a task the reply no longer lists as running */
+    public static final int NOT_RUNNING = -1;
+
+    public long[] ids = new long[8];
+    public int[] values = new int[8];
+    public String[] names = new String[8];
+    public String[] sources = new String[8];
+    public int count = 0;
+
+    public void add(long id, int value, String name) {
+        add(id, value, name, null);
+    }
+
+    /* Only the cache fills in the server, events carry it once for all their rows */
+    public void add(long id, int value, String name, String source) {
+        if (count == ids.length) {
+            ids = Arrays.copyOf(ids, count * 2);
+            values = Arrays.copyOf(values, count * 2);
+            names = Arrays.copyOf(names, count * 2);
+            sources = Arrays.copyOf(sources, count * 2);
+        }
+
+        ids[count] = id;
+        values[count] = value;
+        names[count] = name;
+        sources[count] = source;
+        ++count;
+    }
+
+    public void addAll(TaskRows rows) {
+        for (int i = 0; i < rows.count; ++i)
+            add(rows.ids[i], rows.values[i], rows.names[i], rows.sources[i]);
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(names, 0, count, null);
+        Arrays.fill(sources, 0, count, null);
+        count = 0;
+    }
+}
@@ -0,0 +1,287 @@
+package com.kdab.charm;
+
+import java.util.Arrays;
+
+/*
+ * Tasks live in slots addressed through an index on their key. The display
+ * order is a treap threaded through the slot arrays, keyed by position
+ * rather than by value: every node knows its parent and the size of its
+ * subtree, so moving, inserting and removing a task and both lookups by
+ * position take O(log n), and nothing is ever rebuilt or shifted.
+ */
+class TaskStore {
+    private static final int NIL = -1;
+
+    private final LongIntMap mIndex;
+    private Task[] mTasks;
+    private int[] mLeft;
+    private int[] mRight;
+    private int[] mParent;
+
+    /* Nodes in the subtree, 0 while a slot is not part of the order */
+    private int[] mCount;
+    private int[] mPriority;
+    private int mRoot = NIL;
+    private int mFree = NIL;
+    private int mUsed = 0;
+    private int mSize = 0;
+    private int mSeed = 0x2545f491;
+
+    /* The two halves split() leaves behind */
+    private int mSplitLeft;
+    private int mSplitRight;
+
+    public TaskStore() {
+        this(16);
+    }
+
+    public TaskStore(int capacity) {
+        capacity = Math.max(capacity, 4);
+
+        mIndex = new LongIntMap(capacity);
+        mTasks = new Task[capacity];
+        mLeft = new int[capacity];
+        mRight = new int[capacity];
+        mParent = new int[capacity];
+        mCount = new int[capacity];
+        mPriority = new int[capacity];
+    }
+
+    public Task get(long key) {
+        int slot = mIndex.get(key, NIL);
+        return slot == NIL ? null : mTasks[slot];
+    }
+
+    public boolean contains(long key) {
+        return mIndex.get(key, NIL) != NIL;
+    }
+
+    /* Inserts the task, or moves the one already stored under its key, to the top */
+    public Task addFirst(Task task) {
+        int slot = slotFor(task);
+        unlink(slot);
+        link(slot, 0);
+        return mTasks[slot];
+    }
+
+    /* Inserts the task, or moves the one already stored under its key, to the bottom */
+    public Task addLast(Task task) {
+        int slot = slotFor(task);
+        unlink(slot);
+        link(slot, mSize - 1);
+        return mTasks[slot];
+    }
+
+    /* Inserts the task, or moves the one already stored under its key, right behind anchor */
+    public Task addAfter(long anchor, Task task) {
+        int after = mIndex.get(anchor, NIL);
+        if (after == NIL)
+            return addLast(task);
+
+        int slot = slotFor(task);
+        if (slot != after) {
+            unlink(slot);
+            link(slot, position(after) + 1);
+        }
+        return mTasks[slot];
+    }
+
+    public Task getLast() {
+        return mSize == 0 ? null : getAt(mSize - 1);
+    }
+
+    public Task remove(long key) {
+        int slot = mIndex.get(key, NIL);
+        if (slot == NIL)
+            return null;
+
+        Task task = mTasks[slot];
+
+        unlink(slot);
+        mIndex.remove(key);
+        mTasks[slot] = null;
+        mRight[slot] = mFree;
+        mFree = slot;
+        --mSize;
+
+        return task;
+    }
+
+    public Task getAt(int position) {
+        if (position < 0 || position >= mSize)
+            throw new IndexOutOfBoundsException("Position " + position + " of " + mSize);
+
+        int node = mRoot;
+        while (true) {
+            int left = count(mLeft[node]);
+            if (position < left) {
+                node = mLeft[node];
+            } else if (position == left) {
+                return mTasks[node];
+            } else {
+                position -= left + 1;
+                node = mRight[node];
+            }
+        }
+    }
+
+    public int indexOf(long key) {
+        int slot = mIndex.get(key, NIL);
+        return slot == NIL ? -1 : position(slot);
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public void clear() {
+        Arrays.fill(mTasks, 0, mUsed, null);
+        Arrays.fill(mCount, 0, mUsed, 0);
+        mIndex.clear();
+        mRoot = mFree = NIL;
+        mUsed = 0;
+        mSize = 0;
+    }
+
+    /* A new slot is counted in mSize but not linked yet */
+    private int slotFor(Task task) {
+        int slot = mIndex.get(task.key, NIL);
+        if (slot != NIL)
+            return slot;
+
+        if (mFree != NIL) {
+            slot = mFree;
+            mFree = mRight[slot];
+        } else {
+            if (mUsed == mTasks.length)
+                grow();
+            slot = mUsed++;
+        }
+
+        mTasks[slot] = task;
+        mCount[slot] = 0;
+        mIndex.put(task.key, slot);
+        ++mSize;
+
+        return slot;
+    }
+
+    private int count(int node) {
+        return node == NIL ? 0 : mCount[node];
+    }
+
+    /* Left subtree plus, on the way up, every left sibling subtree and parent passed from the right */
+    private int position(int slot) {
+        int position = count(mLeft[slot]);
+
+        for (int node = slot, parent = mParent[slot]; parent != NIL; node = parent, parent = mParent[parent]) {
+            if (mRight[parent] == node)
+                position += count(mLeft[parent]) + 1;
+        }
+        return position;
+    }
+
+    /* Takes the slot out of the order by putting its merged children in its place */
+    private void unlink(int slot) {
+        if (mCount[slot] == 0)
+            return;
+
+        int child = merge(mLeft[slot], mRight[slot]);
+        int parent = mParent[slot];
+
+        if (child != NIL)
+            mParent[child] = parent;
+
+        if (parent == NIL)
+            mRoot = child;
+        else if (mLeft[parent] == slot)
+            mLeft[parent] = child;
+        else
+            mRight[parent] = child;
+
+        for (int node = parent; node != NIL; node = mParent[node])
+            --mCount[node];
+
+        mCount[slot] = 0;
+    }
+
+    private void link(int slot, int position) {
+        mSeed ^= mSeed << 13;
+        mSeed ^= mSeed >>> 17;
+        mSeed ^= mSeed << 5;
+
+        mLeft[slot] = NIL;
+        mRight[slot] = NIL;
+        mCount[slot] = 1;
+        mPriority[slot] = mSeed;
+
+        split(mRoot, position);
+        int right = mSplitRight;
+        mRoot = merge(merge(mSplitLeft, slot), right);
+        mParent[mRoot] = NIL;
+    }
+
+    /* Leaves the first `position` nodes of the subtree in mSplitLeft and the rest in mSplitRight */
+    private void split(int node, int position) {
+        if (node == NIL) {
+            mSplitLeft = NIL;
+            mSplitRight = NIL;
+            return;
+        }
+
+        int left = count(mLeft[node]);
+        if (position <= left) {
+            split(mLeft[node], position);
+            mLeft[node] = mSplitRight;
+            update(node);
+            mSplitRight = node;
+        } else {
+            split(mRight[node], position - left - 1);
+            mRight[node] = mSplitLeft;
+            update(node);
+            mSplitLeft = node;
+        }
+
+        mParent[node] = NIL;
+    }
+
+    /* Every node of a comes before every node of b */
+    private int merge(int a, int b) {
+        if (a == NIL)
+            return b;
+        if (b == NIL)
+            return a;
+
+        if (mPriority[a] > mPriority[b]) {
+            mRight[a] = merge(mRight[a], b);
+            update(a);
+            return a;
+        }
+
+        mLeft[b] = merge(a, mLeft[b]);
+        update(b);
+        return b;
+    }
+
+    private void update(int node) {
+        int left = mLeft[node];
+        int right = mRight[node];
+
+        mCount[node] = 1 + count(left) + count(right);
+        if (left != NIL)
+            mParent[left] = node;
+        if (right != NIL)
+            mParent[right] = node;
+    }
+
+    private void grow() {
+        int capacity = mTasks.length * 2;
+
+        mTasks = Arrays.copyOf(mTasks, capacity);
+        mLeft = Arrays.copyOf(mLeft, capacity);
+        mRight = Arrays.copyOf(mRight, capacity);
+        mParent = Arrays.copyOf(mParent, capacity);
+        mCount = Arrays.copyOf(mCount, capacity);
+        mPriority = Arrays.copyOf(mPriority, capacity);
+    }
+}
@@ -0,0 +1,207 @@
+package com.kdab.charm;
+
+import junit.framework.TestCase;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+public class BinaryCodecTest extends TestCase {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String[] EVENTS = {
+            "complete 1",
+            "activated 42 Development",
+            "recent 42 Development 0",
+            "recent 107 Meetings 1",
+            "recent 12345678901 Support: \u00dcbersetzung 2",
+            "complete 3",
+            "status 42 3600",
+            "status 300000 1",
+            "complete 4",
+            "nak 4",
+            "deactivated 42 Development",
+    };
+
+    public void testVarints() {
+        long[] values = { 0, 1, 127, 128, 300, Integer.MAX_VALUE, Long.MAX_VALUE };
+        ByteBuffer buffer = ByteBuffer.allocate(128);
+
+        for (long value : values)
+            BinaryCodec.putVarint(buffer, value);
+
+        assertEquals(1 + 1 + 1 + 2 + 2 + 5 + 9, buffer.position());
+        assertEquals(2, BinaryCodec.varintSize(300));
+        assertEquals(9, BinaryCodec.varintSize(Long.MAX_VALUE));
+    }
+
+    public void testEverySplitPoint() throws ProtocolException {
+        byte[] stream = stream();
+
+        for (int split = 0; split <= stream.length; ++split)
+            assertEvents(decode(stream, split));
+    }
+
+    public void testPendingCommandsAreCorrelated() throws ProtocolException {
+        Recorder recorder = decode(stream(), stream().length);
+        assertTrue(recorder.pending.isEmpty());
+    }
+
+    public void testOversizedFrameIsRejected() {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        BinaryCodec.putVarint(buffer, BinaryCodec.MAX_FRAME + 1);
+        buffer.put(BinaryCodec.FRAME_END);
+        buffer.flip();
+
+        try {
+            new Recorder().codec.decode(buffer);
+            fail("Accepted a frame longer than MAX_FRAME");
+        } catch (ProtocolException e) {
+            /* Expected */
+        }
+    }
+
+    public void testCommandsAreCompact() {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+
+        BinaryCodec.putCommand(buffer, PendingRequests.COMMAND_START, 42, 0, 0);
+        assertEquals(3, buffer.position());
+
+        buffer.clear();
+        BinaryCodec.putCommand(buffer, PendingRequests.COMMAND_RECENT, 0, 1000, 50);
+        assertEquals(5, buffer.position());
+
+        buffer.clear();
+        BinaryCodec.putCommand(buffer, PendingRequests.COMMAND_STATUS, 0, 0, 0);
+        assertEquals(2, buffer.position());
+    }
+
+    public void testPongAnswersEverythingBeforePing() throws ProtocolException {
+        Recorder recorder = new Recorder();
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+
+        BinaryCodec.putCommand(buffer, PendingRequests.COMMAND_PING, 0, 0, 0);
+        assertEquals(2, buffer.position());
+
+        recorder.pending.add(PendingRequests.COMMAND_STOP, 7, 0, 0);
+        recorder.pending.add(PendingRequests.COMMAND_PING, 0, 0, 0);
+        recorder.pending.add(PendingRequests.COMMAND_STATUS, 0, 0, 0);
+
+        buffer.clear();
+        BinaryCodec.putEmpty(buffer, BinaryCodec.FRAME_PONG);
+        buffer.flip();
+        recorder.codec.decode(buffer);
+
+        assertEquals(2, recorder.events.size());
+        assertEquals("complete 2", recorder.events.get(0));
+        assertEquals("complete 5", recorder.events.get(1));
+        assertEquals(1, recorder.pending.size());
+    }
+
+    /* A START confirmed by its push, a RECENT and a STATUS reply, and a STATUS with nothing running */
+    private static byte[] stream() {
+        ByteBuffer out = ByteBuffer.allocate(256);
+
+        BinaryCodec.putTask(out, BinaryCodec.FRAME_TASK_ACTIVATED, 42, bytes("Development"));
+        BinaryCodec.putTask(out, BinaryCodec.FRAME_RECENT_ROW, 42, bytes("Development"));
+        BinaryCodec.putTask(out, BinaryCodec.FRAME_RECENT_ROW, 107, bytes("Meetings"));
+        BinaryCodec.putTask(out, BinaryCodec.FRAME_RECENT_ROW, 12345678901L, bytes("Support: \u00dcbersetzung"));
+        BinaryCodec.putEmpty(out, BinaryCodec.FRAME_END);
+        BinaryCodec.putStatusRow(out, 42, 3600);
+        BinaryCodec.putStatusRow(out, 300000, 1);
+        BinaryCodec.putEmpty(out, BinaryCodec.FRAME_END);
+        BinaryCodec.putEmpty(out, BinaryCodec.FRAME_NAK);
+        BinaryCodec.putTask(out, BinaryCodec.FRAME_TASK_DEACTIVATED, 42, bytes("Development"));
+
+        byte[] stream = new byte[out.position()];
+        out.flip();
+        out.get(stream);
+        return stream;
+    }
+
+    /* Feeds the stream in two reads the way CharmTransport does, compacting in between */
+    private static Recorder decode(byte[] stream, int split) throws ProtocolException {
+        Recorder recorder = new Recorder();
+        ByteBuffer buffer = ByteBuffer.allocate(stream.length);
+
+        recorder.pending.add(PendingRequests.COMMAND_START, 42, 0, 0);
+        recorder.pending.add(PendingRequests.COMMAND_RECENT, 0, 0, 10);
+        recorder.pending.add(PendingRequests.COMMAND_STATUS, 0, 0, 0);
+        recorder.pending.add(PendingRequests.COMMAND_STATUS, 0, 0, 0);
+
+        buffer.put(stream, 0, split);
+        buffer.flip();
+        recorder.codec.decode(buffer);
+        buffer.compact();
+
+        buffer.put(stream, split, stream.length - split);
+        buffer.flip();
+        recorder.codec.decode(buffer);
+        assertFalse(buffer.hasRemaining());
+
+        return recorder;
+    }
+
+    private static void assertEvents(Recorder recorder) {
+        assertEquals(EVENTS.length, recorder.events.size());
+        for (int i = 0; i < EVENTS.length; ++i)
+            assertEquals(EVENTS[i], recorder.events.get(i));
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(UTF8);
+    }
+
+    private static class Recorder implements FrameParser.FrameHandler {
+        final List<String> events = new ArrayList<>();
+        final PendingRequests pending = new PendingRequests();
+        final BinaryCodec codec = new BinaryCodec(new FrameParser(this, pending));
+
+        @Override
+        public void onHello() {
+            events.add("hello");
+        }
+
+        @Override
+        public void onAck(int options) {
+            events.add("ack");
+        }
+
+        @Override
+        public void onNak(PendingRequests.Request request) {
+            events.add("nak " + (request == null ? 0 : request.command));
+        }
+
+        @Override
+        public void onReplyComplete(PendingRequests.Request request) {
+            events.add("complete " + request.command);
+        }
+
+        @Override
+        public void onTaskActivated(long id, String name) {
+            events.add("activated " + id + " " + name);
+        }
+
+        @Override
+        public void onTaskDeactivated(long id, String name) {
+            events.add("deactivated " + id + " " + name);
+        }
+
+        @Override
+        public void onRecentTask(long id, String name, int index) {
+            events.add("recent " + id + " " + name + " " + index);
+        }
+
+        @Override
+        public void onTaskStatus(long id, int seconds) {
+            events.add("status " + id + " " + seconds);
+        }
+
+        @Override
+        public void onUnknownFrame(byte[] buffer, int start, int end) {
+            events.add("unknown");
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.kdab.charm;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+public class CommandBatchTest extends TestCase {
+    public void testBatchPutsTapsAheadOfPolls() {
+        CommandBatch batch = new CommandBatch();
+        PendingRequests pending = new PendingRequests();
+        ByteBuffer out = ByteBuffer.allocate(256);
+
+        batch.add(PendingRequests.COMMAND_STATUS, 0, 0, 0);
+        batch.add(PendingRequests.COMMAND_RECENT, 0, 10, 10);
+        batch.add(PendingRequests.COMMAND_START, 42, 0, 0);
+        batch.add(PendingRequests.COMMAND_RECENT, 0, 0, 10);
+        batch.add(PendingRequests.COMMAND_STOP, 7, 0, 0);
+        batch.encode(out, pending);
+
+        /* Text rows of the RECENT and STATUS replies would be told apart by nothing */
+        assertEquals("START 42\nSTOP 7\nRECENT 0 10\n",
+                new String(out.array(), 0, out.position(), Charset.forName("US-ASCII")));
+        assertEquals(1, batch.size());
+
+        while (!pending.isEmpty())
+            pending.complete();
+        batch.encode(out, pending);
+
+        assertEquals("START 42\nSTOP 7\nRECENT 0 10\nSTATUS\n",
+                new String(out.array(), 0, out.position(), Charset.forName("US-ASCII")));
+    }
+
+    public void testBinaryPollsArePipelined() {
+        CommandBatch batch = new CommandBatch();
+        PendingRequests pending = new PendingRequests();
+        ByteBuffer out = ByteBuffer.allocate(256);
+
+        batch.setBinary(true);
+        batch.add(PendingRequests.COMMAND_RECENT, 0, 0, 10);
+        batch.add(PendingRequests.COMMAND_STATUS, 0, 0, 0);
+
+        assertEquals(2, batch.encode(out, pending));
+        assertTrue(batch.isEmpty());
+    }
+
+    public void testWithdrawnCommandsAreNotSent() {
+        CommandBatch batch = new CommandBatch();
+        PendingRequests pending = new PendingRequests();
+        ByteBuffer out = ByteBuffer.allocate(256);
+
+        assertTrue(batch.add(PendingRequests.COMMAND_START, 42, 0, 0));
+        assertFalse(batch.add(PendingRequests.COMMAND_STOP, 42, 0, 0));
+        assertTrue(batch.isEmpty());
+
+        batch.add(PendingRequests.COMMAND_STOP, 7, 0, 0);
+        batch.add(PendingRequests.COMMAND_START, 8, 0, 0);
+        batch.add(PendingRequests.COMMAND_STATUS, 0, 0, 0);
+        assertEquals(1, batch.withdraw(7));
+        assertEquals(0, batch.withdraw(7));
+        batch.encode(out, pending);
+
+        assertEquals("START 8\nSTATUS\n",
+                new String(out.array(), 0, out.position(), Charset.forName("US-ASCII")));
+        assertEquals(2, pending.size());
+    }
+}
@@ -0,0 +1,75 @@
+package com.kdab.charm;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.channels.Selector;
+
+public class ConnectionDiscoveryTest extends TestCase {
+    public void testPicksLowestLatencyHost() {
+        ConnectionDiscovery discovery = new ConnectionDiscovery();
+
+        assertTrue(discovery.onBeacon("10.0.0.1", 1000));
+        assertTrue(discovery.onBeacon("10.0.0.2", 1000));
+        assertTrue(discovery.onBeacon("10.0.0.3", 1100));
+        assertFalse(discovery.onBeacon("10.0.0.1", 1200));
+
+        /* Nothing measured yet, the most recently seen wins */
+        assertEquals("10.0.0.1", discovery.pickHost(null, 2000));
+
+        discovery.onConnected("10.0.0.2", 40);
+        discovery.onConnected("10.0.0.3", 15);
+        assertEquals("10.0.0.3", discovery.pickHost(null, 2000));
+        assertEquals("10.0.0.2", discovery.pickHost("10.0.0.3", 2000));
+
+        /* Failures count before latency */
+        discovery.onFailed("10.0.0.3");
+        assertEquals("10.0.0.2", discovery.pickHost(null, 2000));
+    }
+
+    public void testReopenMovesToTheNewPort() throws IOException {
+        ConnectionDiscovery discovery = new ConnectionDiscovery();
+        Selector selector = Selector.open();
+        DatagramSocket sender = new DatagramSocket();
+
+        try {
+            discovery.open(selector, freePort());
+            int port = freePort();
+            discovery.open(selector, port);
+            assertEquals(port, discovery.getPort());
+
+            sender.send(new DatagramPacket(new byte[] { 'C' }, 1, InetAddress.getLoopbackAddress(), port));
+            selector.select(10000);
+            assertTrue(discovery.isReadable(selector));
+            assertTrue(discovery.read(0));
+
+            discovery.close();
+            assertEquals(-1, discovery.getPort());
+        } finally {
+            sender.close();
+            discovery.close();
+            selector.close();
+        }
+    }
+
+    public void testHostsExpire() {
+        ConnectionDiscovery discovery = new ConnectionDiscovery();
+
+        discovery.onBeacon("10.0.0.1", 0);
+        discovery.onBeacon("10.0.0.2", 30000);
+
+        assertEquals("10.0.0.2", discovery.pickHost(null, 61000));
+        assertEquals(1, discovery.size());
+        assertNull(discovery.pickHost("10.0.0.2", 61000));
+    }
+
+    private static int freePort() throws IOException {
+        DatagramSocket socket = new DatagramSocket();
+        int port = socket.getLocalPort();
+        socket.close();
+        return port;
+    }
+}
@@ -0,0 +1,23 @@
+package com.kdab.charm;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.channels.Selector;
+
+public class HostLookupTest extends TestCase {
+    public void testAnswerWakesTheSelector() throws IOException {
+        Selector selector = Selector.open();
+
+        try {
+            HostLookup lookup = HostLookup.start(selector, "127.0.0.1", 5323);
+            selector.select(10000);
+
+            assertTrue(lookup.isDone());
+            assertFalse(lookup.getAddress().isUnresolved());
+            assertEquals(5323, lookup.getAddress().getPort());
+        } finally {
+            selector.close();
+        }
+    }
+}
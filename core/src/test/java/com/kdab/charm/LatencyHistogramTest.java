@@ -0,0 +1,64 @@
+package com.kdab.charm;
+
+import junit.framework.TestCase;
+
+public class LatencyHistogramTest extends TestCase {
+    public void testBucketsCoverEveryValueWithinASixteenth() {
+        int previous = -1;
+
+        for (long value = 0; value < 100000; ++value) {
+            int bucket = LatencyHistogram.bucket(value);
+            assertTrue(bucket == previous || bucket == previous + 1);
+            assertTrue(LatencyHistogram.highestValue(bucket) >= value);
+            assertTrue(LatencyHistogram.highestValue(bucket) - value <= value / 16);
+            previous = bucket;
+        }
+
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.highestValue(LatencyHistogram.bucket(Long.MAX_VALUE)));
+    }
+
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(50));
+
+        for (int value = 1; value <= 1000; ++value)
+            histogram.record(value);
+        histogram.record(-5);
+
+        assertEquals(1001, histogram.getCount());
+        assertEquals(1000, histogram.getMax());
+        assertEquals(500, histogram.getMean());
+        assertEquals(0, histogram.getPercentile(0));
+        assertTrue(Math.abs(histogram.getPercentile(50) - 500) <= 500 / 16);
+        assertTrue(Math.abs(histogram.getPercentile(99) - 990) <= 990 / 16);
+        assertEquals(1000, histogram.getPercentile(100));
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+    }
+
+    public void testConcurrentRecordsAreAllCounted() throws InterruptedException {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[4];
+
+        for (int i = 0; i < threads.length; ++i) {
+            final int offset = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int value = 0; value < 10000; ++value)
+                        histogram.record(value * 4 + offset);
+                }
+            };
+            threads[i].start();
+        }
+
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals(40000, histogram.getCount());
+        assertEquals(39999, histogram.getMax());
+        assertEquals(19999, histogram.getMean());
+    }
+}
@@ -0,0 +1,400 @@
+package com.kdab.charm;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class LineDecoderTest extends TestCase {
+    private static final String STREAM =
+            "TASK ACTIVATED 0042 Development\r\n" +
+            "0042 Development\n" +
+            "0107 Meetings\n" +
+            "12345 Support: \u00dcbersetzung\n" +
+            "TASK DEACTIVATED 0042 Development\n" +
+            "0107 3600\n" +
+            "NAK\n";
+
+    private static final String[] LINES = {
+            "TASK ACTIVATED 0042 Development",
+            "0042 Development",
+            "0107 Meetings",
+            "12345 Support: \u00dcbersetzung",
+            "TASK DEACTIVATED 0042 Development",
+            "0107 3600",
+            "NAK",
+    };
+
+    public void testSingleRead() {
+        assertLines(decode(bytes(STREAM), new int[0]));
+    }
+
+    public void testEverySplitPoint() {
+        byte[] stream = bytes(STREAM);
+
+        for (int split = 0; split <= stream.length; ++split)
+            assertLines(decode(stream, new int[] { split }));
+    }
+
+    public void testEveryPairOfSplitPoints() {
+        byte[] stream = bytes(STREAM);
+
+        for (int first = 0; first <= stream.length; ++first) {
+            for (int second = first; second <= stream.length; ++second)
+                assertLines(decode(stream, new int[] { first, second }));
+        }
+    }
+
+    public void testByteAtATime() {
+        byte[] stream = bytes(STREAM);
+        int[] splits = new int[stream.length];
+        for (int i = 0; i < splits.length; ++i)
+            splits[i] = i;
+
+        assertLines(decode(stream, splits));
+    }
+
+    public void testSuspendStopsAfterCurrentLine() {
+        final LineDecoder decoder = new LineDecoder();
+        final List<String> lines = new ArrayList<>();
+        byte[] stream = bytes("HEL" + "LO\nACK BINARY\n\u0001\u0002\n");
+
+        LineDecoder.LineListener listener = new LineDecoder.LineListener() {
+            @Override
+            public void onLine(byte[] buffer, int start, int end) {
+                lines.add(string(buffer, start, end));
+                if (lines.size() == 2)
+                    decoder.suspend();
+            }
+        };
+
+        assertEquals(3, decoder.feed(stream, 0, 3, listener));
+        int consumed = decoder.feed(stream, 3, stream.length - 3, listener);
+
+        assertEquals(14, consumed);
+        assertEquals(2, lines.size());
+        assertEquals("ACK BINARY", lines.get(1));
+        assertFalse(decoder.hasPartialLine());
+    }
+
+    public void testPartialLineIsHeldBack() {
+        LineDecoder decoder = new LineDecoder(4);
+        RecordingListener listener = new RecordingListener();
+        byte[] stream = bytes("0042 Development");
+
+        decoder.feed(stream, 0, stream.length, listener);
+
+        assertTrue(decoder.hasPartialLine());
+        assertEquals(0, listener.lines.size());
+
+        decoder.feed(bytes("\n"), 0, 1, listener);
+
+        assertFalse(decoder.hasPartialLine());
+        assertEquals("0042 Development", listener.lines.get(0));
+    }
+
+    public void testFrameParserAcrossSplits() {
+        byte[] stream = bytes("TASK ACTIVATED 0042 Development\n0042 Development\n12345 Support: \u00dcbersetzung\n");
+
+        for (int split = 0; split <= stream.length; ++split) {
+            RecordingHandler handler = new RecordingHandler();
+            PendingRequests pending = new PendingRequests();
+            FrameParser parser = new FrameParser(handler, pending);
+            LineDecoder decoder = new LineDecoder();
+
+            pending.add(PendingRequests.COMMAND_RECENT, 0, 0, 10);
+            decoder.feed(stream, 0, split, parser);
+            decoder.feed(stream, split, stream.length - split, parser);
+
+            assertEquals(3, handler.frames.size());
+            assertEquals("activated 42 Development", handler.frames.get(0));
+            assertEquals("recent 42 Development #0", handler.frames.get(1));
+            assertEquals("recent 12345 Support: \u00dcbersetzung #1", handler.frames.get(2));
+        }
+    }
+
+    public void testPipelinedReplies() {
+        RecordingHandler handler = new RecordingHandler();
+        PendingRequests pending = new PendingRequests();
+        FrameParser parser = new FrameParser(handler, pending);
+        byte[] stream = bytes("0107 3600\n" +
+                "TASK ACTIVATED 0042 Development\n" +
+                "0042 Development\n" +
+                "0107 Meetings\n" +
+                "NAK\n" +
+                "0007 12\n");
+
+        pending.add(PendingRequests.COMMAND_STATUS, 0, 0, 0);
+        pending.add(PendingRequests.COMMAND_START, 42, 0, 0);
+        pending.add(PendingRequests.COMMAND_RECENT, 0, 20, 2);
+        pending.add(PendingRequests.COMMAND_STOP, 7, 0, 0);
+        pending.add(PendingRequests.COMMAND_STATUS, 0, 0, 0);
+        new LineDecoder().feed(stream, 0, stream.length, parser);
+
+        /* The push ends the STATUS reply and confirms the START */
+        assertEquals("status 107 3600", handler.frames.get(0));
+        assertEquals("complete 4", handler.frames.get(1));
+        assertEquals("complete 1", handler.frames.get(2));
+        assertEquals("activated 42 Development", handler.frames.get(3));
+        assertEquals("recent 42 Development #20", handler.frames.get(4));
+        assertEquals("recent 107 Meetings #21", handler.frames.get(5));
+        assertEquals("complete 3", handler.frames.get(6));
+        assertEquals("nak 2", handler.frames.get(7));
+        assertEquals("status 7 12", handler.frames.get(8));
+        assertEquals(1, pending.size());
+
+        parser.onBurstEnd();
+
+        assertEquals("complete 4", handler.frames.get(9));
+        assertTrue(pending.isEmpty());
+    }
+
+    public void testRecentOutlastsReadsThatEndOnALine() {
+        RecordingHandler handler = new RecordingHandler();
+        PendingRequests pending = new PendingRequests();
+        FrameParser parser = new FrameParser(handler, pending);
+        LineDecoder decoder = new LineDecoder();
+        byte[] first = bytes("0001 One\n0002 Two\n");
+        byte[] second = bytes("0003 Three\n0004 Four\n0005 Five\nTASK ACTIVATED 0009 Nine\n");
+
+        pending.add(PendingRequests.COMMAND_RECENT, 0, 0, 4);
+        pending.add(PendingRequests.COMMAND_RECENT, 0, 4, 10);
+        decoder.feed(first, 0, first.length, parser);
+        assertTrue(parser.hasOpenReply());
+        decoder.feed(second, 0, second.length, parser);
+
+        assertEquals("recent 3 Three #2", handler.frames.get(2));
+        assertEquals("recent 4 Four #3", handler.frames.get(3));
+        assertEquals("complete 3", handler.frames.get(4));
+
+        /* A short window ends at the next line that is not one of its rows */
+        assertEquals("recent 5 Five #4", handler.frames.get(5));
+        assertEquals("complete 3", handler.frames.get(6));
+        assertEquals("activated 9 Nine", handler.frames.get(7));
+        assertTrue(pending.isEmpty());
+        assertFalse(parser.hasOpenReply());
+    }
+
+    public void testNakAfterRowsAnswersTheNextRequest() {
+        RecordingHandler handler = new RecordingHandler();
+        PendingRequests pending = new PendingRequests();
+        FrameParser parser = new FrameParser(handler, pending);
+        byte[] stream = bytes("0001 30\n0002 60\nNAK\n");
+
+        pending.add(PendingRequests.COMMAND_STATUS, 0, 0, 0);
+        pending.add(PendingRequests.COMMAND_START, 42, 0, 0);
+        new LineDecoder().feed(stream, 0, stream.length, parser);
+
+        assertEquals("status 1 30", handler.frames.get(0));
+        assertEquals("status 2 60", handler.frames.get(1));
+        assertEquals("complete 4", handler.frames.get(2));
+        assertEquals("nak 1", handler.frames.get(3));
+        assertTrue(pending.isEmpty());
+    }
+
+    public void testStatusWaitsForAShortRecentWindow() {
+        RecordingHandler handler = new RecordingHandler();
+        PendingRequests pending = new PendingRequests();
+        FrameParser parser = new FrameParser(handler, pending);
+        LineDecoder decoder = new LineDecoder();
+        CommandBatch batch = new CommandBatch();
+        ByteBuffer out = ByteBuffer.allocate(256);
+
+        /* A server with three tasks, two of them running, as on every connect */
+        batch.add(PendingRequests.COMMAND_RECENT, 0, 0, 10);
+        batch.add(PendingRequests.COMMAND_STATUS, 0, 0, 0);
+        batch.encode(out, pending);
+        assertEquals("RECENT 0 10\n", string(out.array(), 0, out.position()));
+
+        byte[] recent = bytes("0000 Zero\n0001 One\n0002 Two\n");
+        decoder.feed(recent, 0, recent.length, parser);
+        parser.onBurstEnd();
+
+        out.clear();
+        batch.encode(out, pending);
+        assertEquals("STATUS\n", string(out.array(), 0, out.position()));
+
+        byte[] status = bytes("0000 5\n0001 65\n");
+        decoder.feed(status, 0, status.length, parser);
+        parser.onBurstEnd();
+
+        assertEquals(Arrays.asList("recent 0 Zero #0", "recent 1 One #1", "recent 2 Two #2", "complete 3",
+                "status 0 5", "status 1 65", "complete 4"), handler.frames);
+        assertTrue(pending.isEmpty());
+    }
+
+    public void testAckOptions() {
+        RecordingHandler handler = new RecordingHandler();
+        FrameParser parser = new FrameParser(handler, new PendingRequests());
+        byte[] stream = bytes("ACK\nACK BINARY\nACK DEFLATE BINARY\nACK DEFLATED ZSTD\nACK PING\n");
+
+        new LineDecoder().feed(stream, 0, stream.length, parser);
+
+        assertEquals("ack 0", handler.frames.get(0));
+        assertEquals("ack " + FrameParser.OPTION_BINARY, handler.frames.get(1));
+        assertEquals("ack " + (FrameParser.OPTION_BINARY | FrameParser.OPTION_DEFLATE), handler.frames.get(2));
+        assertEquals("ack 0", handler.frames.get(3));
+        assertEquals("ack " + FrameParser.OPTION_PING, handler.frames.get(4));
+    }
+
+    public void testPongAnswersPing() {
+        RecordingHandler handler = new RecordingHandler();
+        PendingRequests pending = new PendingRequests();
+        FrameParser parser = new FrameParser(handler, pending);
+        byte[] stream = bytes("TASK ACTIVATED 42 Development\nPONG\n");
+
+        pending.add(PendingRequests.COMMAND_START, 42, 0, 0);
+        pending.add(PendingRequests.COMMAND_STOP, 7, 0, 0);
+        pending.add(PendingRequests.COMMAND_PING, 0, 0, 0);
+        new LineDecoder().feed(stream, 0, stream.length, parser);
+
+        assertEquals("complete 1", handler.frames.get(0));
+        assertEquals("activated 42 Development", handler.frames.get(1));
+        assertEquals("complete 2", handler.frames.get(2));
+        assertEquals("complete 5", handler.frames.get(3));
+        assertTrue(pending.isEmpty());
+    }
+
+    public void testParserSharesNamesAcrossReplies() {
+        final String[] seen = new String[2];
+        FrameParser.FrameHandler handler = new RecordingHandler() {
+            @Override
+            public void onRecentTask(long id, String name, int index) {
+                seen[index] = name;
+            }
+        };
+        PendingRequests pending = new PendingRequests();
+        FrameParser parser = new FrameParser(handler, pending);
+        byte[] stream = bytes("0042 Development\n0042 Development\n");
+
+        pending.add(PendingRequests.COMMAND_RECENT, 0, 0, 1);
+        pending.add(PendingRequests.COMMAND_RECENT, 0, 1, 1);
+        new LineDecoder().feed(stream, 0, stream.length, parser);
+
+        assertEquals("Development", seen[0]);
+        assertSame(seen[0], seen[1]);
+    }
+
+    public void testIdsOfAnyWidth() {
+        RecordingHandler handler = new RecordingHandler();
+        PendingRequests pending = new PendingRequests();
+        FrameParser parser = new FrameParser(handler, pending);
+        byte[] stream = bytes("TASK ACTIVATED 7 Short\n" +
+                "TASK DEACTIVATED 9223372036854775807 Widest\n" +
+                "10000 Support\n" +
+                "12345678901 Development\n");
+
+        pending.add(PendingRequests.COMMAND_RECENT, 0, 0, 2);
+        new LineDecoder().feed(stream, 0, stream.length, parser);
+
+        assertEquals("activated 7 Short", handler.frames.get(0));
+        assertEquals("deactivated 9223372036854775807 Widest", handler.frames.get(1));
+        assertEquals("recent 10000 Support #0", handler.frames.get(2));
+        assertEquals("recent 12345678901 Development #1", handler.frames.get(3));
+    }
+
+    public void testMalformedRowsAreReported() {
+        RecordingHandler handler = new RecordingHandler();
+        PendingRequests pending = new PendingRequests();
+        FrameParser parser = new FrameParser(handler, pending);
+        byte[] stream = bytes("TASK ACTIVATED x Development\n0107 abc\n99999999999999999999 Overflow\n");
+
+        pending.add(PendingRequests.COMMAND_STATUS, 0, 0, 0);
+        new LineDecoder().feed(stream, 0, stream.length, parser);
+
+        assertEquals(4, handler.frames.size());
+        assertEquals("unknown TASK ACTIVATED x Development", handler.frames.get(0));
+        assertEquals("complete 4", handler.frames.get(1));
+        assertEquals("unknown 0107 abc", handler.frames.get(2));
+    }
+
+    private static List<String> decode(byte[] stream, int[] splits) {
+        LineDecoder decoder = new LineDecoder(8);
+        RecordingListener listener = new RecordingListener();
+
+        int offset = 0;
+        for (int split : splits) {
+            decoder.feed(stream, offset, split - offset, listener);
+            offset = split;
+        }
+        decoder.feed(stream, offset, stream.length - offset, listener);
+
+        assertFalse(decoder.hasPartialLine());
+        return listener.lines;
+    }
+
+    private static void assertLines(List<String> lines) {
+        assertEquals(LINES.length, lines.size());
+        for (int i = 0; i < LINES.length; ++i)
+            assertEquals(LINES[i], lines.get(i));
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(Charset.forName("UTF-8"));
+    }
+
+    private static String string(byte[] buffer, int start, int end) {
+        return new String(buffer, start, end - start, Charset.forName("UTF-8"));
+    }
+
+    private static class RecordingListener implements LineDecoder.LineListener {
+        final List<String> lines = new ArrayList<>();
+
+        @Override
+        public void onLine(byte[] buffer, int start, int end) {
+            lines.add(string(buffer, start, end));
+        }
+    }
+
+    private static class RecordingHandler implements FrameParser.FrameHandler {
+        final List<String> frames = new ArrayList<>();
+
+        @Override
+        public void onHello() {
+            frames.add("hello");
+        }
+
+        @Override
+        public void onAck(int options) {
+            frames.add("ack " + options);
+        }
+
+        @Override
+        public void onNak(PendingRequests.Request request) {
+            frames.add("nak " + (request == null ? 0 : request.command));
+        }
+
+        @Override
+        public void onReplyComplete(PendingRequests.Request request) {
+            frames.add("complete " + request.command);
+        }
+
+        @Override
+        public void onTaskActivated(long id, String name) {
+            frames.add("activated " + id + " " + name);
+        }
+
+        @Override
+        public void onTaskDeactivated(long id, String name) {
+            frames.add("deactivated " + id + " " + name);
+        }
+
+        @Override
+        public void onRecentTask(long id, String name, int index) {
+            frames.add("recent " + id + " " + name + " #" + index);
+        }
+
+        @Override
+        public void onTaskStatus(long id, int seconds) {
+            frames.add("status " + id + " " + seconds);
+        }
+
+        @Override
+        public void onUnknownFrame(byte[] buffer, int start, int end) {
+            frames.add("unknown " + string(buffer, start, end));
+        }
+    }
+}
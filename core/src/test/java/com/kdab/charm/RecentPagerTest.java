@@ -0,0 +1,66 @@
+package com.kdab.charm;
+
+import junit.framework.TestCase;
+
+public class RecentPagerTest extends TestCase {
+    public void testPrefetchesOnePageAhead() {
+        RecentPager pager = new RecentPager(10);
+
+        assertEquals(0, pager.reset(10));
+        assertEquals(-1, pager.next(0));
+
+        /* Less than a page beyond the last visible row */
+        receive(pager, 0, 10, 10);
+        assertEquals(10, pager.next(0));
+
+        /* Only one window in flight */
+        assertEquals(-1, pager.next(15));
+
+        receive(pager, 10, 10, 10);
+        assertEquals(-1, pager.next(9));
+        assertEquals(20, pager.next(10));
+    }
+
+    public void testOnlyAnEmptyWindowEndsHistory() {
+        RecentPager pager = new RecentPager(10);
+        pager.reset(10);
+
+        /* Cut off, or the last rows there are, the next window tells */
+        receive(pager, 0, 10, 4);
+        assertEquals(4, pager.getLoaded());
+        assertEquals(4, pager.next(100));
+
+        receive(pager, 4, 10, 0);
+        assertEquals(4, pager.getLoaded());
+        assertEquals(-1, pager.next(100));
+    }
+
+    public void testRewindFetchesDroppedRowsAgain() {
+        RecentPager pager = new RecentPager(10);
+        pager.reset(10);
+
+        receive(pager, 0, 10, 10);
+        assertEquals(10, pager.next(5));
+        receive(pager, 10, 10, 10);
+        assertEquals(20, pager.next(15));
+        receive(pager, 20, 10, 3);
+        assertEquals(23, pager.next(22));
+        receive(pager, 23, 10, 0);
+        assertEquals(-1, pager.next(22));
+
+        pager.rewind(12);
+        assertEquals(12, pager.getLoaded());
+        assertEquals(12, pager.next(5));
+
+        /* A window asked for before the rewind completes late */
+        pager.onWindow(30, 10);
+        receive(pager, 12, 10, 10);
+        assertEquals(22, pager.next(20));
+    }
+
+    private void receive(RecentPager pager, int index, int count, int rows) {
+        for (int i = 0; i < rows; ++i)
+            pager.onRow(index + i);
+        pager.onWindow(index, count);
+    }
+}
@@ -0,0 +1,59 @@
+package com.kdab.charm;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+public class ReconnectSchedulerTest extends TestCase {
+    public void testBackoffIsCappedAndJittered() {
+        ReconnectScheduler scheduler = new ReconnectScheduler(new Random(1));
+        long previousWindow = 0;
+        boolean varied = false;
+        long first = -1;
+
+        for (int attempt = 0; attempt < 100; ++attempt) {
+            long delay = scheduler.nextDelay();
+            long window = Math.min(30000, 250L << Math.min(attempt, 20));
+
+            assertTrue(delay >= 0);
+            assertTrue(delay < window);
+            assertTrue(window >= previousWindow);
+            previousWindow = window;
+
+            if (first == -1)
+                first = delay;
+            else if (delay != first)
+                varied = true;
+        }
+
+        assertTrue(varied);
+    }
+
+    public void testResetStartsOver() {
+        ReconnectScheduler scheduler = new ReconnectScheduler(new Random(2));
+        for (int i = 0; i < 10; ++i)
+            scheduler.nextDelay();
+
+        scheduler.reset();
+        assertEquals(0, scheduler.getAttempts());
+        assertTrue(scheduler.nextDelay() < 250);
+    }
+
+    public void testTimeToReconnect() {
+        ReconnectScheduler scheduler = new ReconnectScheduler(new Random(3));
+
+        assertEquals(-1, scheduler.onConnectionEstablished(1000));
+
+        scheduler.onConnectionLost(2000);
+        scheduler.onConnectionLost(2500);
+        assertEquals(1500, scheduler.onConnectionEstablished(3500));
+
+        scheduler.onConnectionLost(10000);
+        assertEquals(500, scheduler.onConnectionEstablished(10500));
+
+        assertEquals(2, scheduler.getReconnects());
+        assertEquals(500, scheduler.getLastReconnectTime());
+        assertEquals(1500, scheduler.getMaxReconnectTime());
+        assertEquals(1000, scheduler.getMeanReconnectTime());
+    }
+}
@@ -0,0 +1,32 @@
+package com.kdab.charm;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+
+public class ServerListTest extends TestCase {
+    public void testParse() {
+        List<String> servers = ServerList.parse(" desktop, laptop:5324,,desktop:5323 , fe80::1", 5323);
+
+        assertEquals(3, servers.size());
+        assertEquals("desktop:5323", servers.get(0));
+        assertEquals("laptop:5324", servers.get(1));
+        assertEquals("fe80::1:5323", servers.get(2));
+    }
+
+    public void testKeyParts() {
+        assertEquals("laptop", ServerList.getHost("laptop:5324"));
+        assertEquals(5324, ServerList.getPort("laptop:5324"));
+        assertEquals("fe80::1", ServerList.getHost("fe80::1:5323"));
+        assertEquals(5323, ServerList.getPort("fe80::1:5323"));
+    }
+
+    public void testReplaceHost() {
+        assertEquals("192.168.1.7, laptop:5324",
+                ServerList.replaceHost("desktop, laptop:5324", 5323, "desktop:5323", "192.168.1.7"));
+        assertEquals("desktop, 10.0.0.2:5324",
+                ServerList.replaceHost("desktop, laptop:5324", 5323, "laptop:5324", "10.0.0.2"));
+        assertEquals("desktop",
+                ServerList.replaceHost("desktop", 5323, "elsewhere:5323", "10.0.0.2"));
+    }
+}
@@ -0,0 +1,189 @@
+package com.kdab.charm;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class TaskListTest extends TestCase {
+    private static final String DESKTOP = "desktop:5323";
+    private static final String LAPTOP = "laptop:5323";
+
+    private final List<String> mRecent = new ArrayList<>();
+    private final TaskList mList = new TaskList(new TaskList.RecentListener() {
+        @Override
+        public void onRecentTask(Task task, int index) {
+            mRecent.add(task.id + "@" + index);
+        }
+    });
+
+    @Override
+    protected void setUp() {
+        mList.setServers(Arrays.asList(DESKTOP, LAPTOP));
+    }
+
+    private static TaskRows rows(long... idsAndValues) {
+        TaskRows rows = new TaskRows();
+        for (int i = 0; i < idsAndValues.length; i += 2)
+            rows.add(idsAndValues[i], (int) idsAndValues[i + 1], "Task " + idsAndValues[i]);
+        return rows;
+    }
+
+    public void testRecentWindowsFollowTheHead() {
+        TaskList.Source desktop = mList.findSource(DESKTOP);
+        mList.connect(desktop, 2);
+
+        mList.addRecent(desktop, rows(10, 0, 11, 1), 0, 2);
+        assertEquals(TaskList.APPLIED_ALL, mList.apply(0));
+
+        /* Something activated meanwhile must not end up between the two windows */
+        mList.activate(mList.findSource(LAPTOP), 7, "Elsewhere", 0);
+        mList.addRecent(desktop, rows(12, 2, 13, 3), 2, 2);
+        assertEquals(TaskList.APPLIED_ALL, mList.apply(0));
+
+        assertEquals(5, mList.size());
+        assertEquals(7, mList.getAt(0).id);
+        assertEquals(10, mList.getAt(1).id);
+        assertEquals(13, mList.getAt(4).id);
+
+        /* The head is placed bottom up */
+        assertEquals(Arrays.asList("11@1", "10@0", "12@2", "13@3"), mRecent);
+    }
+
+    public void testStatusOnlyChangesARange() {
+        TaskList.Source desktop = mList.findSource(DESKTOP);
+        mList.addRecent(desktop, rows(10, 0, 11, 1, 12, 2, 13, 3), 0, 4);
+        mList.apply(0);
+
+        mList.addStatus(desktop, rows(11, 30, 12, TaskRows.NOT_RUNNING, 99, 5));
+        assertEquals(TaskList.APPLIED_RANGE, mList.apply(1000));
+        assertEquals(1, mList.getFirstChanged());
+        assertEquals(2, mList.getLastChanged());
+        assertTrue(mList.getAt(1).active);
+        assertEquals(30, mList.getAt(1).elapsedSeconds(1000));
+        assertFalse(mList.getAt(2).active);
+
+        assertEquals(TaskList.APPLIED_NOTHING, mList.apply(2000));
+    }
+
+    public void testActivateAndDeactivate() {
+        TaskList.Source laptop = mList.findSource(LAPTOP);
+
+        assertEquals(-1, mList.activate(laptop, 5, "Five", 0));
+        assertEquals(-1, mList.activate(laptop, 6, "Six", 0));
+        assertEquals(1, mList.activate(laptop, 5, "Five", 0));
+        assertEquals(5, mList.getAt(0).id);
+
+        assertEquals(0, mList.deactivate(laptop, 5));
+        assertFalse(mList.getAt(0).active);
+        assertEquals(-1, mList.deactivate(laptop, 42));
+        assertEquals(-1, mList.deactivate(mList.findSource(DESKTOP), 5));
+    }
+
+    public void testRefusedStartGoesBackToItsPlace() {
+        TaskList.Source desktop = mList.findSource(DESKTOP);
+        mList.addRecent(desktop, rows(10, 0, 11, 1, 12, 2), 0, 3);
+        mList.apply(0);
+
+        Task task = mList.getAt(2);
+        TaskList.Change change = mList.toggle(desktop, task, 500);
+        assertTrue(change.start);
+        assertEquals(0, mList.indexOf(task));
+        assertTrue(task.active);
+
+        /* A reply sent before the START reached the server must not undo it */
+        mList.addStatus(desktop, rows(12, TaskRows.NOT_RUNNING));
+        mList.apply(600);
+        assertTrue(task.active);
+
+        assertSame(change, mList.findChange(desktop, 12, true));
+        assertEquals(0, mList.rollback(change));
+        assertEquals(2, mList.indexOf(task));
+        assertFalse(task.active);
+        assertFalse(mList.isChanging(desktop, 12));
+    }
+
+    public void testPushSettlesTheOldestTap() {
+        TaskList.Source desktop = mList.findSource(DESKTOP);
+        mList.activate(desktop, 5, "Five", 0);
+        Task task = mList.getAt(0);
+
+        TaskList.Change stop = mList.toggle(desktop, task, 100);
+        TaskList.Change start = mList.toggle(desktop, task, 200);
+        assertFalse(stop.start);
+        assertTrue(start.start);
+
+        /* The STOP is confirmed, the START is still on its way */
+        assertSame(stop, mList.settle(desktop, 5, false));
+        assertTrue(mList.isChanging(desktop, 5));
+
+        /* Then the START, after which the server has the last word again */
+        assertSame(start, mList.settle(desktop, 5, true));
+        assertNull(mList.settle(desktop, 5, true));
+
+        TaskList.Change lost = mList.toggle(desktop, task, 300);
+        mList.disconnect(desktop);
+        assertNull(mList.findChange(lost.id));
+    }
+
+    public void testWithdrawnPairLeavesNothingToRollBack() {
+        TaskList.Source desktop = mList.findSource(DESKTOP);
+        mList.activate(desktop, 5, "Five", 0);
+        mList.deactivate(desktop, 5);
+        Task task = mList.getAt(0);
+
+        TaskList.Change start = mList.toggle(desktop, task, 100);
+        TaskList.Change stop = mList.toggle(desktop, task, 200);
+        TaskList.Change again = mList.toggle(desktop, task, 300);
+        TaskList.Change last = mList.toggle(desktop, task, 400);
+
+        /* The last STOP withdrew the START queued right before it */
+        mList.withdraw(desktop, 5);
+        assertSame(start, mList.findChange(start.id));
+        assertSame(stop, mList.findChange(stop.id));
+        assertNull(mList.findChange(again.id));
+        assertNull(mList.findChange(last.id));
+        assertFalse(task.active);
+    }
+
+    public void testRunningFollowsEveryChange() {
+        TaskList.Source desktop = mList.findSource(DESKTOP);
+        TaskList.Source laptop = mList.findSource(LAPTOP);
+        mList.addRecent(desktop, rows(10, 0, 11, 1, 12, 2), 0, 3);
+        mList.apply(0);
+
+        mList.activate(laptop, 5, "Five", 0);
+        mList.addStatus(desktop, rows(10, 20, 11, 30));
+        mList.apply(1000);
+        assertEquals(3, mList.getRunning().size());
+
+        mList.addStatus(desktop, rows(11, TaskRows.NOT_RUNNING));
+        mList.apply(2000);
+        mList.deactivate(laptop, 5);
+        assertEquals(Arrays.asList(mList.findTask(desktop, 10)), mList.getRunning());
+
+        TaskList.Change change = mList.toggle(desktop, mList.findTask(desktop, 12), 3000);
+        assertEquals(2, mList.getRunning().size());
+        mList.rollback(change);
+        assertEquals(1, mList.getRunning().size());
+
+        mList.clearRunning(desktop);
+        assertTrue(mList.getRunning().isEmpty());
+
+        mList.activate(desktop, 10, "Task 10", 4000);
+        mList.setServers(Arrays.asList(LAPTOP));
+        assertTrue(mList.getRunning().isEmpty());
+    }
+
+    public void testRemovedServerTakesItsTasks() {
+        mList.activate(mList.findSource(DESKTOP), 1, "One", 0);
+        mList.activate(mList.findSource(LAPTOP), 1, "One", 0);
+        assertEquals(2, mList.size());
+
+        assertTrue(mList.setServers(Arrays.asList(LAPTOP)));
+        assertEquals(1, mList.size());
+        assertEquals(LAPTOP, mList.getAt(0).source);
+        assertNull(mList.findSource(DESKTOP));
+    }
+}
@@ -0,0 +1,61 @@
+package com.kdab.charm;
+
+import junit.framework.TestCase;
+
+import java.nio.charset.Charset;
+
+public class TaskNameDictionaryTest extends TestCase {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public void testUnchangedNameIsReused() {
+        TaskNameDictionary names = new TaskNameDictionary();
+        byte[] first = bytes("0042 Development");
+        byte[] second = bytes("TASK ACTIVATED 42 Development");
+
+        String name = names.get(42, first, 5, first.length);
+
+        assertEquals("Development", name);
+        assertSame(name, names.get(42, second, 18, second.length));
+        assertEquals(1, names.getDecoded());
+    }
+
+    public void testRenamedTaskIsDecodedAgain() {
+        TaskNameDictionary names = new TaskNameDictionary();
+        byte[] before = bytes("Development");
+        byte[] after = bytes("Development: \u00dcbersetzung");
+
+        String name = names.get(42, before, 0, before.length);
+
+        assertEquals("Development: \u00dcbersetzung", names.get(42, after, 0, after.length));
+        assertNotSame(name, names.get(42, before, 0, before.length));
+        assertEquals(3, names.getDecoded());
+        assertEquals(1, names.size());
+    }
+
+    public void testIdsAreKeptApart() {
+        TaskNameDictionary names = new TaskNameDictionary();
+        byte[] meetings = bytes("Meetings");
+
+        names.get(1, meetings, 0, meetings.length);
+        names.get(2, meetings, 0, meetings.length);
+        names.get(1, meetings, 0, meetings.length);
+
+        assertEquals(2, names.size());
+        assertEquals(2, names.getDecoded());
+    }
+
+    public void testStartsOverWhenFull() {
+        TaskNameDictionary names = new TaskNameDictionary();
+        byte[] name = bytes("Task");
+
+        for (int id = 0; id < 5000; ++id)
+            names.get(id, name, 0, name.length);
+
+        assertTrue(names.size() < 5000);
+        assertEquals("Task", names.get(4999, name, 0, name.length));
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(UTF8);
+    }
+}
@@ -0,0 +1,109 @@
+package com.kdab.charm;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class TaskStoreTest extends TestCase {
+    public void testOrdering() {
+        TaskStore store = new TaskStore(2);
+
+        store.addLast(new Task(1, "One"));
+        store.addLast(new Task(2, "Two"));
+        store.addLast(new Task(3, "Three"));
+        store.addFirst(new Task(3, "Ignored"));
+
+        assertEquals(3, store.size());
+        assertEquals("Three", store.getAt(0).name);
+        assertEquals("One", store.getAt(1).name);
+        assertEquals("Two", store.getAt(2).name);
+        assertEquals(2, store.indexOf(2));
+
+        store.addLast(store.get(1));
+        assertEquals(2, store.indexOf(1));
+
+        store.remove(3);
+        assertNull(store.get(3));
+        assertEquals(-1, store.indexOf(3));
+        assertEquals("Two", store.getAt(0).name);
+
+        store.addAfter(2, new Task(4, "Four"));
+        store.addAfter(4, store.get(2));
+        assertEquals("Four", store.getAt(0).name);
+        assertEquals("Two", store.getAt(1).name);
+        assertEquals("One", store.getLast().name);
+
+        store.addAfter(99, new Task(5, "Five"));
+        assertEquals("Five", store.getLast().name);
+    }
+
+    public void testSameIdFromTwoServers() {
+        TaskStore store = new TaskStore();
+
+        store.addLast(new Task(1, "desktop:5323", 42, "Development"));
+        store.addLast(new Task(2, "laptop:5323", 42, "Meetings"));
+
+        assertEquals(2, store.size());
+        assertEquals("Development", store.get(1).name);
+        assertEquals("Meetings", store.get(2).name);
+        assertFalse(store.get(1).equals(store.get(2)));
+
+        store.remove(1);
+        assertEquals("laptop:5323", store.getAt(0).source);
+        assertEquals(42, store.getAt(0).id);
+    }
+
+    public void testMatchesListModel() {
+        Random random = new Random(1);
+        TaskStore store = new TaskStore();
+        List<Task> model = new ArrayList<>();
+
+        for (int i = 0; i < 20000; ++i) {
+            long id = random.nextInt(500) * 0x100000001L;
+            Task task = store.get(id);
+            int operation = random.nextInt(4);
+
+            if (operation == 3) {
+                Task anchor = store.get(random.nextInt(500) * 0x100000001L);
+                if (task == null)
+                    task = new Task(id, "Task " + id);
+
+                if (anchor != task) {
+                    model.remove(task);
+                    model.add(anchor == null ? model.size() : model.indexOf(anchor) + 1, task);
+                }
+                store.addAfter(anchor == null ? -1 : anchor.id, task);
+            } else if (operation == 2) {
+                assertEquals(task != null, model.remove(new Task(id, null)));
+                store.remove(id);
+            } else {
+                if (task == null)
+                    task = new Task(id, "Task " + id);
+
+                model.remove(task);
+                if (operation == 0) {
+                    model.add(0, task);
+                    store.addFirst(task);
+                } else {
+                    model.add(task);
+                    store.addLast(task);
+                }
+            }
+
+            if (i % 97 == 0) {
+                assertEquals(model.size(), store.size());
+                assertSame(model.isEmpty() ? null : model.get(model.size() - 1), store.getLast());
+                for (int position = 0; position < model.size(); ++position) {
+                    assertSame(model.get(position), store.getAt(position));
+                    assertEquals(position, store.indexOf(model.get(position).id));
+                }
+            }
+        }
+
+        store.clear();
+        assertEquals(0, store.size());
+        assertNull(store.get(0));
+    }
+}
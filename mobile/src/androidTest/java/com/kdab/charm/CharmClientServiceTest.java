@@ -0,0 +1,27 @@
+package com.kdab.charm;
+
+import junit.framework.TestCase;
+
+public class CharmClientServiceTest extends TestCase {
+    public void testTaskIdSurvivesMessageArguments() {
+        long[] ids = { 0, 42, 9999, 10000, Integer.MAX_VALUE, 1L << 31, 0xffffffffL, 12345678901L, Long.MAX_VALUE };
+
+        for (long id : ids) {
+            int arg1 = CharmClientService.taskIdLow(id);
+            int arg2 = CharmClientService.taskIdHigh(id);
+            assertEquals(id, CharmClientService.taskId(arg1, arg2));
+        }
+    }
+
+    public void testProfileFallsBackToDefaults() {
+        ConnectionProfile profile = CharmClientService.profile(0, 0);
+        assertEquals(ConnectionProfile.DEFAULT.connectTimeout, profile.connectTimeout);
+        assertEquals(ConnectionProfile.DEFAULT.heartbeatInterval, profile.heartbeatInterval);
+        assertTrue(profile.tcpNoDelay);
+
+        profile = CharmClientService.profile(5000, 15000);
+        assertEquals(5000, profile.connectTimeout);
+        assertEquals(5000, profile.readTimeout);
+        assertEquals(20000, profile.getDetectionBound());
+    }
+}
@@ -0,0 +1,176 @@
+package com.kdab.charm;
+
+import android.os.Debug;
+import android.os.Handler;
+import android.os.Looper;
+import android.test.AndroidTestCase;
+
+import java.io.IOException;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class CharmEventBusTest extends AndroidTestCase {
+    private static final int ITERATIONS = 10000;
+    private static final int WARMUP = 100;
+    private static final int TASKS = 4;
+    private static final String SERVER = "127.0.0.1:5323";
+
+    private final RecordingListener mListener = new RecordingListener();
+    private CharmEventBus mBus;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mBus = CharmEventBus.getInstance();
+        mBus.register(mListener);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mBus.unregister(mListener);
+
+        super.tearDown();
+    }
+
+    public void testEventsAreRecycled() {
+        CharmEvent event = CharmEvent.obtain(CharmEvent.TASK_ACTIVATED);
+        event.taskId = 42;
+        event.name = "Development";
+        mBus.dispatch(event);
+
+        assertEquals(42, mListener.lastTaskId);
+        assertEquals(0, event.type);
+        assertNull(event.name);
+        assertSame(event, CharmEvent.obtain(CharmEvent.TASK_STATUS));
+    }
+
+    public void testSnapshotRowsAreRecycled() {
+        CharmEvent event = CharmEvent.obtain(CharmEvent.TASK_RECENT);
+        for (int i = 0; i < 100; ++i)
+            event.rows.add(i, i, "Task " + i);
+
+        long[] ids = event.rows.ids;
+        mBus.dispatch(event);
+
+        assertEquals(100, mListener.lastRowCount);
+        assertEquals(0, event.rows.count);
+        assertNull(event.rows.names[99]);
+
+        /* The grown arrays stay with the pooled event */
+        assertSame(event, CharmEvent.obtain(CharmEvent.TASK_RECENT));
+        assertSame(ids, event.rows.ids);
+    }
+
+    /*
+     * Runs STATUS replies from the bytes on the wire through LineDecoder,
+     * FrameParser, CharmConnection, the bus and a subscribed TaskAdapter, all
+     * on the main thread where the adapter applies them.
+     */
+    public void testSteadyStateStatusUpdatesDoNotAllocate() throws Exception {
+        StatusPath path = new StatusPath();
+        path.mHandler.post(path);
+
+        assertTrue(path.mDone.await(60, TimeUnit.SECONDS));
+        assertEquals("Allocations per " + ITERATIONS + " STATUS replies", 0, path.mAllocations);
+        assertEquals(TASKS, path.mAdapter.getItemCount());
+        assertTrue(mListener.count > ITERATIONS);
+    }
+
+    /* Each step feeds one reply and queues the next behind the events it posted */
+    private class StatusPath implements Runnable {
+        final Handler mHandler = new Handler(Looper.getMainLooper());
+        final CountDownLatch mDone = new CountDownLatch(1);
+        final LineDecoder mDecoder = new LineDecoder();
+        final PendingRequests mPending = new PendingRequests();
+        final byte[][] mReplies = { reply(0), reply(100) };
+        TaskAdapter mAdapter;
+        CharmConnection mConnection;
+        FrameParser mParser;
+        Selector mSelector;
+        int mStep = 0;
+        int mAllocations = -1;
+
+        @Override
+        public void run() {
+            try {
+                if (mStep == 0)
+                    open();
+                else if (mStep == WARMUP)
+                    startCounting();
+                else if (mStep == WARMUP + ITERATIONS) {
+                    finish();
+                    return;
+                }
+
+                mPending.add(PendingRequests.COMMAND_STATUS, 0, 0, 0);
+                byte[] reply = mReplies[mStep % 2];
+                mDecoder.feed(reply, 0, reply.length, mParser);
+
+                /* Text replies have no terminator, CharmConnection ends them after a quiet gap */
+                mParser.onBurstEnd();
+
+                ++mStep;
+                mHandler.post(this);
+            } catch (IOException e) {
+                mDone.countDown();
+            }
+        }
+
+        private void open() throws IOException {
+            mAdapter = new TaskAdapter(getContext());
+            mAdapter.setServers(Arrays.asList(SERVER));
+            mBus.register(mAdapter);
+
+            mSelector = Selector.open();
+            mConnection = new CharmConnection(SERVER, mSelector, mBus, null);
+            mParser = new FrameParser(mConnection, mPending);
+
+            for (int i = 0; i < TASKS; ++i) {
+                byte[] push = ("TASK ACTIVATED " + (10000 + i) + " Task " + i + "\n").getBytes();
+                mDecoder.feed(push, 0, push.length, mParser);
+            }
+        }
+
+        private void startCounting() {
+            Debug.startAllocCounting();
+            Debug.resetThreadAllocCount();
+        }
+
+        private void finish() {
+            mAllocations = Debug.getThreadAllocCount();
+            Debug.stopAllocCounting();
+
+            mBus.unregister(mAdapter);
+            try {
+                mSelector.close();
+            } catch (IOException e) {
+                /* Nothing was registered with it */
+            }
+            mDone.countDown();
+        }
+
+        /* The same seconds for every task, far enough apart between replies to always be news */
+        private byte[] reply(int seconds) {
+            StringBuilder reply = new StringBuilder();
+            for (int i = 0; i < TASKS; ++i)
+                reply.append(10000 + i).append(' ').append(seconds).append('\n');
+            return reply.toString().getBytes();
+        }
+    }
+
+    private static class RecordingListener implements CharmEventListener {
+        long lastTaskId;
+        int lastRowCount;
+        int count;
+
+        @Override
+        public void onCharmEvent(CharmEvent event) {
+            lastTaskId = event.taskId;
+            lastRowCount = event.rows.count;
+            ++count;
+        }
+    }
+}
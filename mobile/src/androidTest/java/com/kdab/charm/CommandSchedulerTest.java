@@ -0,0 +1,79 @@
+package com.kdab.charm;
+
+import android.os.Message;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class CommandSchedulerTest extends TestCase {
+    public void testUserCommandsGoFirst() {
+        CommandScheduler scheduler = new CommandScheduler();
+
+        scheduler.offer(message(CharmClientService.CHARM_STATUS_MSG, 0, 0, null), 0);
+        scheduler.offer(message(CharmClientService.CHARM_RECENT_MSG, 10, 10, "desktop:5323"), 0);
+        scheduler.offer(message(CharmClientService.CHARM_START_MSG, 42, 0, "desktop:5323"), 5);
+
+        List<Message> drained = new ArrayList<>();
+        scheduler.drainTo(drained, 20);
+
+        assertEquals(3, drained.size());
+        assertEquals(CharmClientService.CHARM_START_MSG, drained.get(0).what);
+        assertEquals(CharmClientService.CHARM_RECENT_MSG, drained.get(1).what);
+        assertEquals(CharmClientService.CHARM_STATUS_MSG, drained.get(2).what);
+        assertEquals(0, scheduler.depth());
+        assertEquals(20, scheduler.getMaxWait());
+        assertEquals(18, scheduler.getMeanWait());
+    }
+
+    public void testBackgroundWorkMergesInsteadOfThrowing() {
+        CommandScheduler scheduler = new CommandScheduler();
+
+        for (int i = 0; i < 1000; ++i) {
+            scheduler.offer(message(CharmClientService.CHARM_STATUS_MSG, 0, 0, "server" + (i % 20) + ":5323"), i);
+            scheduler.offer(message(CharmClientService.CHARM_STOP_MSG, i, 0, "desktop:5323"), i);
+        }
+
+        assertEquals(1000, scheduler.depth(CommandScheduler.LANE_USER));
+        assertEquals(8, scheduler.depth(CommandScheduler.LANE_BACKGROUND));
+        assertEquals(992, scheduler.getDropped());
+
+        scheduler.offer(message(CharmClientService.CHARM_STATUS_MSG, 0, 0, "server19:5323"), 1000);
+        assertEquals(1, scheduler.getMerged());
+
+        scheduler.offer(message(CharmClientService.CHARM_STATUS_MSG, 0, 0, null), 1000);
+        assertEquals(1, scheduler.depth(CommandScheduler.LANE_BACKGROUND));
+
+        scheduler.offer(message(CharmClientService.CHARM_STATUS_MSG, 0, 0, "desktop:5323"), 1001);
+        assertEquals(1, scheduler.depth(CommandScheduler.LANE_BACKGROUND));
+    }
+
+    public void testRecentFromHeadReplacesQueuedWindows() {
+        CommandScheduler scheduler = new CommandScheduler();
+
+        scheduler.offer(message(CharmClientService.CHARM_RECENT_MSG, 10, 10, "desktop:5323"), 0);
+        scheduler.offer(message(CharmClientService.CHARM_RECENT_MSG, 10, 10, "desktop:5323"), 0);
+        scheduler.offer(message(CharmClientService.CHARM_RECENT_MSG, 20, 10, "desktop:5323"), 0);
+        scheduler.offer(message(CharmClientService.CHARM_RECENT_MSG, 10, 10, "laptop:5323"), 0);
+        assertEquals(3, scheduler.depth(CommandScheduler.LANE_RECENT));
+
+        scheduler.offer(message(CharmClientService.CHARM_RECENT_MSG, 0, 10, "desktop:5323"), 0);
+
+        List<Message> drained = new ArrayList<>();
+        scheduler.drainTo(drained, 0);
+
+        assertEquals(2, drained.size());
+        assertEquals("laptop:5323", drained.get(0).obj);
+        assertEquals(0, drained.get(1).arg1);
+    }
+
+    private static Message message(int what, int arg1, int arg2, Object obj) {
+        Message msg = new Message();
+        msg.what = what;
+        msg.arg1 = arg1;
+        msg.arg2 = arg2;
+        msg.obj = obj;
+        return msg;
+    }
+}
@@ -5,6 +5,8 @@ import android.os.Message;
 import android.os.Messenger;
 import android.os.RemoteException;
 
+import java.util.ArrayList;
+
 class CharmClientCommunicator {
     private final Messenger mMessenger;
 
@@ -13,11 +15,14 @@ class CharmClientCommunicator {
         mMessenger = messenger;
     }
 
-    void connectionInformation(String hostname, int port) {
-        Message msg = Message.obtain(null, CharmClientService.CHARM_CONNECTION_INFORMATION_MSG, port, 0);
+    /* Servers as host:port keys, see ServerList, timeouts in milliseconds */
+    void connectionInformation(ArrayList<String> servers, long timeout, long heartbeat) {
+        Message msg = Message.obtain(null, CharmClientService.CHARM_CONNECTION_INFORMATION_MSG);
 
         Bundle bundle = new Bundle();
-        bundle.putString(CharmClientService.CHARM_CONNECTION_HOSTNAME, hostname);
+        bundle.putStringArrayList(CharmClientService.CHARM_CONNECTION_SERVERS, servers);
+        bundle.putLong(CharmClientService.CHARM_CONNECTION_TIMEOUT, timeout);
+        bundle.putLong(CharmClientService.CHARM_CONNECTION_HEARTBEAT, heartbeat);
         msg.setData(bundle);
 
         try {
@@ -27,8 +32,32 @@ class CharmClientCommunicator {
         }
     }
 
-    void start(long task) {
-        Message msg = Message.obtain(null, CharmClientService.CHARM_START_MSG, (int) task, 0);
+    void start(String source, long task) {
+        Message msg = Message.obtain(null, CharmClientService.CHARM_START_MSG,
+                CharmClientService.taskIdLow(task), CharmClientService.taskIdHigh(task), source);
+
+        try {
+            mMessenger.send(msg);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    void stop(String source, long task) {
+        Message msg = Message.obtain(null, CharmClientService.CHARM_STOP_MSG,
+                CharmClientService.taskIdLow(task), CharmClientService.taskIdHigh(task), source);
+
+        try {
+            mMessenger.send(msg);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /* Drops START and STOP of the task that have not been sent yet */
+    void withdraw(String source, long task) {
+        Message msg = Message.obtain(null, CharmClientService.CHARM_WITHDRAW_MSG,
+                CharmClientService.taskIdLow(task), CharmClientService.taskIdHigh(task), source);
 
         try {
             mMessenger.send(msg);
@@ -37,8 +66,9 @@ class CharmClientCommunicator {
         }
     }
 
-    void stop(long task) {
-        Message msg = Message.obtain(null, CharmClientService.CHARM_STOP_MSG, (int) task, 0);
+    /* A null source sends the command to every server */
+    void recent(String source, int index, int count) {
+        Message msg = Message.obtain(null, CharmClientService.CHARM_RECENT_MSG, index, count, source);
 
         try {
             mMessenger.send(msg);
@@ -47,8 +77,8 @@ class CharmClientCommunicator {
         }
     }
 
-    void recent(int index, int count) {
-        Message msg = Message.obtain(null, CharmClientService.CHARM_RECENT_MSG, index, count);
+    void status(String source) {
+        Message msg = Message.obtain(null, CharmClientService.CHARM_STATUS_MSG, source);
 
         try {
             mMessenger.send(msg);
@@ -57,8 +87,8 @@ class CharmClientCommunicator {
         }
     }
 
-    void status() {
-        Message msg = Message.obtain(null, CharmClientService.CHARM_STATUS_MSG);
+    void subscribe(String source, int interval) {
+        Message msg = Message.obtain(null, CharmClientService.CHARM_SUBSCRIBE_MSG, interval, 0, source);
 
         try {
             mMessenger.send(msg);
@@ -1,38 +1,63 @@
 package com.kdab.charm;
 
 import android.app.Service;
+import android.content.BroadcastReceiver;
+import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.Messenger;
-import android.support.v4.content.LocalBroadcastManager;
-import android.util.Log;
 import android.widget.Toast;
 
-public class CharmClientService extends Service {
-    public static final String CHARM_TASK_ACTIVATED_ACTION         = "com.kdab.charm.TASK_ACTIVATED";
-    public static final String CHARM_TASK_DEACTIVATED_ACTION       = "com.kdab.charm.TASK_DEACTIVATED";
-    public static final String CHARM_TASK_STATUS_ACTION            = "com.kdab.charm.TASK_STATUS";
-    public static final String CHARM_RECENT_TASK_ACTION            = "com.kdab.charm.RECENT_TASK";
-    public static final String CHARM_CONNECTION_ESTABLISHED_ACTION = "com.kdab.charm.CONNECTION_ESTABLISHED";
-    public static final String CHARM_CONNECTION_CLOSED_ACTION      = "com.kdab.charm.CONNECTION_CLOSED";
-    public static final String CHARM_CONNECTION_LOST_ACTION        = "com.kdab.charm.CONNECTION_LOST";
-    public static final String CHARM_CONNECTION_DISCOVERED_ACTION  = "com.kdab.charm.CONNECTION_DISCOVERED";
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.List;
 
+public class CharmClientService extends Service {
     public static final int CHARM_CONNECTION_INFORMATION_MSG = 0;
     public static final int CHARM_START_MSG                  = 1;
     public static final int CHARM_STOP_MSG                   = 2;
     public static final int CHARM_RECENT_MSG                 = 3;
     public static final int CHARM_STATUS_MSG                 = 4;
+    public static final int CHARM_SUBSCRIBE_MSG              = 5;
+    public static final int CHARM_WITHDRAW_MSG               = 6;
+
+    public static final String CHARM_CONNECTION_SERVERS   = "connection_servers";
+    public static final String CHARM_CONNECTION_TIMEOUT   = "connection_timeout";
+    public static final String CHARM_CONNECTION_HEARTBEAT = "connection_heartbeat";
+
+    /* Task ids are 64 bit, START, STOP and WITHDRAW carry the low half in arg1 and the high half in arg2 */
+    static int taskIdLow(long task) {
+        return (int) task;
+    }
+
+    static int taskIdHigh(long task) {
+        return (int) (task >>> 32);
+    }
+
+    static long taskId(int arg1, int arg2) {
+        return (arg1 & 0xffffffffL) | ((long) arg2 << 32);
+    }
 
-    public static final String CHARM_TASK_ID             = "task_id";
-    public static final String CHARM_TASK_NAME           = "task_name";
-    public static final String CHARM_EVENT_DURATION      = "event_duration";
-    public static final String CHARM_RECENT_TASK_INDEX   = "recent_task_index";
-    public static final String CHARM_CONNECTION_HOSTNAME = "connection_hostname";
+    /* Missing values fall back to the defaults, the timeout covers both connecting and reading */
+    static ConnectionProfile profile(long timeout, long heartbeat) {
+        ConnectionProfile defaults = ConnectionProfile.DEFAULT;
 
-    private final Handler mThreadToServiceHandler = new ThreadToServiceHandler();
+        if (timeout <= 0)
+            timeout = defaults.connectTimeout;
+        if (heartbeat <= 0)
+            heartbeat = defaults.heartbeatInterval;
+
+        return new ConnectionProfile(timeout, timeout, heartbeat, defaults.tcpNoDelay);
+    }
+
+    private final CharmEventListener mEventListener = new ServiceEventListener();
+    private final BroadcastReceiver mConnectivityReceiver = new ConnectivityReceiver();
     private CharmClientThread mThread;
     private Messenger mMessenger;
 
@@ -41,11 +66,15 @@ public class CharmClientService extends Service {
         super.onCreate();
 
         mMessenger = new Messenger(new ActivityToServiceHandler());
+        CharmEventBus.getInstance().register(mEventListener);
+        registerReceiver(mConnectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
     }
 
     @Override
     public void onDestroy() {
+        unregisterReceiver(mConnectivityReceiver);
         cleanupThread();
+        CharmEventBus.getInstance().unregister(mEventListener);
         mMessenger = null;
 
         super.onDestroy();
@@ -56,6 +85,43 @@ public class CharmClientService extends Service {
         return mMessenger.getBinder();
     }
 
+    /* adb shell dumpsys activity service com.kdab.charm/.CharmClientService */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        CharmMetrics.getInstance().dump(writer);
+
+        CharmClientThread thread = mThread;
+        if (thread == null) {
+            writer.println("No client thread");
+            return;
+        }
+
+        CommandScheduler scheduler = thread.getScheduler();
+        writer.println("Queued commands: " + scheduler.depth(CommandScheduler.LANE_USER) + " user, "
+                + scheduler.depth(CommandScheduler.LANE_RECENT) + " recent, "
+                + scheduler.depth(CommandScheduler.LANE_BACKGROUND) + " background");
+        writer.println("Max queue depth: " + scheduler.getMaxDepth());
+        writer.println("Merged commands: " + scheduler.getMerged());
+        writer.println("Dropped commands: " + scheduler.getDropped());
+        writer.println("Last time queued: " + scheduler.getLastWait() + " ms");
+        writer.println("Mean time queued: " + scheduler.getMeanWait() + " ms");
+        writer.println("Max time queued: " + scheduler.getMaxWait() + " ms");
+
+        List<CharmConnection> connections = thread.getConnections();
+        for (int i = 0; i < connections.size(); ++i) {
+            CharmConnection connection = connections.get(i);
+            ReconnectScheduler reconnect = connection.getReconnectScheduler();
+
+            writer.println(connection.getKey() + ":");
+            writer.println("  Round trip time: " + connection.getLastRtt() + " ms");
+            writer.println("  Timeouts: " + connection.getTimeouts());
+            writer.println("  Reconnects: " + reconnect.getReconnects());
+            writer.println("  Last time to reconnect: " + reconnect.getLastReconnectTime() + " ms");
+            writer.println("  Mean time to reconnect: " + reconnect.getMeanReconnectTime() + " ms");
+            writer.println("  Max time to reconnect: " + reconnect.getMaxReconnectTime() + " ms");
+        }
+    }
+
     private void cleanupThread(){
         if (mThread == null)
             return;
@@ -64,7 +130,7 @@ public class CharmClientService extends Service {
 
         try {
             mThread.join();
-            Log.d("CHARM", "Joining Thread");
+            CharmLog.d("Joining Thread");
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
@@ -72,74 +138,52 @@ public class CharmClientService extends Service {
         mThread = null;
     }
 
-    private class ThreadToServiceHandler extends Handler {
+    private class ServiceEventListener implements CharmEventListener {
         @Override
-        public void handleMessage(Message msg) {
-            Intent intent;
-
-            switch (msg.what) {
-                case CharmClientThread.CHARM_TASK_ACTIVATED_MSG:
-                    intent = new Intent(CHARM_TASK_ACTIVATED_ACTION);
-                    intent.putExtra(CHARM_TASK_ID, (long) msg.arg1);
-                    intent.putExtra(CHARM_TASK_NAME, msg.getData().getString(CHARM_TASK_NAME));
-                    LocalBroadcastManager.getInstance(getBaseContext()).sendBroadcast(intent);
-                    break;
-                case CharmClientThread.CHARM_TASK_DEACTIVATED_MSG:
-                    intent = new Intent(CHARM_TASK_DEACTIVATED_ACTION);
-                    intent.putExtra(CHARM_TASK_ID, (long) msg.arg1);
-                    intent.putExtra(CHARM_TASK_NAME, msg.getData().getString(CHARM_TASK_NAME));
-                    LocalBroadcastManager.getInstance(getBaseContext()).sendBroadcast(intent);
-                    break;
-                case CharmClientThread.CHARM_TASK_RECENT_MSG:
-                    intent = new Intent(CHARM_RECENT_TASK_ACTION);
-                    intent.putExtra(CHARM_TASK_ID, (long) msg.arg1);
-                    intent.putExtra(CHARM_RECENT_TASK_INDEX, msg.arg2);
-                    intent.putExtra(CHARM_TASK_NAME, msg.getData().getString(CHARM_TASK_NAME));
-                    LocalBroadcastManager.getInstance(getBaseContext()).sendBroadcast(intent);
-                    break;
-                case CharmClientThread.CHARM_TASK_STATUS_MSG:
-                    intent = new Intent(CHARM_TASK_STATUS_ACTION);
-                    intent.putExtra(CHARM_TASK_ID, (long) msg.arg1);
-                    intent.putExtra(CHARM_EVENT_DURATION, msg.arg2);
-                    LocalBroadcastManager.getInstance(getBaseContext()).sendBroadcast(intent);
-                    break;
-                case CharmClientThread.CHARM_CONNECTION_ESTABLISHED_MSG:
-                    intent = new Intent(CHARM_CONNECTION_ESTABLISHED_ACTION);
-                    LocalBroadcastManager.getInstance(getBaseContext()).sendBroadcast(intent);
+        public void onCharmEvent(CharmEvent event) {
+            switch (event.type) {
+                case CharmEvent.CONNECTION_LOST:
+                    Toast.makeText(getBaseContext(), "Connection to " + event.source + " Lost", Toast.LENGTH_LONG).show();
                     break;
-                case CharmClientThread.CHARM_CONNECTION_CLOSED_MSG:
-                    intent = new Intent(CHARM_CONNECTION_CLOSED_ACTION);
-                    LocalBroadcastManager.getInstance(getBaseContext()).sendBroadcast(intent);
-                    break;
-                case CharmClientThread.CHARM_CONNECTION_LOST_MSG:
-                    Toast.makeText(getBaseContext(), "Connection Lost", Toast.LENGTH_LONG).show();
-                    intent = new Intent(CHARM_CONNECTION_LOST_ACTION);
-                    LocalBroadcastManager.getInstance(getBaseContext()).sendBroadcast(intent);
-                    break;
-                case CharmClientThread.CHARM_CONNECTION_DISCOVERY_MSG:
-                    Toast.makeText(getBaseContext(), "Searching for Charm...", Toast.LENGTH_SHORT).show();
-                    break;
-                case CharmClientThread.CHARM_CONNECTION_DISCOVERED_MSG:
-                    intent = new Intent(CHARM_CONNECTION_DISCOVERED_ACTION);
-                    intent.putExtra(CHARM_CONNECTION_HOSTNAME, msg.getData().getString(CHARM_CONNECTION_HOSTNAME));
-                    LocalBroadcastManager.getInstance(getBaseContext()).sendBroadcast(intent);
+                case CharmEvent.CONNECTION_DISCOVERY:
+                    Toast.makeText(getBaseContext(), "Searching for " + event.source + "...", Toast.LENGTH_SHORT).show();
                     break;
             }
         }
     }
 
+    /* A network coming up is the best moment to retry, whatever the backoff says */
+    private class ConnectivityReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            ConnectivityManager manager = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+            NetworkInfo network = manager.getActiveNetworkInfo();
+
+            if (network != null && network.isConnected() && mThread != null)
+                mThread.onNetworkChanged();
+        }
+    }
+
     private class ActivityToServiceHandler extends Handler {
         @Override
         public void handleMessage(Message msg) {
             if (msg.what == CHARM_CONNECTION_INFORMATION_MSG) {
-                if (mThread != null)
-                    cleanupThread();
-
-                mThread = new CharmClientThread();
-                mThread.setServiceHandler(mThreadToServiceHandler);
-                mThread.setConnectionInformation(msg.getData().
-                        getString(CHARM_CONNECTION_HOSTNAME), msg.arg1);
-                mThread.start();
+                Bundle data = msg.getData();
+                List<String> servers = data.getStringArrayList(CHARM_CONNECTION_SERVERS);
+                ConnectionProfile profile = profile(data.getLong(CHARM_CONNECTION_TIMEOUT),
+                        data.getLong(CHARM_CONNECTION_HEARTBEAT));
+
+                /* Connections to servers still listed, or discovered and written back, are kept */
+                if (mThread == null) {
+                    mThread = new CharmClientThread();
+                    mThread.setEventBus(CharmEventBus.getInstance());
+                    mThread.setProfile(profile);
+                    mThread.setServers(servers);
+                    mThread.start();
+                } else {
+                    mThread.setProfile(profile);
+                    mThread.setServers(servers);
+                }
             }
             else if (mThread != null)
                 mThread.post(msg);
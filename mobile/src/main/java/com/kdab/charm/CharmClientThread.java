@@ -1,471 +1,232 @@
 package com.kdab.charm;
 
-import android.os.Bundle;
-import android.os.Handler;
 import android.os.Message;
-import android.util.Log;
+import android.os.SystemClock;
 
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.Socket;
-import java.net.SocketException;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.TimeUnit;
-
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/*
+ * The single event loop behind every configured server. Each server is a
+ * CharmConnection on the shared selector, the loop sleeps until one of them
+ * has I/O or a deadline, and commands go to the connection named by the
+ * message's obj, or to all of them when it has none.
+ */
 class CharmClientThread extends Thread {
-    public static final int CHARM_TASK_ACTIVATED_MSG         = 1;
-    public static final int CHARM_TASK_DEACTIVATED_MSG       = 2;
-    public static final int CHARM_TASK_RECENT_MSG            = 3;
-    public static final int CHARM_TASK_STATUS_MSG            = 4;
-    public static final int CHARM_CONNECTION_ESTABLISHED_MSG = 5;
-    public static final int CHARM_CONNECTION_CLOSED_MSG      = 6;
-    public static final int CHARM_CONNECTION_LOST_MSG        = 7;
-    public static final int CHARM_CONNECTION_DISCOVERY_MSG   = 8;
-    public static final int CHARM_CONNECTION_DISCOVERED_MSG  = 9;
-
-    private static final int DISCONNECTED_STATE = 0;
-    private static final int HANDSHAKE_STATE    = 1;
-    private static final int COMMAND_STATE      = 2;
-
-    private int mState = DISCONNECTED_STATE;
-    private final BlockingQueue<Message> mWork = new ArrayBlockingQueue<>(20);
-    private Handler mThreadToService;
-    private String mHostname = "localhost";
-    private Integer mPort = 5323;
-    private Socket mSocket;
-    private InputStreamReader mReader;
-    private OutputStreamWriter mWriter;
-
-    public void setConnectionInformation(String hostname, int port) {
-        mHostname = hostname;
-        mPort = port;
-        setState(DISCONNECTED_STATE);
+    private final CommandScheduler mWork = new CommandScheduler();
+    private final List<CharmConnection> mConnections = new CopyOnWriteArrayList<>();
+    private CharmEventBus mEventBus;
+    private volatile List<String> mServers = new ArrayList<>();
+    private volatile boolean mServersChanged;
+    private volatile ConnectionProfile mProfile = ConnectionProfile.DEFAULT;
+    private volatile Selector mSelector;
+    private final List<Message> mDrained = new ArrayList<>();
+    private final ConnectionDiscovery mDiscovery = new ConnectionDiscovery();
+    private volatile boolean mNetworkChanged;
+
+    /* Servers by host:port key, connections to servers no longer listed are closed */
+    public void setServers(List<String> servers) {
+        mServers = new ArrayList<>(servers);
+        mServersChanged = true;
+        wakeup();
     }
 
-    public void setServiceHandler(Handler handler) {
-        mThreadToService = handler;
+    /* Timeouts and socket options for every connection, see ConnectionProfile */
+    public void setProfile(ConnectionProfile profile) {
+        mProfile = profile;
+        mServersChanged = true;
+        wakeup();
     }
 
-    public void post(Message message) {
-        if (!isAlive() || isInterrupted())
-            return;
-
-        Message copy = new Message();
-        copy.copyFrom(message);
-        mWork.add(copy);
+    public void setEventBus(CharmEventBus eventBus) {
+        mEventBus = eventBus;
     }
 
-    @Override
-    public void run() {
-        Log.d("CHARM", "Running thread...");
-        do {
-            switch (mState) {
-                case DISCONNECTED_STATE:
-                    runInDisconnectedState();
-                    break;
-
-                case HANDSHAKE_STATE:
-                    try {
-                        runInHandshakeState();
-                    } catch (ClientException e) {
-                        setState(DISCONNECTED_STATE);
-                        notifyService(CHARM_CONNECTION_LOST_MSG);
-                    }
-                    break;
-
-                case COMMAND_STATE:
-                    try {
-                        runInCommandState();
-                    } catch (ClientException e) {
-                        setState(DISCONNECTED_STATE);
-                        notifyService(CHARM_CONNECTION_LOST_MSG);
-                    }
-                    break;
-            }
-        }
-        while (!Thread.currentThread().isInterrupted());
+    /* Safe from any thread, for dumps and diagnostics */
+    public List<CharmConnection> getConnections() {
+        return mConnections;
+    }
 
-        setState(DISCONNECTED_STATE);
+    public CommandScheduler getScheduler() {
+        return mWork;
     }
 
-    private boolean discoverConnection() {
-        byte buffer[] = new byte[16];
+    /* Called on connectivity changes, cuts the current backoff short */
+    public void onNetworkChanged() {
+        mNetworkChanged = true;
+        wakeup();
+    }
 
-        DatagramSocket discovery;
+    public void post(Message message) {
+        if (!isAlive() || isInterrupted())
+            return;
 
-        try {
-            discovery = new DatagramSocket(mPort);
-            discovery.setBroadcast(true);
-        } catch (SocketException e) {
-            return false;
-        }
+        mWork.offer(Message.obtain(message), SystemClock.elapsedRealtime());
+        wakeup();
+    }
 
-        notifyService(CHARM_CONNECTION_DISCOVERY_MSG);
+    private void wakeup() {
+        Selector selector = mSelector;
+        if (selector != null)
+            selector.wakeup();
+    }
 
-        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+    @Override
+    public void run() {
+        CharmLog.d("Running thread...");
 
         try {
-            discovery.setSoTimeout(3000);
-            discovery.receive(packet);
+            mSelector = Selector.open();
         } catch (IOException e) {
-            discovery.close();
-            return false;
+            CharmLog.d("Unable to open selector: %s", e.getMessage());
+            return;
         }
 
-        discovery.close();
+        applyServers();
 
-        mHostname = packet.getAddress().getCanonicalHostName();
+        while (!isInterrupted()) {
+            if (mServersChanged)
+                applyServers();
 
-        Message msg = mThreadToService.obtainMessage(CHARM_CONNECTION_DISCOVERED_MSG);
-        Bundle data = new Bundle();
-        data.putString(CharmClientService.CHARM_CONNECTION_HOSTNAME, mHostname);
-        msg.setData(data);
+            long now = SystemClock.elapsedRealtime();
+            long deadline = Long.MAX_VALUE;
+            for (int i = 0; i < mConnections.size(); ++i) {
+                CharmConnection connection = mConnections.get(i);
+                connection.tick(now);
+                deadline = Math.min(deadline, connection.getDeadline());
+            }
 
-        mThreadToService.sendMessage(msg);
+            if (!waitForEvents(deadline))
+                break;
 
-        return true;
-    }
+            if (mNetworkChanged) {
+                mNetworkChanged = false;
+                for (int i = 0; i < mConnections.size(); ++i)
+                    mConnections.get(i).onNetworkChanged();
+            }
 
-    private boolean setupConnection() {
-        try {
-            mSocket = new Socket(mHostname, mPort);
-        } catch (IOException e) {
-            mSocket = null;
-            return false;
-        }
+            if (readBeacons()) {
+                for (int i = 0; i < mConnections.size(); ++i)
+                    mConnections.get(i).onHostDiscovered();
+            }
 
-        try {
-            mReader = new InputStreamReader(mSocket.getInputStream());
-        } catch (IOException e) {
-            cleanupConnection();
-            return false;
-        }
+            for (int i = 0; i < mConnections.size(); ++i)
+                mConnections.get(i).onSelected();
 
-        try {
-            mWriter = new OutputStreamWriter(mSocket.getOutputStream());
-        } catch (IOException e) {
-            cleanupConnection();
-            return false;
+            mWork.drainTo(mDrained, SystemClock.elapsedRealtime());
+            for (int i = 0; i < mDrained.size(); ++i) {
+                Message msg = mDrained.get(i);
+                route(msg);
+                msg.recycle();
+            }
+            mDrained.clear();
         }
 
-        setState(HANDSHAKE_STATE);
-
-        return mSocket.isConnected();
-    }
-
-    private void cleanupConnection() {
-        if (mSocket == null)
-            return;
+        for (int i = 0; i < mConnections.size(); ++i)
+            mConnections.get(i).close();
+        mConnections.clear();
+        mDiscovery.close();
 
         try {
-            mWriter.write("BYE\n");
-            mWriter.flush();
-            mWriter.close();
+            mSelector.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
-        mWriter = null;
+        mSelector = null;
+    }
 
-        try {
-            mReader.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        mReader = null;
+    private void applyServers() {
+        mServersChanged = false;
+        List<String> servers = mServers;
 
-        if (mSocket.isConnected()) {
-            try {
-                mSocket.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+        for (int i = 0; i < mConnections.size(); ++i) {
+            CharmConnection connection = mConnections.get(i);
+            if (!servers.contains(connection.getKey())) {
+                connection.close();
+                mConnections.remove(connection);
+                --i;
             }
         }
 
-        setState(DISCONNECTED_STATE);
-    }
-
-    private void setState(int state) {
-        if (mState == state)
-            return;
-
-        Log.d("CHARM", String.format("Charm client changing state from %d to %d.", mState, state));
+        for (int i = 0; i < servers.size(); ++i) {
+            if (find(servers.get(i)) == null)
+                mConnections.add(new CharmConnection(servers.get(i), mSelector, mEventBus, mDiscovery));
+        }
 
-        switch (mState) {
-            case HANDSHAKE_STATE:
-                if (state == COMMAND_STATE)
-                    notifyService(CHARM_CONNECTION_ESTABLISHED_MSG);
-                break;
-            case COMMAND_STATE:
-                notifyService(CHARM_CONNECTION_CLOSED_MSG);
-                break;
+        for (int i = 0; i < mConnections.size(); ++i) {
+            mConnections.get(i).setRoaming(mConnections.size() == 1);
+            mConnections.get(i).setProfile(mProfile);
         }
 
-        mState = state;
+        /* Beacons carry no port, they are listened for on the first server's */
+        if (servers.isEmpty()) {
+            mDiscovery.close();
+            return;
+        }
 
-        switch (mState) {
-            case DISCONNECTED_STATE:
-                cleanupConnection();
-                break;
+        try {
+            mDiscovery.open(mSelector, ServerList.getPort(servers.get(0)));
+        } catch (IOException e) {
+            CharmLog.d("Unable to listen for Charm beacons: %s", e.getMessage());
         }
     }
 
-    private void notifyService(int what) {
-        mThreadToService.sendEmptyMessage(what);
+    private CharmConnection find(String key) {
+        for (int i = 0; i < mConnections.size(); ++i) {
+            if (mConnections.get(i).getKey().equals(key))
+                return mConnections.get(i);
+        }
+        return null;
     }
 
-    private void runInDisconnectedState() {
-        int interval = 500;
-        do {
-            if (setupConnection())
-                break;
-            else discoverConnection();
-
-            Log.d("CHARM", String.format("Failed to connect. Retrying in %d milliseconds.", interval));
-
-            try {
-                sleep(interval);
-            } catch (InterruptedException e) {
-                currentThread().interrupt();
-                return;
-            }
+    private void route(Message msg) {
+        if (msg.obj == null) {
+            for (int i = 0; i < mConnections.size(); ++i)
+                mConnections.get(i).post(msg);
+            return;
+        }
 
-            interval += 500;
-        } while (mState == DISCONNECTED_STATE && !isInterrupted());
+        CharmConnection connection = find((String) msg.obj);
+        if (connection != null)
+            connection.post(msg);
+        else
+            CharmLog.d("Dropping command for unknown server %s", msg.obj);
     }
 
-    private void runInHandshakeState() throws ClientException {
-        String[] lines;
-        char[] buffer;
-        int read;
+    /* Sleeps until I/O or the earliest deadline, returns false once the selector is gone */
+    private boolean waitForEvents(long deadline) {
+        mSelector.selectedKeys().clear();
 
-        buffer = new char[512];
+        long timeout = 0;
+        if (deadline != Long.MAX_VALUE)
+            timeout = deadline - SystemClock.elapsedRealtime();
 
-        do {
-            try {
-                read = mReader.read(buffer);
-            } catch (IOException e) {
-                throw new ClientException();
-            }
+        try {
+            if (deadline != Long.MAX_VALUE && timeout <= 0)
+                mSelector.selectNow();
+            else
+                mSelector.select(timeout);
+        } catch (IOException e) {
+            CharmLog.d("Selector failed: %s", e.getMessage());
+            return false;
+        }
 
-            if (read == -1)
-                throw new ClientException();
-
-            lines = new String(buffer, 0, read).split("\n");
-            for (String line : lines) {
-                /* Session Start */
-                if (line.startsWith("HELLO")) {
-                    try {
-                        mWriter.write("READY\n");
-                        mWriter.flush();
-                    } catch (IOException e) {
-                        throw new ClientException();
-                    }
-
-                    try {
-                        read = mReader.read(buffer);
-                    } catch (IOException e) {
-                        throw new ClientException();
-                    }
-
-                    if (read == -1)
-                        throw new ClientException();
-
-                    String answer = new String(buffer, 0, read);
-
-                    if (answer.startsWith("ACK")) {
-                        Log.d("CHARM", "Received handshake from Charm, starting command session...");
-                        setState(COMMAND_STATE);
-                    }
-                }
-            }
-        } while (mState == HANDSHAKE_STATE && !isInterrupted());
+        return true;
     }
 
-    private void runInCommandState() throws ClientException {
-        Message msg;
-        String[] lines;
-        char[] buffer;
-        int read;
-        boolean canRead;
-
-        buffer = new char[2048];
-
-        do {
-            try {
-                canRead = mReader.ready();
-            } catch (IOException e) {
-                throw new ClientException();
-            }
-
-            if (canRead) {
-                try {
-                    read = mReader.read(buffer);
-                } catch (IOException e) {
-                    throw new ClientException();
-                }
-
-                if (read == -1)
-                    throw new ClientException();
-
-                lines = new String(buffer, 0, read).split("\n");
-
-                for (String line : lines) {
-                    /* Task Activated */
-                    if (line.startsWith("TASK ACTIVATED")) {
-                        Integer task_id;
-                        try {
-                            task_id = Integer.parseInt(line.substring(15, 19));
-                        } catch (NumberFormatException e) {
-                            Log.d("CHARM", "Unable to parse: " + line);
-                            continue;
-                        }
-
-                        msg = mThreadToService.obtainMessage(CHARM_TASK_ACTIVATED_MSG, task_id, 0);
-                        Bundle data = new Bundle();
-                        data.putString(CharmClientService.CHARM_TASK_NAME, line.substring(20));
-                        msg.setData(data);
-
-                        mThreadToService.sendMessage(msg);
-                    }
-
-                    /* Task Deactivated */
-                    else if (line.startsWith("TASK DEACTIVATED")) {
-                        Integer task_id;
-                        try {
-                            task_id = Integer.parseInt(line.substring(17, 21));
-                        } catch (NumberFormatException e) {
-                            Log.d("CHARM", "Unable to parse: " + line);
-                            continue;
-                        }
-
-                        msg = mThreadToService.obtainMessage(CHARM_TASK_DEACTIVATED_MSG, task_id, 0);
-                        Bundle data = new Bundle();
-                        data.putString(CharmClientService.CHARM_TASK_NAME, line.substring(22));
-                        msg.setData(data);
-
-                        mThreadToService.sendMessage(msg);
-                    }
-                }
-            }
-
-            try {
-                msg = mWork.poll(500, TimeUnit.MILLISECONDS);
-            } catch (InterruptedException e) {
-                currentThread().interrupt();
-                return;
-            }
-
-            if (msg == null)
-                continue;
-
-            switch (msg.what) {
-                case CharmClientService.CHARM_START_MSG:
-                    try {
-                        mWriter.write(String.format("START %d\n", msg.arg1));
-                        mWriter.flush();
-                    } catch (IOException e) {
-                        throw new ClientException();
-                    }
-                    break;
-
-                case CharmClientService.CHARM_STOP_MSG:
-                    try {
-                        mWriter.write(String.format("STOP %d\n", msg.arg1));
-                        mWriter.flush();
-                    } catch (IOException e) {
-                        throw new ClientException();
-                    }
-                    break;
-
-                case CharmClientService.CHARM_RECENT_MSG: {
-                    try {
-                        mWriter.write(String.format("RECENT %d %d\n", msg.arg1, msg.arg2));
-                        mWriter.flush();
-                    } catch (IOException e) {
-                        throw new ClientException();
-                    }
-
-                    try {
-                        read = mReader.read(buffer);
-                    } catch (IOException e) {
-                        throw new ClientException();
-                    }
-
-                    if (read == -1)
-                        throw new ClientException();
-
-                    String[] tasks = new String(buffer, 0, read).split("\n");
-                    if (tasks.length == 1 && tasks[0].startsWith("NAK"))
-                        continue;
-
-                    for (int i = 0; i < tasks.length; ++i) {
-                        String task = tasks[i];
-
-                        Integer task_id;
-                        try {
-                            task_id = Integer.parseInt(task.substring(0, 4));
-                        } catch (NumberFormatException e) {
-                            Log.d("CHARM", "Unable to parse: " + task);
-                            continue;
-                        }
-
-                        msg = mThreadToService.obtainMessage(CHARM_TASK_RECENT_MSG, task_id, i);
-                        Bundle data = new Bundle();
-                        data.putString(CharmClientService.CHARM_TASK_NAME, task.substring(5));
-                        msg.setData(data);
-
-                        mThreadToService.sendMessage(msg);
-                    }
-                }
-                break;
+    private boolean readBeacons() {
+        if (!mDiscovery.isReadable(mSelector))
+            return false;
 
-                case CharmClientService.CHARM_STATUS_MSG: {
-                    try {
-                        mWriter.write("STATUS\n");
-                        mWriter.flush();
-                    } catch (IOException e) {
-                        throw new ClientException();
-                    }
-
-                    try {
-                        read = mReader.read(buffer);
-                    } catch (IOException e) {
-                        throw new ClientException();
-                    }
-
-                    if (read == -1)
-                        throw new ClientException();
-
-                    String[] tasks = new String(buffer, 0, read).split("\n");
-                    if (tasks.length == 1 && tasks[0].startsWith("NAK"))
-                        continue;
-
-                    for (String task : tasks) {
-                        Integer task_id;
-                        Integer task_seconds;
-
-                        try {
-                            task_id = Integer.parseInt(task.substring(0, 4));
-                            task_seconds = Integer.parseInt(task.substring(5));
-                        } catch (NumberFormatException e) {
-                            Log.d("CHARM", "Unable to parse: " + task);
-                            continue;
-                        }
-
-                        msg = mThreadToService.obtainMessage(CHARM_TASK_STATUS_MSG, task_id, task_seconds);
-                        mThreadToService.sendMessage(msg);
-                    }
-                }
-                break;
-            }
+        try {
+            return mDiscovery.read(SystemClock.elapsedRealtime());
+        } catch (IOException e) {
+            CharmLog.d("Stopped listening for Charm beacons: %s", e.getMessage());
+            mDiscovery.close();
+            return false;
         }
-        while (mState == COMMAND_STATE && !isInterrupted());
-    }
-
-    private class ClientException extends Exception {
     }
 }
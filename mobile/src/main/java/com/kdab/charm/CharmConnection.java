@@ -0,0 +1,640 @@
+package com.kdab.charm;
+
+import android.os.Message;
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Selector;
+
+/*
+ * One Charm server on the client thread's event loop: its connection state,
+ * protocol state and the events it posts, tagged with the server's key.
+ * Nothing here blocks. The thread calls onSelected() after every select and
+ * tick() once per loop, and sleeps until the earliest getDeadline(). The
+ * timeouts of connects, handshakes and heartbeat probes are deadlines too.
+ */
+class CharmConnection implements FrameParser.FrameHandler {
+    private static final int DISCONNECTED_STATE = 0;
+    private static final int CONNECTING_STATE   = 1;
+    private static final int HANDSHAKE_STATE    = 2;
+    private static final int COMMAND_STATE      = 3;
+
+    /* A text reply still open after this much silence following a complete line is over */
+    private static final long REPLY_GAP = 250;
+
+    private final Selector mSelector;
+    private final CharmEventBus mEventBus;
+    private final ConnectionDiscovery mDiscovery;
+    private final CharmMetrics mMetrics = CharmMetrics.getInstance();
+    private final ReconnectScheduler mReconnect = new ReconnectScheduler();
+    private final int mPort;
+    private volatile String mKey;
+    private String mHostname;
+
+    private int mState = DISCONNECTED_STATE;
+    private CharmTransport mTransport;
+    private HostLookup mLookup;
+    private final LineDecoder mDecoder = new LineDecoder();
+    private final PendingRequests mPending = new PendingRequests();
+    private final FrameParser mParser = new FrameParser(this, mPending);
+    private final BinaryCodec mCodec = new BinaryCodec(mParser);
+    private final CommandBatch mBatch = new CommandBatch();
+    private final StatusTracker mStatus = new StatusTracker();
+    private CharmEvent mSnapshot;
+    private int mStatusInterval = 0;
+    private long mNextStatusPoll;
+    private long mRetryAt = 0;
+    private long mConnectStarted;
+    private long mHandshakeStarted;
+    private long mReplyEndAt = -1;
+    private volatile ConnectionProfile mProfile = ConnectionProfile.DEFAULT;
+
+    /* Heartbeat, a probe is PING where the server knows it and STATUS elsewhere */
+    private long mLastReceived;
+    private long mProbeSentAt = -1;
+    private int mProbe;
+
+    /* Requests from this sequence number on are the probe, earlier polls of the same command are not */
+    private long mProbeSequence;
+    private volatile long mLastRtt = -1;
+    private volatile int mTimeouts = 0;
+    private boolean mHelloReceived;
+    private int mOffer;
+    private boolean mRoaming = false;
+    private boolean mTriedAlternative = false;
+    private boolean mSearching = false;
+
+    public CharmConnection(String key, Selector selector, CharmEventBus eventBus, ConnectionDiscovery discovery) {
+        mKey = key;
+        mHostname = ServerList.getHost(key);
+        mPort = ServerList.getPort(key);
+        mSelector = selector;
+        mEventBus = eventBus;
+        mDiscovery = discovery;
+    }
+
+    public String getKey() {
+        return mKey;
+    }
+
+    public ReconnectScheduler getReconnectScheduler() {
+        return mReconnect;
+    }
+
+    /* Applies from the next connect on, the heartbeat picks it up right away */
+    public void setProfile(ConnectionProfile profile) {
+        mProfile = profile;
+    }
+
+    /* Round trip of the last answered heartbeat probe, -1 before the first one */
+    public long getLastRtt() {
+        return mLastRtt;
+    }
+
+    /* Connects, handshakes and probes that ran out of time */
+    public int getTimeouts() {
+        return mTimeouts;
+    }
+
+    /* Only a lone server falls back to discovered ones, with several it would double up on one */
+    public void setRoaming(boolean roaming) {
+        mRoaming = roaming;
+    }
+
+    /* A network coming up or a new server showing up makes an immediate retry worthwhile */
+    public void onNetworkChanged() {
+        mReconnect.reset();
+        if (mState == DISCONNECTED_STATE)
+            mRetryAt = 0;
+    }
+
+    public void onHostDiscovered() {
+        if (mRoaming)
+            onNetworkChanged();
+    }
+
+    /* The time tick() next has something to do, Long.MAX_VALUE when only I/O can wake it */
+    public long getDeadline() {
+        switch (mState) {
+            case DISCONNECTED_STATE:
+                return mRetryAt;
+            case CONNECTING_STATE:
+                return mConnectStarted + mProfile.connectTimeout;
+            case HANDSHAKE_STATE:
+                return mHandshakeStarted + mProfile.readTimeout;
+        }
+
+        long deadline = mProbeSentAt != -1 ? mProbeSentAt + mProfile.readTimeout
+                : mLastReceived + mProfile.heartbeatInterval;
+        if (mStatusInterval > 0)
+            deadline = Math.min(deadline, mNextStatusPoll);
+        if (mReplyEndAt != -1)
+            deadline = Math.min(deadline, mReplyEndAt);
+        return deadline;
+    }
+
+    /* Commands wait in the batch until the session is up, repeats collapse there */
+    public void post(Message msg) {
+        switch (msg.what) {
+            case CharmClientService.CHARM_START_MSG:
+                mBatch.add(PendingRequests.COMMAND_START, CharmClientService.taskId(msg.arg1, msg.arg2), 0, 0);
+                break;
+
+            case CharmClientService.CHARM_STOP_MSG:
+                long task = CharmClientService.taskId(msg.arg1, msg.arg2);
+
+                /* Neither the START nor this STOP will be answered, the task list settles both now */
+                if (!mBatch.add(PendingRequests.COMMAND_STOP, task, 0, 0)) {
+                    CharmEvent event = CharmEvent.obtain(CharmEvent.COMMAND_WITHDRAWN);
+                    event.source = mKey;
+                    event.taskId = task;
+                    mEventBus.post(event);
+                }
+                break;
+
+            case CharmClientService.CHARM_WITHDRAW_MSG:
+                mBatch.withdraw(CharmClientService.taskId(msg.arg1, msg.arg2));
+                break;
+
+            case CharmClientService.CHARM_RECENT_MSG:
+                mBatch.add(PendingRequests.COMMAND_RECENT, 0, msg.arg1, msg.arg2);
+                break;
+
+            case CharmClientService.CHARM_STATUS_MSG:
+                mBatch.add(PendingRequests.COMMAND_STATUS, 0, 0, 0);
+                break;
+
+            case CharmClientService.CHARM_SUBSCRIBE_MSG:
+                mStatusInterval = msg.arg1;
+                mNextStatusPoll = SystemClock.elapsedRealtime();
+                break;
+        }
+    }
+
+    public void tick(long now) {
+        if (mState == DISCONNECTED_STATE && now >= mRetryAt)
+            connect(now);
+
+        if (mState == CONNECTING_STATE && mLookup != null && mLookup.isDone())
+            open(now);
+
+        if (mState == CONNECTING_STATE && now >= mConnectStarted + mProfile.connectTimeout) {
+            CharmLog.d("Connecting to %s timed out.", mKey);
+            onTimeout();
+            connectFailed(now);
+            return;
+        }
+
+        if (mState == HANDSHAKE_STATE && now >= mHandshakeStarted + mProfile.readTimeout) {
+            CharmLog.d("Handshake with %s timed out.", mKey);
+            onTimeout();
+            lost();
+            return;
+        }
+
+        if (mState != COMMAND_STATE)
+            return;
+
+        if (mReplyEndAt != -1 && now >= mReplyEndAt) {
+            mReplyEndAt = -1;
+            mParser.onBurstEnd();
+        }
+
+        /* A peer that stopped answering is gone, whatever TCP still thinks */
+        if (mProbeSentAt != -1 && now >= mProbeSentAt + mProfile.readTimeout) {
+            CharmLog.d("%s did not answer for %d milliseconds.", mKey, now - mLastReceived);
+            onTimeout();
+            lost();
+            return;
+        }
+
+        if (mProbeSentAt == -1 && now >= mLastReceived + mProfile.heartbeatInterval) {
+            mBatch.add(mProbe, 0, 0, 0);
+            mProbeSentAt = now;
+            mProbeSequence = mPending.nextSequence();
+        }
+
+        /* Subscribed clients get STATUS polled for them */
+        if (mStatusInterval > 0 && now >= mNextStatusPoll) {
+            mBatch.add(PendingRequests.COMMAND_STATUS, 0, 0, 0);
+            mNextStatusPoll = now + mStatusInterval;
+        }
+
+        /* Everything queued since the last wakeup goes out in one write */
+        if (!mBatch.isEmpty()) {
+            mBatch.encode(mTransport.getWriteBuffer(), mPending);
+
+            try {
+                mMetrics.onBytesOut(mTransport.flush());
+            } catch (IOException e) {
+                lost();
+            }
+        }
+    }
+
+    public void onSelected() {
+        if (mTransport == null)
+            return;
+
+        try {
+            if (mState == CONNECTING_STATE) {
+                if (mTransport.isConnectable(mSelector) && mTransport.finishConnect())
+                    onConnected();
+                return;
+            }
+
+            if (mTransport.isReadable(mSelector)) {
+                mLastReceived = SystemClock.elapsedRealtime();
+                mMetrics.onBytesIn(mTransport.read(mDecoder, mParser));
+
+                /* Binary replies end with an END frame, only text ones need the heuristic */
+                mReplyEndAt = -1;
+                if (mTransport != null && !mTransport.isBinary() && !mDecoder.hasPartialLine()
+                        && mParser.hasOpenReply())
+                    mReplyEndAt = mLastReceived + REPLY_GAP;
+            }
+
+            /* Session Start */
+            if (mHelloReceived && mState == HANDSHAKE_STATE) {
+                mHelloReceived = false;
+                mMetrics.onBytesOut(mTransport.write(ready(mOffer)));
+            }
+
+            /* The reader may have hit a state change that dropped the connection */
+            if (mTransport != null && mTransport.isWritable(mSelector))
+                mMetrics.onBytesOut(mTransport.flush());
+        } catch (IOException e) {
+            /* Malformed frames and deflate streams end the session like any other error */
+            if (e instanceof ProtocolException)
+                mMetrics.onParseError();
+
+            if (mState == CONNECTING_STATE)
+                connectFailed(SystemClock.elapsedRealtime());
+            else
+                lost();
+        }
+    }
+
+    /* Says goodbye to the server, the connection is not used again */
+    public void close() {
+        setState(DISCONNECTED_STATE);
+        discardSnapshot();
+    }
+
+    /* The connect timeout covers the lookup, tick() opens the socket once it is done */
+    private void connect(long now) {
+        mConnectStarted = now;
+        mLookup = HostLookup.start(mSelector, mHostname, mPort);
+        setState(CONNECTING_STATE);
+    }
+
+    private void open(long now) {
+        InetSocketAddress address = mLookup.getAddress();
+        mLookup = null;
+
+        try {
+            mTransport = CharmTransport.open(mSelector, address, mProfile);
+        } catch (IOException e) {
+            mTransport = null;
+            connectFailed(now);
+            return;
+        }
+
+        mDecoder.reset();
+        mPending.clear();
+        mStatus.clear();
+        discardSnapshot();
+        mBatch.setBinary(false);
+        mOffer = FrameParser.OPTION_BINARY | FrameParser.OPTION_DEFLATE | FrameParser.OPTION_PING;
+        mHelloReceived = false;
+        mProbeSentAt = -1;
+        mReplyEndAt = -1;
+
+        if (mTransport.isConnected())
+            onConnected();
+    }
+
+    private void onConnected() {
+        mDiscovery.onConnected(mHostname, SystemClock.elapsedRealtime() - mConnectStarted);
+        mTriedAlternative = false;
+        mSearching = false;
+        mHandshakeStarted = SystemClock.elapsedRealtime();
+
+        setState(HANDSHAKE_STATE);
+    }
+
+    /* One attempt per host, falling back to the best discovered one straight away */
+    private void connectFailed(long now) {
+        mLookup = null;
+        if (mTransport != null) {
+            mTransport.close();
+            mTransport = null;
+        }
+        mState = DISCONNECTED_STATE;
+        mDiscovery.onFailed(mHostname);
+
+        if (mRoaming && !mTriedAlternative) {
+            String alternative = mDiscovery.pickHost(mHostname, now);
+            if (alternative != null) {
+                mTriedAlternative = true;
+                switchHost(alternative);
+                mRetryAt = now;
+                return;
+            }
+        }
+
+        mTriedAlternative = false;
+
+        if (!mSearching) {
+            mSearching = true;
+            notifyService(CharmEvent.CONNECTION_DISCOVERY);
+        }
+
+        long delay = mReconnect.nextDelay();
+        CharmLog.d("Failed to connect to %s. Retrying in %d milliseconds.", mKey, delay);
+
+        mRetryAt = now + delay;
+    }
+
+    /* The connection follows the server under its new key, receivers rename their side with the event */
+    private void switchHost(String hostname) {
+        CharmEvent event = CharmEvent.obtain(CharmEvent.CONNECTION_DISCOVERED);
+        event.source = mKey;
+        event.hostname = hostname;
+
+        mHostname = hostname;
+        mKey = ServerList.key(hostname, mPort);
+
+        mEventBus.post(event);
+    }
+
+    private void lost() {
+        setState(DISCONNECTED_STATE);
+        notifyService(CharmEvent.CONNECTION_LOST);
+        mRetryAt = SystemClock.elapsedRealtime();
+    }
+
+    private void cleanupConnection() {
+        mLookup = null;
+        if (mTransport == null)
+            return;
+
+        try {
+            if (mTransport.isBinary()) {
+                ByteBuffer out = mTransport.getWriteBuffer();
+                if (out.remaining() >= 2) {
+                    BinaryCodec.putBye(out);
+                    mMetrics.onBytesOut(mTransport.flush());
+                }
+            } else if (mTransport.isConnected())
+                mMetrics.onBytesOut(mTransport.write("BYE\n"));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        mTransport.close();
+        mTransport = null;
+    }
+
+    private void setState(int state) {
+        if (mState == state)
+            return;
+
+        CharmLog.d("Connection to %s changing state from %d to %d.", mKey, mState, state);
+
+        long now = SystemClock.elapsedRealtime();
+
+        switch (mState) {
+            case HANDSHAKE_STATE:
+                if (state == COMMAND_STATE) {
+                    long outage = mReconnect.onConnectionEstablished(now);
+                    if (outage != -1) {
+                        mMetrics.onReconnect();
+                        CharmLog.d("Reconnected to %s after %d milliseconds.", mKey, outage);
+                    }
+
+                    mNextStatusPoll = now;
+                    mLastReceived = now;
+                    notifyService(CharmEvent.CONNECTION_ESTABLISHED);
+                }
+                break;
+            case COMMAND_STATE:
+                mReconnect.onConnectionLost(now);
+                notifyService(CharmEvent.CONNECTION_CLOSED);
+                break;
+        }
+
+        mState = state;
+
+        switch (mState) {
+            case DISCONNECTED_STATE:
+                cleanupConnection();
+                break;
+        }
+    }
+
+    private void onTimeout() {
+        ++mTimeouts;
+        mMetrics.onTimeout();
+    }
+
+    private void notifyService(int type) {
+        CharmEvent event = CharmEvent.obtain(type);
+        event.source = mKey;
+        mEventBus.post(event);
+    }
+
+    private static String ready(int options) {
+        StringBuilder line = new StringBuilder("READY");
+
+        if ((options & FrameParser.OPTION_BINARY) != 0)
+            line.append(" BINARY");
+        if ((options & FrameParser.OPTION_DEFLATE) != 0)
+            line.append(" DEFLATE");
+        if ((options & FrameParser.OPTION_PING) != 0)
+            line.append(" PING");
+
+        return line.append('\n').toString();
+    }
+
+    @Override
+    public void onHello() {
+        if (mState == HANDSHAKE_STATE)
+            mHelloReceived = true;
+    }
+
+    @Override
+    public void onAck(int options) {
+        if (mState != HANDSHAKE_STATE)
+            return;
+
+        /* Whatever follows this line in the current read is already framed or compressed */
+        options &= mOffer;
+        if (options != 0)
+            mDecoder.suspend();
+
+        if ((options & FrameParser.OPTION_DEFLATE) != 0)
+            mTransport.startInflating();
+
+        if ((options & FrameParser.OPTION_BINARY) != 0) {
+            mTransport.setCodec(mCodec);
+            mBatch.setBinary(true);
+        }
+
+        /* Every server answers STATUS, even with a NAK, so it does as a probe where PING is unknown */
+        mProbe = (options & FrameParser.OPTION_PING) != 0 ? PendingRequests.COMMAND_PING : PendingRequests.COMMAND_STATUS;
+
+        if (CharmLog.isEnabled()) {
+            CharmLog.d("Received handshake from " + mKey + ", starting "
+                    + ((options & FrameParser.OPTION_BINARY) != 0 ? "binary" : "text")
+                    + ((options & FrameParser.OPTION_DEFLATE) != 0 ? " deflated" : "")
+                    + ((options & FrameParser.OPTION_PING) != 0 ? " with heartbeat" : "") + " command session...");
+        }
+        setState(COMMAND_STATE);
+    }
+
+    @Override
+    public void onNak(PendingRequests.Request request) {
+        /* Servers that do not know any options refuse the offer, retry without */
+        if (mState == HANDSHAKE_STATE && mOffer != 0) {
+            mOffer = 0;
+            mHelloReceived = true;
+            return;
+        }
+
+        if (request != null)
+            onAnswered(request);
+
+        if (request == null)
+            CharmLog.d("Received NAK without an outstanding request");
+        else if (request.command == PendingRequests.COMMAND_STATUS)
+            sweepStatus(); /* Nothing is running */
+        else
+            CharmLog.d("Command %d was rejected by %s", request.command, mKey);
+
+        if (request != null && request.command == PendingRequests.COMMAND_RECENT)
+            closeWindow(request);
+        postSnapshot();
+
+        /* The task list showed the tap already and takes it back */
+        if (request != null && (request.command == PendingRequests.COMMAND_START
+                || request.command == PendingRequests.COMMAND_STOP)) {
+            CharmEvent event = CharmEvent.obtain(CharmEvent.COMMAND_REFUSED);
+            event.source = mKey;
+            event.taskId = request.task;
+            event.command = request.command;
+            mEventBus.post(event);
+        }
+    }
+
+    @Override
+    public void onReplyComplete(PendingRequests.Request request) {
+        onAnswered(request);
+
+        if (request.command == PendingRequests.COMMAND_STATUS)
+            sweepStatus();
+        else if (request.command == PendingRequests.COMMAND_RECENT)
+            closeWindow(request);
+
+        postSnapshot();
+    }
+
+    private void onAnswered(PendingRequests.Request request) {
+        mMetrics.getRoundTrip().record((System.nanoTime() - request.sentAt) / 1000);
+
+        if (mProbeSentAt == -1 || request.command != mProbe || request.sequence < mProbeSequence)
+            return;
+
+        mLastRtt = (System.nanoTime() - request.sentAt) / 1000000;
+        mProbeSentAt = -1;
+    }
+
+    @Override
+    public void onTaskActivated(long id, String name) {
+        mStatus.activate(id, SystemClock.elapsedRealtime());
+        sendTask(CharmEvent.TASK_ACTIVATED, id, name);
+    }
+
+    @Override
+    public void onTaskDeactivated(long id, String name) {
+        mStatus.deactivate(id);
+        sendTask(CharmEvent.TASK_DEACTIVATED, id, name);
+    }
+
+    @Override
+    public void onRecentTask(long id, String name, int index) {
+        snapshot(CharmEvent.TASK_RECENT).rows.add(id, index, name);
+    }
+
+    @Override
+    public void onTaskStatus(long id, int seconds) {
+        /* Receivers extrapolate between samples, so only drift is worth a row */
+        if (!mStatus.update(id, seconds, SystemClock.elapsedRealtime()))
+            return;
+
+        snapshot(CharmEvent.TASK_STATUS).rows.add(id, seconds, null);
+    }
+
+    @Override
+    public void onUnknownFrame(byte[] buffer, int start, int end) {
+        mMetrics.onParseError();
+        if (CharmLog.isEnabled())
+            CharmLog.d("Unable to parse: " + new String(buffer, start, end - start));
+    }
+
+    private void discardSnapshot() {
+        if (mSnapshot != null)
+            mSnapshot.recycle();
+        mSnapshot = null;
+    }
+
+    private void sweepStatus() {
+        int removed = mStatus.sweep();
+        for (int i = 0; i < removed; ++i)
+            snapshot(CharmEvent.TASK_STATUS).rows.add(mStatus.getRemoved(i), TaskRows.NOT_RUNNING, null);
+    }
+
+    /* Even an empty RECENT reply is news, it tells the pager the history ends there */
+    private void closeWindow(PendingRequests.Request request) {
+        CharmEvent event = snapshot(CharmEvent.TASK_RECENT);
+        event.index = request.index;
+        event.count = request.count;
+    }
+
+    /* Rows of one reply collect here until it completes, then go out as a single event */
+    private CharmEvent snapshot(int type) {
+        if (mSnapshot != null && mSnapshot.type != type)
+            postSnapshot();
+
+        if (mSnapshot == null) {
+            mSnapshot = CharmEvent.obtain(type);
+            mSnapshot.source = mKey;
+        }
+        return mSnapshot;
+    }
+
+    private void postSnapshot() {
+        if (mSnapshot == null)
+            return;
+
+        if (mSnapshot.rows.isEmpty() && mSnapshot.type != CharmEvent.TASK_RECENT)
+            mSnapshot.recycle();
+        else
+            mEventBus.post(mSnapshot);
+        mSnapshot = null;
+    }
+
+    private void sendTask(int type, long id, String name) {
+        /* Keeps a push from overtaking rows of a reply that came in before it */
+        postSnapshot();
+
+        CharmEvent event = CharmEvent.obtain(type);
+        event.source = mKey;
+        event.taskId = id;
+        event.name = name;
+        mEventBus.post(event);
+    }
+}
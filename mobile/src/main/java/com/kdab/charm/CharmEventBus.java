@@ -0,0 +1,73 @@
+package com.kdab.charm;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+
+import java.util.Arrays;
+
+/* Carries client events to the UI thread without Bundles, Intents or broadcasts */
+class CharmEventBus {
+    private static final int DISPATCH_MSG = 1;
+
+    private static CharmEventBus sInstance;
+
+    private final Handler mHandler;
+    private CharmEventListener[] mListeners = new CharmEventListener[0];
+
+    private CharmEventBus() {
+        mHandler = new Handler(Looper.getMainLooper(), new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                if (msg.what != DISPATCH_MSG)
+                    return false;
+
+                dispatch((CharmEvent) msg.obj);
+                return true;
+            }
+        });
+    }
+
+    public static synchronized CharmEventBus getInstance() {
+        if (sInstance == null)
+            sInstance = new CharmEventBus();
+        return sInstance;
+    }
+
+    /* Listeners are only touched on the main thread, dispatch iterates a snapshot */
+    public void register(CharmEventListener listener) {
+        for (CharmEventListener registered : mListeners) {
+            if (registered == listener)
+                return;
+        }
+
+        mListeners = Arrays.copyOf(mListeners, mListeners.length + 1);
+        mListeners[mListeners.length - 1] = listener;
+    }
+
+    public void unregister(CharmEventListener listener) {
+        for (int i = 0; i < mListeners.length; ++i) {
+            if (mListeners[i] != listener)
+                continue;
+
+            CharmEventListener[] listeners = new CharmEventListener[mListeners.length - 1];
+            System.arraycopy(mListeners, 0, listeners, 0, i);
+            System.arraycopy(mListeners, i + 1, listeners, i, listeners.length - i);
+            mListeners = listeners;
+            return;
+        }
+    }
+
+    /* Safe from any thread; the event is recycled once every listener has seen it */
+    public void post(CharmEvent event) {
+        mHandler.obtainMessage(DISPATCH_MSG, event).sendToTarget();
+    }
+
+    void dispatch(CharmEvent event) {
+        CharmEventListener[] listeners = mListeners;
+        for (int i = 0; i < listeners.length; ++i)
+            listeners[i].onCharmEvent(event);
+
+        event.recycle();
+    }
+}
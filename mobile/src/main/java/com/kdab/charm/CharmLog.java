@@ -0,0 +1,49 @@
+package com.kdab.charm;
+
+import android.util.Log;
+
+/*
+ * Debug logging that costs a field read while it is off. The overloads take
+ * the format arguments unformatted and unboxed, so nothing is built unless a
+ * line is actually written; call sites that need more than that check
+ * isEnabled() first. On by default in debug builds, otherwise with
+ * "adb shell setprop log.tag.CHARM DEBUG" or from DiagnosticsActivity.
+ */
+class CharmLog {
+    private static final String TAG = "CHARM";
+
+    private static volatile boolean sEnabled = BuildConfig.DEBUG || Log.isLoggable(TAG, Log.DEBUG);
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    public static void d(String message) {
+        if (sEnabled)
+            Log.d(TAG, message);
+    }
+
+    public static void d(String format, Object a) {
+        if (sEnabled)
+            Log.d(TAG, String.format(format, a));
+    }
+
+    public static void d(String format, Object a, long b) {
+        if (sEnabled)
+            Log.d(TAG, String.format(format, a, b));
+    }
+
+    public static void d(String format, long a, Object b) {
+        if (sEnabled)
+            Log.d(TAG, String.format(format, a, b));
+    }
+
+    public static void d(String format, Object a, long b, long c) {
+        if (sEnabled)
+            Log.d(TAG, String.format(format, a, b, c));
+    }
+}
@@ -0,0 +1,191 @@
+package com.kdab.charm;
+
+import android.os.Message;
+
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Hands commands from the service to the client thread in three lanes:
+ * START, STOP and SUBSCRIBE from the user first, then RECENT windows, then
+ * background STATUS polls. Nothing is ever refused. User commands are kept
+ * whatever the depth. RECENT and STATUS merge with equal queued ones, a
+ * RECENT from index 0 replaces the windows queued before it, and STATUS
+ * polls beyond MAX_BACKGROUND push out the oldest.
+ */
+class CommandScheduler {
+    static final int LANE_USER       = 0;
+    static final int LANE_RECENT     = 1;
+    static final int LANE_BACKGROUND = 2;
+
+    private static final int MAX_BACKGROUND = 8;
+
+    private final Lane[] mLanes = { new Lane(), new Lane(), new Lane() };
+    private final LatencyHistogram mQueueWait = CharmMetrics.getInstance().getQueueWait();
+
+    /* Updated under the lock, read from anywhere */
+    private volatile int mMaxDepth = 0;
+    private volatile int mMerged = 0;
+    private volatile int mDropped = 0;
+    private volatile int mTaken = 0;
+    private volatile long mLastWait = 0;
+    private volatile long mMaxWait = 0;
+    private volatile long mTotalWait = 0;
+
+    static int lane(int what) {
+        switch (what) {
+            case CharmClientService.CHARM_RECENT_MSG:
+                return LANE_RECENT;
+            case CharmClientService.CHARM_STATUS_MSG:
+                return LANE_BACKGROUND;
+            default:
+                return LANE_USER;
+        }
+    }
+
+    /* Takes ownership of msg, which is recycled if it merges into a queued one */
+    public synchronized void offer(Message msg, long now) {
+        int lane = lane(msg.what);
+        Lane queue = mLanes[lane];
+
+        for (int i = 0; lane != LANE_USER && i < queue.size; ++i) {
+            Message queued = queue.get(i);
+            if (covers(queued, msg)) {
+                msg.recycle();
+                ++mMerged;
+                return;
+            }
+        }
+
+        if (lane == LANE_RECENT && msg.arg1 == 0) {
+            for (int i = queue.size - 1; i >= 0; --i) {
+                if (sameSource(queue.get(i), msg)) {
+                    queue.remove(i).recycle();
+                    ++mDropped;
+                }
+            }
+        }
+
+        /* A STATUS for every server answers the ones queued for a single server */
+        if (lane == LANE_BACKGROUND && msg.obj == null) {
+            while (queue.size > 0) {
+                queue.remove(queue.size - 1).recycle();
+                ++mMerged;
+            }
+        }
+
+        if (lane == LANE_BACKGROUND && queue.size == MAX_BACKGROUND) {
+            queue.remove(0).recycle();
+            ++mDropped;
+        }
+
+        queue.add(msg, now);
+        mMaxDepth = Math.max(mMaxDepth, depth());
+    }
+
+    /* Moves every queued command to out, user commands first */
+    public synchronized void drainTo(List<Message> out, long now) {
+        for (Lane queue : mLanes) {
+            for (int i = 0; i < queue.size; ++i) {
+                long wait = now - queue.getQueuedAt(i);
+
+                mLastWait = wait;
+                mMaxWait = Math.max(mMaxWait, wait);
+                mTotalWait += wait;
+                ++mTaken;
+                mQueueWait.record(wait);
+
+                out.add(queue.get(i));
+            }
+            queue.clear();
+        }
+    }
+
+    public synchronized int depth() {
+        return mLanes[LANE_USER].size + mLanes[LANE_RECENT].size + mLanes[LANE_BACKGROUND].size;
+    }
+
+    public synchronized int depth(int lane) {
+        return mLanes[lane].size;
+    }
+
+    public int getMaxDepth() {
+        return mMaxDepth;
+    }
+
+    public int getMerged() {
+        return mMerged;
+    }
+
+    public int getDropped() {
+        return mDropped;
+    }
+
+    public long getLastWait() {
+        return mLastWait;
+    }
+
+    public long getMaxWait() {
+        return mMaxWait;
+    }
+
+    public long getMeanWait() {
+        int taken = mTaken;
+        return taken == 0 ? 0 : mTotalWait / taken;
+    }
+
+    /* Whether queued already asks for everything msg does */
+    private static boolean covers(Message queued, Message msg) {
+        if (queued.what != msg.what)
+            return false;
+
+        if (msg.what == CharmClientService.CHARM_STATUS_MSG)
+            return queued.obj == null || sameSource(queued, msg);
+
+        return sameSource(queued, msg) && queued.arg1 == msg.arg1 && queued.arg2 == msg.arg2;
+    }
+
+    private static boolean sameSource(Message a, Message b) {
+        return a.obj == null ? b.obj == null : a.obj.equals(b.obj);
+    }
+
+    /* A growable FIFO of messages and the time each was queued at */
+    private static class Lane {
+        Message[] messages = new Message[8];
+        long[] queuedAt = new long[8];
+        int size = 0;
+
+        Message get(int index) {
+            return messages[index];
+        }
+
+        long getQueuedAt(int index) {
+            return queuedAt[index];
+        }
+
+        void add(Message msg, long now) {
+            if (size == messages.length) {
+                messages = Arrays.copyOf(messages, size * 2);
+                queuedAt = Arrays.copyOf(queuedAt, size * 2);
+            }
+
+            messages[size] = msg;
+            queuedAt[size] = now;
+            ++size;
+        }
+
+        Message remove(int index) {
+            Message msg = messages[index];
+
+            System.arraycopy(messages, index + 1, messages, index, size - index - 1);
+            System.arraycopy(queuedAt, index + 1, queuedAt, index, size - index - 1);
+            messages[--size] = null;
+            return msg;
+        }
+
+        void clear() {
+            Arrays.fill(messages, 0, size, null);
+            size = 0;
+        }
+    }
+}
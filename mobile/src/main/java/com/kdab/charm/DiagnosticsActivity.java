@@ -0,0 +1,82 @@
+package com.kdab.charm;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.support.v7.app.ActionBarActivity;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.TextView;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/* Shows the CharmMetrics snapshot, refreshed every second while visible */
+public class DiagnosticsActivity extends ActionBarActivity {
+    private static final int REFRESH_INTERVAL = 1000;
+
+    private final Handler mHandler = new Handler();
+    private final Runnable mRefresh = new Runnable() {
+        @Override
+        public void run() {
+            refresh();
+            mHandler.postDelayed(this, REFRESH_INTERVAL);
+        }
+    };
+    private TextView mText;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_diagnostics);
+
+        mText = (TextView) findViewById(R.id.diagnostics_text);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        mRefresh.run();
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        mHandler.removeCallbacks(mRefresh);
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.menu_diagnostics, menu);
+        menu.findItem(R.id.action_logging).setChecked(CharmLog.isEnabled());
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        int id = item.getItemId();
+
+        if (id == R.id.action_logging) {
+            item.setChecked(!item.isChecked());
+            CharmLog.setEnabled(item.isChecked());
+            return true;
+        }
+
+        if (id == R.id.action_reset) {
+            CharmMetrics.getInstance().reset();
+            refresh();
+            return true;
+        }
+
+        return super.onOptionsItemSelected(item);
+    }
+
+    private void refresh() {
+        StringWriter text = new StringWriter();
+        PrintWriter writer = new PrintWriter(text);
+
+        CharmMetrics.getInstance().dump(writer);
+        writer.flush();
+
+        mText.setText(text.toString());
+    }
+}
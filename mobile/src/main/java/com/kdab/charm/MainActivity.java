@@ -2,8 +2,6 @@ package com.kdab.charm;
 
 import android.content.Intent;
 import android.os.Bundle;
-import android.os.Message;
-import android.os.RemoteException;
 import android.support.v7.app.ActionBarActivity;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -33,6 +31,11 @@ public class MainActivity extends ActionBarActivity
             return true;
         }
 
+        if (id == R.id.action_diagnostics) {
+            startActivity(new Intent(this, DiagnosticsActivity.class));
+            return true;
+        }
+
         return super.onOptionsItemSelected(item);
     }
 
@@ -41,12 +44,6 @@ public class MainActivity extends ActionBarActivity
         TaskFragment fragment =
                 (TaskFragment) getFragmentManager().findFragmentById(R.id.event_list);
 
-        CharmClientCommunicator communicator =
-                new CharmClientCommunicator(fragment.getServiceMessenger());
-
-        if (task.active)
-            communicator.stop(task.id);
-        else
-            communicator.start(task.id);
+        fragment.toggleTask(task);
     }
 }
@@ -15,9 +15,11 @@ import android.preference.PreferenceManager;
 import java.util.List;
 
 public class SettingsActivity extends PreferenceActivity {
-    public static final String CHARM_CONNECTION_HOSTNAME = "connection_hostname";
-    public static final String CHARM_CONNECTION_PORT     = "connection_port";
-    public static final String CHARM_RECENT_COUNT        = "recent_count";
+    public static final String CHARM_CONNECTION_HOSTNAME  = "connection_hostname";
+    public static final String CHARM_CONNECTION_PORT      = "connection_port";
+    public static final String CHARM_CONNECTION_TIMEOUT   = "connection_timeout";
+    public static final String CHARM_CONNECTION_HEARTBEAT = "connection_heartbeat";
+    public static final String CHARM_RECENT_COUNT         = "recent_count";
 
     private static final boolean ALWAYS_SIMPLE_PREFS = true;
 
@@ -100,6 +102,8 @@ public class SettingsActivity extends PreferenceActivity {
         bindPreferenceSummaryToValue(findPreference(CHARM_RECENT_COUNT));
         bindPreferenceSummaryToValue(findPreference(CHARM_CONNECTION_HOSTNAME));
         bindPreferenceSummaryToValue(findPreference(CHARM_CONNECTION_PORT));
+        bindPreferenceSummaryToValue(findPreference(CHARM_CONNECTION_TIMEOUT));
+        bindPreferenceSummaryToValue(findPreference(CHARM_CONNECTION_HEARTBEAT));
     }
 
     /**
@@ -149,6 +153,8 @@ public class SettingsActivity extends PreferenceActivity {
 
             bindPreferenceSummaryToValue(findPreference(CHARM_CONNECTION_HOSTNAME));
             bindPreferenceSummaryToValue(findPreference(CHARM_CONNECTION_PORT));
+            bindPreferenceSummaryToValue(findPreference(CHARM_CONNECTION_TIMEOUT));
+            bindPreferenceSummaryToValue(findPreference(CHARM_CONNECTION_HEARTBEAT));
         }
     }
 }
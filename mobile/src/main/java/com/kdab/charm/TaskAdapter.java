@@ -1,44 +1,71 @@
 package com.kdab.charm;
 
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
+import android.os.Handler;
 import android.os.IBinder;
 import android.os.Messenger;
-import android.support.v4.content.LocalBroadcastManager;
+import android.os.SystemClock;
+import android.support.v4.view.ViewCompat;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.BaseAdapter;
 import android.widget.TextView;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
 
-class TaskAdapter extends BaseAdapter {
-    private final List<Task> mTasks = new ArrayList<>();
-    private final Map<Long, Task> mTasksById = new HashMap<>();
+class TaskAdapter extends RecyclerView.Adapter<TaskAdapter.ViewHolder>
+        implements CharmEventListener, TaskCache.LoadListener {
+    /* Running times are extrapolated locally, the server only corrects drift */
+    private static final int STATUS_INTERVAL = 120000;
+
+    /* Change payload for updates that only touch the running time of a row */
+    private static final Object PAYLOAD_RUNNING = new Object();
+
+    private final TaskList mTasks;
+    private final CharmMetrics mMetrics = CharmMetrics.getInstance();
+    private final LatencyHistogram mBindTime = mMetrics.getBindTime();
+    private final TaskCache mCache;
     private final ServiceConnection mCharmServiceConnection;
     private final Context mContext;
-    private final BroadcastReceiver mCharmServiceReceiver = new CharmBroadcastReceiver();
+    private final Handler mTickHandler = new Handler();
+    private final Runnable mTicker = new Ticker();
+    private final Runnable mFrame = new Frame();
+    private final RecyclerView.OnScrollListener mScrollListener = new ScrollListener();
 
     private Messenger mServiceMessenger;
     private CharmClientCommunicator mServiceCommunicator;
     private int mRecentCount = 10;
     private boolean mOpened = false;
-    private Timer mRefreshTimer;
-    private String mHostname;
-    private int mPort;
+    private long mTimeout;
+    private long mHeartbeat;
+    private RecyclerView mRecyclerView;
+    private TaskFragment.OnTaskClickedListener mTaskClickedListener;
+    private boolean mFrameScheduled = false;
+    private boolean mCacheLoaded = false;
+    private boolean mCacheLoading = false;
+    private int mLastVisible = 0;
+
+    /* The last tap, until the row it changed is bound */
+    private long mTappedKey = 0;
+    private long mTappedAt;
 
     public TaskAdapter(Context context) {
         mContext = context;
+        mCache = new TaskCache(context);
+        mTasks = new TaskList(new TaskList.RecentListener() {
+            @Override
+            public void onRecentTask(Task task, int index) {
+                mCache.putRecent(task, index);
+            }
+        });
+
+        setHasStableIds(true);
 
         mServiceMessenger = null;
         mCharmServiceConnection = new ServiceConnection() {
@@ -46,16 +73,11 @@ class TaskAdapter extends BaseAdapter {
             public void onServiceConnected(ComponentName name, IBinder service) {
                 mServiceMessenger = new Messenger(service);
                 mServiceCommunicator = new CharmClientCommunicator(mServiceMessenger);
-                mServiceCommunicator.connectionInformation(mHostname, mPort);
+                sendConnectionInformation();
             }
 
             @Override
             public void onServiceDisconnected(ComponentName name) {
-                if (mRefreshTimer != null) {
-                    mRefreshTimer.cancel();
-                    mRefreshTimer.purge();
-                    mRefreshTimer = null;
-                }
                 mServiceCommunicator = null;
                 mServiceMessenger = null;
             }
@@ -63,43 +85,187 @@ class TaskAdapter extends BaseAdapter {
     }
 
     @Override
-    public int getCount() {
+    public int getItemCount() {
         return mTasks.size();
     }
 
-    @Override
-    public Object getItem(int position) {
-        return mTasks.get(position);
+    public Task getItem(int position) {
+        return mTasks.getAt(position);
     }
 
     @Override
     public long getItemId(int position) {
-        return mTasks.get(position).id;
+        return mTasks.getAt(position).key;
+    }
+
+    @Override
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(mContext).inflate(R.layout.task_item_view, parent, false);
+        return new ViewHolder(view);
     }
 
     @Override
-    public View getView(int position, View convertView, ViewGroup parent) {
-        View view = convertView;
-        if (convertView == null) {
-            LayoutInflater inflater =
-                    (LayoutInflater) mContext.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
-            view = inflater.inflate(R.layout.task_item_view, parent, false);
+    public void onBindViewHolder(ViewHolder holder, int position) {
+        long started = System.nanoTime();
+        Task task = mTasks.getAt(position);
+
+        holder.taskId.setText(String.format("%04d", task.id));
+        holder.taskName.setText(task.name);
+
+        /* With a single server the source is noise */
+        if (mTasks.getSources().size() > 1 && task.source != null) {
+            holder.taskSource.setText(ServerList.getHost(task.source));
+            holder.taskSource.setVisibility(View.VISIBLE);
+        } else
+            holder.taskSource.setVisibility(View.GONE);
+        holder.bindRunning(task, SystemClock.elapsedRealtime());
+
+        mBindTime.record((System.nanoTime() - started) / 1000);
+        onTapShown(task);
+    }
+
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position, List<Object> payloads) {
+        /* Payloads only ever carry PAYLOAD_RUNNING, an empty list asks for a full bind */
+        if (payloads.isEmpty()) {
+            onBindViewHolder(holder, position);
+        } else {
+            holder.bindRunning(mTasks.getAt(position), SystemClock.elapsedRealtime());
+            onTapShown(mTasks.getAt(position));
         }
+    }
 
-        TextView taskId = (TextView) view.findViewById(R.id.task_id);
-        TextView taskName = (TextView) view.findViewById(R.id.task_name);
-        TextView taskRunning = (TextView) view.findViewById(R.id.task_running);
+    @Override
+    public void onAttachedToRecyclerView(RecyclerView recyclerView) {
+        mRecyclerView = recyclerView;
+        mRecyclerView.addOnScrollListener(mScrollListener);
+        scheduleTick();
+    }
+
+    @Override
+    public void onDetachedFromRecyclerView(RecyclerView recyclerView) {
+        recyclerView.removeCallbacks(mFrame);
+        recyclerView.removeOnScrollListener(mScrollListener);
+        mRecyclerView = null;
+        mTickHandler.removeCallbacks(mTicker);
 
-        Task task = mTasks.get(position);
+        applyPending();
+    }
 
-        taskId.setText(String.format("%04d", task.id));
-        taskName.setText(task.name);
-        if (task.active)
-            taskRunning.setText(String.format("%02d:%02d", task.seconds / 60, task.seconds % 60));
+    public void setOnTaskClickedListener(TaskFragment.OnTaskClickedListener listener) {
+        mTaskClickedListener = listener;
+    }
+
+    /*
+     * Sends START or STOP for the task and shows it right away. The server's
+     * push settles it, a NAK or no push within the timeout rolls it back.
+     */
+    public void toggleTask(Task task) {
+        TaskList.Source source = mTasks.findSource(task.source);
+        if (mServiceCommunicator == null || source == null)
+            return;
+
+        mTappedAt = System.nanoTime();
+        mTappedKey = task.key;
+
+        /* Buffered rows would otherwise land on top of the tap's state */
+        applyPending();
+
+        int from = mTasks.indexOf(task);
+        TaskList.Change change = mTasks.toggle(source, task, SystemClock.elapsedRealtime());
+
+        if (change.start)
+            mServiceCommunicator.start(source.key, task.id);
         else
-            taskRunning.setText("");
+            mServiceCommunicator.stop(source.key, task.id);
+
+        if (from != 0 && change.start)
+            notifyItemMoved(from, 0);
+        notifyItemChanged(mTasks.indexOf(task), PAYLOAD_RUNNING);
+
+        mTickHandler.postDelayed(new Expiry(change.id), mTimeout > 0 ? mTimeout : ConnectionProfile.DEFAULT.readTimeout);
+        scheduleTick();
+    }
+
+    @Override
+    public void onCharmEvent(CharmEvent event) {
+        TaskList.Source source = mTasks.findSource(event.source);
+        TaskList.Change change;
+        int position;
+
+        /* Late events of a server that was removed meanwhile */
+        if (source == null)
+            return;
+
+        switch (event.type) {
+            case CharmEvent.TASK_ACTIVATED:
+                applyPending();
+
+                /* The running time started with the tap, a later tap on the task stays on screen */
+                change = settle(source, event.taskId, true);
+                if (mTasks.isChanging(source, event.taskId))
+                    return;
+
+                position = mTasks.activate(source, event.taskId, event.name,
+                        change != null && change.start ? change.tappedAt : SystemClock.elapsedRealtime());
+                mCache.putFirst(mTasks.getAt(0));
 
-        return view;
+                if (position == -1) {
+                    notifyItemInserted(0);
+                } else {
+                    if (position != 0)
+                        notifyItemMoved(position, 0);
+                    notifyItemChanged(0, PAYLOAD_RUNNING);
+                }
+                break;
+
+            case CharmEvent.TASK_DEACTIVATED:
+                applyPending();
+
+                settle(source, event.taskId, false);
+                if (mTasks.isChanging(source, event.taskId))
+                    return;
+
+                position = mTasks.deactivate(source, event.taskId);
+                if (position == -1)
+                    return;
+
+                notifyItemChanged(position, PAYLOAD_RUNNING);
+                break;
+
+            case CharmEvent.TASK_RECENT:
+                mTasks.addRecent(source, event.rows, event.index, event.count);
+                scheduleFrame();
+                return;
+
+            case CharmEvent.TASK_STATUS:
+                mTasks.addStatus(source, event.rows);
+                scheduleFrame();
+                return;
+
+            case CharmEvent.COMMAND_WITHDRAWN:
+                mTasks.withdraw(source, event.taskId);
+                return;
+
+            case CharmEvent.COMMAND_REFUSED:
+                change = mTasks.findChange(source, event.taskId, event.command == PendingRequests.COMMAND_START);
+                if (change != null)
+                    rollback(change);
+                return;
+
+            case CharmEvent.CONNECTION_ESTABLISHED:
+                prepareConnection(source);
+                return;
+
+            case CharmEvent.CONNECTION_CLOSED:
+                cleanConnection(source);
+                return;
+
+            default:
+                return;
+        }
+
+        scheduleTick();
     }
 
     public void open() {
@@ -109,20 +275,12 @@ class TaskAdapter extends BaseAdapter {
         Intent service = new Intent(mContext, CharmClientService.class);
         mContext.bindService(service, mCharmServiceConnection, Context.BIND_AUTO_CREATE);
 
-        LocalBroadcastManager.getInstance(mContext).registerReceiver(mCharmServiceReceiver,
-                new IntentFilter(CharmClientService.CHARM_TASK_ACTIVATED_ACTION));
-        LocalBroadcastManager.getInstance(mContext).registerReceiver(mCharmServiceReceiver,
-                new IntentFilter(CharmClientService.CHARM_TASK_DEACTIVATED_ACTION));
-        LocalBroadcastManager.getInstance(mContext).registerReceiver(mCharmServiceReceiver,
-                new IntentFilter(CharmClientService.CHARM_RECENT_TASK_ACTION));
-        LocalBroadcastManager.getInstance(mContext).registerReceiver(mCharmServiceReceiver,
-                new IntentFilter(CharmClientService.CHARM_TASK_STATUS_ACTION));
-        LocalBroadcastManager.getInstance(mContext).registerReceiver(mCharmServiceReceiver,
-                new IntentFilter(CharmClientService.CHARM_CONNECTION_ESTABLISHED_ACTION));
-        LocalBroadcastManager.getInstance(mContext).registerReceiver(mCharmServiceReceiver,
-                new IntentFilter(CharmClientService.CHARM_CONNECTION_CLOSED_ACTION));
-        LocalBroadcastManager.getInstance(mContext).registerReceiver(mCharmServiceReceiver,
-                new IntentFilter(CharmClientService.CHARM_CONNECTION_DISCOVERED_ACTION));
+        CharmEventBus.getInstance().register(this);
+
+        if (!mCacheLoaded && !mCacheLoading) {
+            mCacheLoading = true;
+            mCache.load(this);
+        }
 
         mOpened = true;
     }
@@ -131,14 +289,36 @@ class TaskAdapter extends BaseAdapter {
         if (!mOpened)
             return;
 
-        LocalBroadcastManager.getInstance(mContext).unregisterReceiver(mCharmServiceReceiver);
+        CharmEventBus.getInstance().unregister(this);
         mContext.unbindService(mCharmServiceConnection);
+        mTickHandler.removeCallbacks(mTicker);
 
-        cleanConnection();
+        List<TaskList.Source> sources = mTasks.getSources();
+        for (int i = 0; i < sources.size(); ++i)
+            cleanConnection(sources.get(i));
 
         mOpened = false;
     }
 
+    /* Flushes the cache, the adapter must not be opened again afterwards */
+    public void release() {
+        close();
+        mCache.release();
+    }
+
+    /* Cached tasks go below anything the server already sent */
+    @Override
+    public void onTasksLoaded(TaskRows rows) {
+        mCacheLoading = false;
+        mCacheLoaded = true;
+
+        mTasks.addCached(rows);
+        notifyDataSetChanged();
+
+        if (mOpened)
+            sendConnectionInformation();
+    }
+
     public boolean isOpen() {
         return mOpened;
     }
@@ -156,114 +336,303 @@ class TaskAdapter extends BaseAdapter {
         }
     }
 
-    public void setHostname(String hostname) {
-        mHostname = hostname;
+    /* Servers as host:port keys, tasks of servers no longer listed leave the list */
+    public void setServers(List<String> servers) {
+        boolean removed = mTasks.setServers(servers);
 
+        notifyDataSetChanged();
+
+        if (removed)
+            scheduleTick();
         if (isOpen())
-            mServiceCommunicator.connectionInformation(mHostname, mPort);
+            sendConnectionInformation();
     }
 
-    public void setPort(int port) {
-        mPort = port;
+    /* Both in milliseconds, zero leaves the service's default */
+    public void setTimeouts(long timeout, long heartbeat) {
+        mTimeout = timeout;
+        mHeartbeat = heartbeat;
 
         if (isOpen())
-            mServiceCommunicator.connectionInformation(mHostname, mPort);
+            sendConnectionInformation();
+    }
+
+    /* A server found through discovery keeps its tasks under the new key */
+    public void renameSource(String key, String newKey) {
+        if (mTasks.renameSource(key, newKey))
+            notifyDataSetChanged();
+    }
+
+    /* Holds the connection back until the cached list is on screen */
+    private void sendConnectionInformation() {
+        if (mServiceCommunicator == null || !mCacheLoaded)
+            return;
+
+        List<TaskList.Source> sources = mTasks.getSources();
+        ArrayList<String> servers = new ArrayList<>();
+        for (int i = 0; i < sources.size(); ++i)
+            servers.add(sources.get(i).key);
+
+        mServiceCommunicator.connectionInformation(servers, mTimeout, mHeartbeat);
+    }
+
+    private void prepareConnection(TaskList.Source source) {
+        mServiceCommunicator.recent(source.key, mTasks.connect(source, mRecentCount), mRecentCount);
+        mServiceCommunicator.subscribe(source.key, STATUS_INTERVAL);
+    }
+
+    /* Asks each server for its next RECENT window once the scroll position gets within a page of its end */
+    private void requestWindow() {
+        if (mServiceCommunicator == null)
+            return;
+
+        List<TaskList.Source> sources = mTasks.getSources();
+        for (int i = 0; i < sources.size(); ++i) {
+            TaskList.Source source = sources.get(i);
+            int index = mTasks.nextWindow(source, mLastVisible);
+            if (index != -1)
+                mServiceCommunicator.recent(source.key, index, source.pager.getPageSize());
+        }
+    }
+
+    /* The list survives the connection, only the running state is unknown until it is back */
+    private void cleanConnection(TaskList.Source source) {
+        mTasks.disconnect(source);
+
+        if (mFrameScheduled && mRecyclerView != null)
+            mRecyclerView.removeCallbacks(mFrame);
+        applyPending();
+
+        mTasks.clearRunning(source);
+        notifyItemRangeChanged(0, mTasks.size(), PAYLOAD_RUNNING);
+    }
+
+    /* Replies are applied on the next animation frame, however many arrive before it */
+    private void scheduleFrame() {
+        if (mFrameScheduled)
+            return;
+
+        if (mRecyclerView == null) {
+            applyPending();
+            return;
+        }
+
+        mFrameScheduled = true;
+        ViewCompat.postOnAnimation(mRecyclerView, mFrame);
+    }
+
+    /* Applies every buffered row in one pass and tells the RecyclerView about it once */
+    private void applyPending() {
+        mFrameScheduled = false;
+
+        switch (mTasks.apply(SystemClock.elapsedRealtime())) {
+            case TaskList.APPLIED_NOTHING:
+                return;
+
+            case TaskList.APPLIED_ALL:
+                notifyDataSetChanged();
+                break;
+
+            case TaskList.APPLIED_RANGE:
+                int first = mTasks.getFirstChanged();
+                notifyItemRangeChanged(first, mTasks.getLastChanged() - first + 1, PAYLOAD_RUNNING);
+                break;
+        }
+
+        scheduleTick();
+        requestWindow();
+    }
+
+    private TaskList.Change settle(TaskList.Source source, long id, boolean activated) {
+        TaskList.Change change = mTasks.settle(source, id, activated);
+        if (change != null && change.start == activated)
+            mMetrics.getTapToConfirm().record(SystemClock.elapsedRealtime() - change.tappedAt);
+        return change;
+    }
+
+    /*
+     * Taps on the task that have not been sent yet are withdrawn, a reconnect
+     * would otherwise still send them and undo the rollback. Counted only
+     * when the row changes.
+     */
+    private void rollback(TaskList.Change change) {
+        applyPending();
+
+        if (mServiceCommunicator != null)
+            mServiceCommunicator.withdraw(change.source.key, change.taskId);
+
+        Task task = mTasks.findTask(change.source, change.taskId);
+        boolean active = task != null && task.active;
+
+        int from = mTasks.rollback(change);
+        if (from == -1)
+            return;
+
+        int to = mTasks.indexOf(task);
+        if (from == to && active == task.active)
+            return;
+
+        if (from != to)
+            notifyItemMoved(from, to);
+        notifyItemChanged(to, PAYLOAD_RUNNING);
+
+        mMetrics.onRollback();
+        scheduleTick();
+    }
+
+    private void onTapShown(Task task) {
+        if (task.key != mTappedKey)
+            return;
+
+        mMetrics.getTapToRow().record((System.nanoTime() - mTappedAt) / 1000);
+        mTappedKey = 0;
     }
 
-    private void prepareConnection() {
-        mServiceCommunicator.recent(0, mRecentCount);
+    private void evictFarPages() {
+        int removed = mTasks.evictFarPages(mLastVisible);
+        if (removed > 0)
+            notifyItemRangeRemoved(mTasks.size(), removed);
+    }
+
+    /* Ticks on the next whole second of the first running task, and only while one runs */
+    private void scheduleTick() {
+        mTickHandler.removeCallbacks(mTicker);
+
+        if (mRecyclerView == null)
+            return;
+
+        List<Task> running = mTasks.getRunning();
+        if (running.isEmpty())
+            return;
 
-        mRefreshTimer = new Timer();
-        mRefreshTimer.scheduleAtFixedRate(new RefreshTimerTask(), 0, 10000);
+        long elapsed = SystemClock.elapsedRealtime() - running.get(0).startedAt;
+        mTickHandler.postDelayed(mTicker, 1000 - (elapsed % 1000));
     }
 
-    private void cleanConnection() {
-        if (mRefreshTimer != null) {
-            mRefreshTimer.cancel();
-            mRefreshTimer.purge();
-            mRefreshTimer = null;
+    private class Ticker implements Runnable {
+        @Override
+        public void run() {
+            if (mRecyclerView == null)
+                return;
+
+            long now = SystemClock.elapsedRealtime();
+
+            /* Rebinds just the timer of the attached running rows, without a layout pass */
+            for (int i = 0; i < mRecyclerView.getChildCount(); ++i) {
+                ViewHolder holder = (ViewHolder) mRecyclerView.getChildViewHolder(mRecyclerView.getChildAt(i));
+                int position = holder.getAdapterPosition();
+                if (position == RecyclerView.NO_POSITION)
+                    continue;
+
+                Task task = mTasks.getAt(position);
+                if (task.active)
+                    holder.bindRunning(task, now);
+            }
+
+            scheduleTick();
         }
+    }
+
+    /* Rolls a tap back unless its push came first */
+    private class Expiry implements Runnable {
+        private final int mChange;
 
-        mTasks.clear();
-        mTasksById.clear();
+        Expiry(int change) {
+            mChange = change;
+        }
 
-        notifyDataSetInvalidated();
+        @Override
+        public void run() {
+            TaskList.Change change = mTasks.findChange(mChange);
+            if (change != null)
+                rollback(change);
+        }
     }
 
-    private class RefreshTimerTask extends TimerTask {
+    private class Frame implements Runnable {
         @Override
         public void run() {
-            mServiceCommunicator.status();
+            applyPending();
+            evictFarPages();
         }
     }
 
-    private class CharmBroadcastReceiver extends BroadcastReceiver {
+    private class ScrollListener extends RecyclerView.OnScrollListener {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            if (intent.getAction().equals(CharmClientService.CHARM_TASK_ACTIVATED_ACTION)) {
-                Task task;
+        public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+            LinearLayoutManager layout = (LinearLayoutManager) recyclerView.getLayoutManager();
+            mLastVisible = Math.max(0, layout.findLastVisibleItemPosition());
 
-                long task_id = intent.getLongExtra(CharmClientService.CHARM_TASK_ID, 0);
+            requestWindow();
 
-                if (mTasksById.containsKey(task_id))
-                    task = mTasksById.get(task_id);
-                else {
-                    task = new Task(task_id, intent.getStringExtra(CharmClientService.CHARM_TASK_NAME));
-                    mTasksById.put(task_id, task);
-                }
+            /* Structural changes are not allowed from a scroll callback */
+            if (mTasks.needsEviction(mLastVisible))
+                scheduleFrame();
+        }
+    }
 
-                mTasks.remove(task);
-                task.active = true;
-                task.seconds = 0;
-                mTasks.add(0, task);
+    class ViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener {
+        final TextView taskId;
+        final TextView taskName;
+        final TextView taskSource;
+        final TextView taskRunning;
+        final char[] running = new char[16];
 
-                notifyDataSetChanged();
-            } else if (intent.getAction().equals(CharmClientService.CHARM_TASK_DEACTIVATED_ACTION)) {
-                Task task;
+        ViewHolder(View view) {
+            super(view);
 
-                long task_id = intent.getLongExtra(CharmClientService.CHARM_TASK_ID, 0);
+            taskId = (TextView) view.findViewById(R.id.task_id);
+            taskName = (TextView) view.findViewById(R.id.task_name);
+            taskSource = (TextView) view.findViewById(R.id.task_source);
+            taskRunning = (TextView) view.findViewById(R.id.task_running);
 
-                if (!mTasksById.containsKey(task_id))
-                    return;
+            view.setOnClickListener(this);
+        }
 
-                task = mTasksById.get(task_id);
-                task.active = false;
-                task.seconds = 0;
+        @Override
+        public void onClick(View view) {
+            int position = getAdapterPosition();
 
-                notifyDataSetChanged();
-            } else if (intent.getAction().equals(CharmClientService.CHARM_RECENT_TASK_ACTION)) {
-                Task task;
+            if (position != RecyclerView.NO_POSITION && mTaskClickedListener != null)
+                mTaskClickedListener.onTaskClicked(mTasks.getAt(position));
+        }
 
-                long task_id = intent.getLongExtra(CharmClientService.CHARM_TASK_ID, 0);
+        /* Formats mm:ss without going through String.format every second */
+        void bindRunning(Task task, long now) {
+            if (!task.active) {
+                taskRunning.setText("");
+                return;
+            }
 
-                if (mTasksById.containsKey(task_id))
-                    task = mTasksById.get(task_id);
-                else {
-                    task = new Task(task_id, intent.getStringExtra(CharmClientService.CHARM_TASK_NAME));
-                    mTasksById.put(task_id, task);
-                }
+            int seconds = Math.max(0, task.elapsedSeconds(now));
+            int minutes = seconds / 60;
+            int length = 0;
 
-                mTasks.remove(task);
-                mTasks.add(task);
-                notifyDataSetChanged();
-            } else if (intent.getAction().equals(CharmClientService.CHARM_TASK_STATUS_ACTION)) {
-                Task task;
+            if (minutes < 10)
+                running[length++] = '0';
+            length = putNumber(minutes, length);
+            running[length++] = ':';
+            running[length++] = (char) ('0' + (seconds % 60) / 10);
+            running[length++] = (char) ('0' + (seconds % 60) % 10);
 
-                long task_id = intent.getLongExtra(CharmClientService.CHARM_TASK_ID, 0);
+            taskRunning.setText(running, 0, length);
+        }
 
-                if (!mTasksById.containsKey(task_id))
-                    return;
+        private int putNumber(int value, int length) {
+            int start = length;
 
-                task = mTasksById.get(task_id);
-                task.active = true;
-                task.seconds = intent.getIntExtra(CharmClientService.CHARM_EVENT_DURATION, 0);
+            do {
+                running[length++] = (char) ('0' + value % 10);
+                value /= 10;
+            } while (value > 0);
 
-                notifyDataSetChanged();
-            } else if (intent.getAction().equals(CharmClientService.CHARM_CONNECTION_ESTABLISHED_ACTION)) {
-                prepareConnection();
-            } else if (intent.getAction().equals(CharmClientService.CHARM_CONNECTION_CLOSED_ACTION)) {
-                cleanConnection();
+            for (int i = start, j = length - 1; i < j; ++i, --j) {
+                char c = running[i];
+                running[i] = running[j];
+                running[j] = c;
             }
+
+            return length;
         }
     }
 }
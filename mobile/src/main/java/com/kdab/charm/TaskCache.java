@@ -0,0 +1,199 @@
+package com.kdab.charm;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+
+/*
+ * Mirrors the task list on disk so it can be shown before the server answers.
+ * Writes are buffered by the caller and flushed in one transaction through a
+ * precompiled statement on a background thread. The order is kept as a rank:
+ * the RECENT index for rows from the server, and ranks below every other
+ * one for tasks activated since. Task ids are only unique per server, so
+ * rows are keyed by the server's host:port and the id together.
+ */
+class TaskCache extends SQLiteOpenHelper {
+    private static final String DATABASE_NAME = "tasks.db";
+    private static final int DATABASE_VERSION = 2;
+
+    private static final int MAX_ROWS = 500;
+    private static final long FLUSH_DELAY = 250;
+
+    /* Pending rows carry the RECENT index, or this for putFirst() */
+    private static final int PUT_FIRST = -1;
+
+    interface LoadListener {
+        void onTasksLoaded(TaskRows rows);
+    }
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mFlush = new Flush();
+    private final Object mLock = new Object();
+
+    /* Filled by the caller, swapped with mWriting by the flush */
+    private TaskRows mPending = new TaskRows();
+    private TaskRows mWriting = new TaskRows();
+    private boolean mFlushScheduled = false;
+
+    /* Only touched on the cache thread */
+    private SQLiteStatement mInsert;
+    private long mFirstRank = 0;
+
+    public TaskCache(Context context) {
+        super(context.getApplicationContext(), DATABASE_NAME, null, DATABASE_VERSION);
+
+        mThread = new HandlerThread("TaskCache", Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE tasks (source TEXT NOT NULL, id INTEGER NOT NULL, name TEXT NOT NULL, "
+                + "rank INTEGER NOT NULL, PRIMARY KEY (source, id))");
+        db.execSQL("CREATE INDEX tasks_rank ON tasks (rank)");
+    }
+
+    /* It is only a cache, the server refills it */
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        db.execSQL("DROP TABLE IF EXISTS tasks");
+        onCreate(db);
+    }
+
+    /* Reads the cached list in display order and hands it over on the main thread */
+    public void load(final LoadListener listener) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final TaskRows rows = new TaskRows();
+
+                try {
+                    readTasks(rows);
+                } catch (SQLException e) {
+                    CharmLog.d("Unable to read the task cache: %s", e.getMessage());
+                }
+
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onTasksLoaded(rows);
+                    }
+                });
+            }
+        });
+    }
+
+    public void putFirst(Task task) {
+        put(task, PUT_FIRST);
+    }
+
+    public void putRecent(Task task, int index) {
+        put(task, index);
+    }
+
+    /* Writes what is still buffered and closes the database behind it */
+    public void release() {
+        mHandler.removeCallbacks(mFlush);
+        mHandler.post(mFlush);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mInsert != null)
+                    mInsert.close();
+                mInsert = null;
+
+                close();
+                mThread.quit();
+            }
+        });
+    }
+
+    private void put(Task task, int rank) {
+        if (task.name == null || task.source == null)
+            return;
+
+        synchronized (mLock) {
+            mPending.add(task.id, rank, task.name, task.source);
+
+            if (mFlushScheduled)
+                return;
+            mFlushScheduled = true;
+        }
+
+        mHandler.postDelayed(mFlush, FLUSH_DELAY);
+    }
+
+    private void readTasks(TaskRows rows) {
+        SQLiteDatabase db = getWritableDatabase();
+
+        db.execSQL("DELETE FROM tasks WHERE rowid NOT IN (SELECT rowid FROM tasks ORDER BY rank LIMIT " + MAX_ROWS + ")");
+
+        Cursor cursor = db.rawQuery("SELECT id, name, rank, source FROM tasks ORDER BY rank", null);
+        try {
+            while (cursor.moveToNext()) {
+                mFirstRank = Math.min(mFirstRank, cursor.getLong(2));
+                rows.add(cursor.getLong(0), 0, cursor.getString(1), cursor.getString(3));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void writeTasks(TaskRows rows) {
+        if (rows.isEmpty())
+            return;
+
+        SQLiteDatabase db = getWritableDatabase();
+
+        if (mInsert == null)
+            mInsert = db.compileStatement("INSERT OR REPLACE INTO tasks (source, id, name, rank) VALUES (?, ?, ?, ?)");
+
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < rows.count; ++i) {
+                long rank = rows.values[i] == PUT_FIRST ? --mFirstRank : rows.values[i];
+
+                mInsert.bindString(1, rows.sources[i]);
+                mInsert.bindLong(2, rows.ids[i]);
+                mInsert.bindString(3, rows.names[i]);
+                mInsert.bindLong(4, rank);
+                mInsert.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private class Flush implements Runnable {
+        @Override
+        public void run() {
+            TaskRows rows;
+
+            synchronized (mLock) {
+                rows = mPending;
+                mPending = mWriting;
+                mWriting = rows;
+                mFlushScheduled = false;
+            }
+
+            try {
+                writeTasks(rows);
+            } catch (SQLException e) {
+                CharmLog.d("Unable to write the task cache: %s", e.getMessage());
+            }
+
+            rows.clear();
+        }
+    }
+}
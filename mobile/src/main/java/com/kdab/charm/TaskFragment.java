@@ -1,81 +1,107 @@
 package com.kdab.charm;
 
 import android.app.Activity;
-import android.app.ListFragment;
-import android.content.BroadcastReceiver;
-import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
+import android.app.Fragment;
 import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.os.Messenger;
 import android.preference.PreferenceManager;
-import android.support.v4.content.LocalBroadcastManager;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.view.LayoutInflater;
 import android.view.View;
-import android.widget.ListView;
+import android.view.ViewGroup;
 
-public class TaskFragment extends ListFragment {
-    private final BroadcastReceiver mCharmServiceReceiver = new CharmBroadcastReceiver();
+public class TaskFragment extends Fragment {
+    private final CharmEventListener mCharmEventListener = new DiscoveryListener();
     private final SharedPreferences.OnSharedPreferenceChangeListener mPreferenceChangeListener =
             new SharedPreferences.OnSharedPreferenceChangeListener() {
         @Override
         public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
-            TaskAdapter adapter = (TaskAdapter) getListAdapter();
-
             switch (key) {
                 case SettingsActivity.CHARM_CONNECTION_HOSTNAME:
-                    adapter.setHostname(sharedPreferences.getString(key, "localhost"));
-                    break;
                 case SettingsActivity.CHARM_CONNECTION_PORT:
-                    adapter.setPort(Integer.parseInt(sharedPreferences.getString(key, "5323")));
+                    mAdapter.setServers(ServerList.parse(getServers(sharedPreferences), getPort(sharedPreferences)));
+                    break;
+                case SettingsActivity.CHARM_CONNECTION_TIMEOUT:
+                case SettingsActivity.CHARM_CONNECTION_HEARTBEAT:
+                    mAdapter.setTimeouts(
+                            1000L * getInt(sharedPreferences, SettingsActivity.CHARM_CONNECTION_TIMEOUT, 10),
+                            1000L * getInt(sharedPreferences, SettingsActivity.CHARM_CONNECTION_HEARTBEAT, 30));
                     break;
                 case SettingsActivity.CHARM_RECENT_COUNT:
-                    adapter.setRecentCount(Integer.parseInt(sharedPreferences.getString(key, "10")));
+                    mAdapter.setRecentCount(getInt(sharedPreferences, key, 10));
                     break;
             }
         }
     };
 
     private OnTaskClickedListener mTaskClickedListener;
+    private TaskAdapter mAdapter;
+    private RecyclerView mTaskList;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
-        TaskAdapter adapter = new TaskAdapter(getActivity());
-        setListAdapter(adapter);
+        mAdapter = new TaskAdapter(getActivity());
+        mAdapter.setOnTaskClickedListener(mTaskClickedListener);
 
         SharedPreferences sharedPref = PreferenceManager.getDefaultSharedPreferences(getActivity().getApplicationContext());
         mPreferenceChangeListener.onSharedPreferenceChanged(sharedPref, SettingsActivity.CHARM_CONNECTION_HOSTNAME);
-        mPreferenceChangeListener.onSharedPreferenceChanged(sharedPref, SettingsActivity.CHARM_CONNECTION_PORT);
+        mPreferenceChangeListener.onSharedPreferenceChanged(sharedPref, SettingsActivity.CHARM_CONNECTION_TIMEOUT);
         mPreferenceChangeListener.onSharedPreferenceChanged(sharedPref, SettingsActivity.CHARM_RECENT_COUNT);
 
-        adapter.open();
+        mAdapter.open();
 
-        LocalBroadcastManager.getInstance(getActivity()).registerReceiver(mCharmServiceReceiver,
-                new IntentFilter(CharmClientService.CHARM_CONNECTION_DISCOVERED_ACTION));
+        CharmEventBus.getInstance().register(mCharmEventListener);
 
         PreferenceManager.getDefaultSharedPreferences(getActivity()).
                 registerOnSharedPreferenceChangeListener(mPreferenceChangeListener);
     }
 
+    @Override
+    public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
+        return inflater.inflate(R.layout.fragment_task_list, container, false);
+    }
+
+    @Override
+    public void onViewCreated(View view, Bundle savedInstanceState) {
+        super.onViewCreated(view, savedInstanceState);
+
+        mTaskList = (RecyclerView) view.findViewById(R.id.task_list);
+        mTaskList.setLayoutManager(new LinearLayoutManager(getActivity()));
+        mTaskList.setHasFixedSize(true);
+
+        /* A cross-fade would rebind a second holder, payload updates go to the bound one */
+        mTaskList.getItemAnimator().setSupportsChangeAnimations(false);
+
+        mTaskList.setAdapter(mAdapter);
+    }
+
+    @Override
+    public void onDestroyView() {
+        mTaskList.setAdapter(null);
+        mTaskList = null;
+
+        super.onDestroyView();
+    }
+
     @Override
     public void onDestroy() {
         PreferenceManager.getDefaultSharedPreferences(getActivity()).
                 unregisterOnSharedPreferenceChangeListener(mPreferenceChangeListener);
 
-        TaskAdapter adapter = (TaskAdapter) getListAdapter();
-        adapter.close();
+        mAdapter.release();
 
-        LocalBroadcastManager.getInstance(getActivity()).unregisterReceiver(mCharmServiceReceiver);
+        CharmEventBus.getInstance().unregister(mCharmEventListener);
 
         super.onDestroy();
     }
 
     @Override
     public void onResume() {
-        TaskAdapter adapter = (TaskAdapter) getListAdapter();
-        adapter.open();
+        mAdapter.open();
 
         PreferenceManager.getDefaultSharedPreferences(getActivity()).
                 registerOnSharedPreferenceChangeListener(mPreferenceChangeListener);
@@ -88,8 +114,7 @@ public class TaskFragment extends ListFragment {
         PreferenceManager.getDefaultSharedPreferences(getActivity()).
                 unregisterOnSharedPreferenceChangeListener(mPreferenceChangeListener);
 
-        TaskAdapter adapter = (TaskAdapter) getListAdapter();
-        adapter.close();
+        mAdapter.close();
 
         super.onPause();
     }
@@ -103,39 +128,64 @@ public class TaskFragment extends ListFragment {
             throw new ClassCastException(activity.toString()
                     + " must implement OnTaskClickedListener");
         }
+
+        if (mAdapter != null)
+            mAdapter.setOnTaskClickedListener(mTaskClickedListener);
     }
 
     @Override
     public void onDetach() {
         super.onDetach();
         mTaskClickedListener = null;
+
+        if (mAdapter != null)
+            mAdapter.setOnTaskClickedListener(null);
     }
 
-    @Override
-    public void onListItemClick(ListView l, View v, int position, long id) {
-        super.onListItemClick(l, v, position, id);
+    public Messenger getServiceMessenger() {
+        return mAdapter.getServiceMessenger();
+    }
 
-        if (null != mTaskClickedListener) {
-            mTaskClickedListener.onTaskClicked((Task) getListAdapter().getItem(position));
-        }
+    /* Shows the task started or stopped right away, see TaskAdapter.toggleTask() */
+    public void toggleTask(Task task) {
+        mAdapter.toggleTask(task);
     }
 
-    public Messenger getServiceMessenger() {
-        TaskAdapter adapter = (TaskAdapter) getListAdapter();
-        return adapter.getServiceMessenger();
+    /* The hostname preference lists one or more servers, the port is the default for those without one */
+    private static String getServers(SharedPreferences sharedPreferences) {
+        return sharedPreferences.getString(SettingsActivity.CHARM_CONNECTION_HOSTNAME, "localhost");
+    }
+
+    private static int getPort(SharedPreferences sharedPreferences) {
+        return getInt(sharedPreferences, SettingsActivity.CHARM_CONNECTION_PORT, 5323);
+    }
+
+    /* Stored as text, so an empty field or one edited elsewhere gets the default */
+    private static int getInt(SharedPreferences sharedPreferences, String key, int defaultValue) {
+        try {
+            return Integer.parseInt(sharedPreferences.getString(key, String.valueOf(defaultValue)).trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
     }
 
     public interface OnTaskClickedListener {
         public void onTaskClicked(Task task);
     }
 
-    private class CharmBroadcastReceiver extends BroadcastReceiver {
+    private class DiscoveryListener implements CharmEventListener {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            if (intent.getAction().equals(CharmClientService.CHARM_CONNECTION_DISCOVERED_ACTION)) {
-                String hostname = intent.getStringExtra(CharmClientService.CHARM_CONNECTION_HOSTNAME);
-                SharedPreferences.Editor sharedPref = PreferenceManager.getDefaultSharedPreferences(getActivity().getApplicationContext()).edit();
-                sharedPref.putString(SettingsActivity.CHARM_CONNECTION_HOSTNAME, hostname);
+        public void onCharmEvent(CharmEvent event) {
+            if (event.type == CharmEvent.CONNECTION_DISCOVERED) {
+                SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(getActivity().getApplicationContext());
+                int port = getPort(preferences);
+
+                /* The adapter moves its tasks over first, the new server list then finds them in place */
+                mAdapter.renameSource(event.source, ServerList.key(event.hostname, ServerList.getPort(event.source)));
+
+                SharedPreferences.Editor sharedPref = preferences.edit();
+                sharedPref.putString(SettingsActivity.CHARM_CONNECTION_HOSTNAME,
+                        ServerList.replaceHost(getServers(preferences), port, event.source, event.hostname));
                 sharedPref.apply();
             }
         }